@@ -5,6 +5,7 @@ import com.uci.adapter.cdn.FileCdnFactory;
 import com.uci.adapter.cdn.service.AzureBlobService;
 import com.uci.adapter.cdn.service.MinioClientService;
 import com.uci.adapter.cdn.service.SunbirdCloudMediaService;
+import com.uci.transformer.odk.KafkaOffsetCommitter;
 import com.uci.utils.dto.BotServiceParams;
 import io.fusionauth.client.FusionAuthClient;
 
@@ -32,13 +33,16 @@ import org.springframework.web.client.RestTemplate;
 import reactor.core.publisher.Flux;
 import reactor.kafka.receiver.KafkaReceiver;
 import reactor.kafka.receiver.ReceiverOptions;
+import reactor.kafka.receiver.ReceiverPartition;
 import reactor.kafka.receiver.ReceiverRecord;
 import reactor.kafka.sender.KafkaSender;
 import reactor.kafka.sender.SenderOptions;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Configuration
 @EnableAutoConfiguration
@@ -125,9 +129,23 @@ public class AppConfiguration {
     }
 
     @Bean
-    ReceiverOptions<String, String> kafkaReceiverOptions(@Value("${odk-transformer}") String inTopicName) {
+    KafkaOffsetCommitter kafkaOffsetCommitter(@Value("${odk-consumer.commit-batch-size:100}") int commitBatchSize,
+                                              @Value("${odk-consumer.commit-interval-ms:5000}") long commitIntervalMs) {
+        return new KafkaOffsetCommitter(commitBatchSize, Duration.ofMillis(commitIntervalMs));
+    }
+
+    @Bean
+    ReceiverOptions<String, String> kafkaReceiverOptions(@Value("${odk-transformer}") String inTopicName,
+                                                         @Value("${odk-transformer-retry}") String retryTopicName,
+                                                         KafkaOffsetCommitter kafkaOffsetCommitter) {
         ReceiverOptions<String, String> options = ReceiverOptions.create(kafkaConsumerConfiguration());
-        return options.subscription(Pattern.compile(inTopicName))
+        /* Offsets are committed by KafkaOffsetCommitter only */
+        return options.subscription(Pattern.compile("(" + inTopicName + ")|" + Pattern.quote(retryTopicName)))
+                .commitInterval(Duration.ZERO)
+                .commitBatchSize(0)
+                .addRevokeListener(partitions -> kafkaOffsetCommitter.revoke(partitions.stream()
+                        .map(ReceiverPartition::topicPartition)
+                        .collect(Collectors.toList())))
                 .withKeyDeserializer(new JsonDeserializer<>())
                 .withValueDeserializer(new JsonDeserializer(String.class));
     }
@@ -146,8 +164,19 @@ public class AppConfiguration {
     }
 
     @Bean
-    SenderOptions<Integer, String> kafkaSenderOptions() {
-        return SenderOptions.create(kafkaProducerConfiguration());
+    SenderOptions<String, String> kafkaSenderOptions(@Value("${outbound.kafka.linger-ms:20}") int lingerMs,
+                                                     @Value("${outbound.kafka.batch-size:65536}") int batchSize,
+                                                     @Value("${outbound.kafka.compression:lz4}") String compression,
+                                                     @Value("${outbound.kafka.acks:all}") String acks,
+                                                     @Value("${outbound.kafka.max-in-flight:256}") int maxInFlight) {
+        Map<String, Object> configuration = new HashMap<>(kafkaProducerConfiguration());
+        configuration.put(ProducerConfig.CLIENT_ID_CONFIG, "transformer-outbound");
+        configuration.put(ProducerConfig.LINGER_MS_CONFIG, lingerMs);
+        configuration.put(ProducerConfig.BATCH_SIZE_CONFIG, batchSize);
+        configuration.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compression);
+        configuration.put(ProducerConfig.ACKS_CONFIG, acks);
+        return SenderOptions.<String, String>create(configuration)
+                .maxInFlight(maxInFlight);
     }
 
     @Bean
@@ -156,7 +185,7 @@ public class AppConfiguration {
     }
 
     @Bean
-    KafkaSender<Integer, String> reactiveKafkaSender(SenderOptions<Integer, String> kafkaSenderOptions) {
+    KafkaSender<String, String> reactiveKafkaSender(SenderOptions<String, String> kafkaSenderOptions) {
         return KafkaSender.create(kafkaSenderOptions);
     }
 
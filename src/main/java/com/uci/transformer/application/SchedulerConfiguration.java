@@ -0,0 +1,33 @@
+package com.uci.transformer.application;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Schedulers of the transform chain. Form evaluation is CPU bound & runs on the compute scheduler, whose
+ * threads must never block. Blocking calls (redis, federated user lookups, form submission) run on the
+ * bounded io scheduler, which rejects tasks once its queue is full.
+ */
+@Slf4j
+@Configuration
+public class SchedulerConfiguration {
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler computeScheduler(@Value("${scheduler.compute.threads:0}") int threads) {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        log.info("Compute scheduler threads: " + size);
+        return Schedulers.newParallel("transformer-compute", size);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler ioScheduler(@Value("${scheduler.io.threads:0}") int threads,
+                                 @Value("${scheduler.io.queue-size:1000}") int queueSize) {
+        int size = threads > 0 ? threads : Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE;
+        log.info("IO scheduler threads: " + size + ", queue size: " + queueSize);
+        return Schedulers.newBoundedElastic(size, queueSize, "transformer-io");
+    }
+}
@@ -2,6 +2,7 @@ package com.uci.transformer.application;
 
 import com.uci.transformer.odk.FormDownloader;
 import com.uci.transformer.odk.FormManager;
+import com.uci.transformer.odk.FormWarmup;
 import com.uci.transformer.odk.ODKConsumerReactive;
 import com.uci.transformer.odk.ServiceResponse;
 import com.uci.transformer.odk.model.Form;
@@ -55,7 +56,14 @@ public class TransformerApplication {
     private void postConstruct() {
     	String downloadFormsFlag = System.getenv("DOWNLOAD_TRANSFORMER_FORMS");
         if(!(downloadFormsFlag != null && downloadFormsFlag.equalsIgnoreCase("False"))) {
-        	downloadForms();        	
+        	downloadForms();
+        }
+        /* Runs before the Kafka receiver is subscribed on ApplicationStartedEvent */
+        String warmupFormsFlag = System.getenv("WARMUP_TRANSFORMER_FORMS");
+        if (warmupFormsFlag != null && warmupFormsFlag.equalsIgnoreCase("False")) {
+            FormWarmup.getInstance().skip();
+        } else {
+            FormWarmup.getInstance().run();
         }
     	// testFormManager();
     }
@@ -2,11 +2,12 @@ package com.uci.transformer.generic;
 
 import com.uci.dao.models.XMessageDAO;
 import com.uci.dao.repository.XMessageRepository;
+import com.uci.transformer.odk.utilities.RoutingHeaders;
+import com.uci.transformer.odk.utilities.XMessageReader;
 import com.uci.utils.kafka.SimpleProducer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import messagerosa.core.model.*;
-import messagerosa.xml.XMessageParser;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.cassandra.core.query.CassandraPageRequest;
@@ -16,13 +17,13 @@ import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
 import javax.xml.bind.JAXBException;
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -60,12 +61,20 @@ public class GenericTransformerConsumer {
 
 
     @KafkaListener(id = "${generic-transformer}", topics = "${generic-transformer}", properties = {"spring.json.value.default.type=java.lang.String"})
-    public void onMessage(@Payload String stringMessage) {
+    public void onMessage(@Payload String stringMessage,
+                          @Header(name = RoutingHeaders.BOT_TYPE, required = false) byte[] botType) {
+        /* Records routed by their headers to another bot type are dropped without decoding them,
+         * records without the headers are decoded & handled as before */
+        String routedBotType = RoutingHeaders.decode(botType);
+        if (routedBotType != null && !RoutingHeaders.GENERIC.equals(routedBotType)) {
+            log.warn("Dropping message for bot type " + routedBotType + " on generic transformer topic");
+            return;
+        }
         try {
             log.info("Topic generic transformer : " + stringMessage);
             final long startTime = System.nanoTime();
             logTimeTaken(startTime, 0);
-            XMessage msg = XMessageParser.parse(new ByteArrayInputStream(stringMessage.getBytes()));
+            XMessage msg = XMessageReader.parse(stringMessage);
             GenericOutboundMessage genericOutboundMessage = new GenericOutboundMessage();
 
             // Checking Starting Message
@@ -112,7 +121,7 @@ public class GenericTransformerConsumer {
                             @Override
                             public String apply(XMessageDAO xMessageDAO) {
                                 try {
-                                    XMessage msg = XMessageParser.parse(new ByteArrayInputStream(xMessageDAO.getXMessage().getBytes()));
+                                    XMessage msg = XMessageReader.parse(xMessageDAO.getXMessage());
                                     String answer = "";
                                     if (msg.getPayload() != null
                                             && msg.getPayload().getText() != null
@@ -144,7 +153,7 @@ public class GenericTransformerConsumer {
                             @Override
                             public String apply(XMessageDAO xMessageDAO) {
                                 try {
-                                    XMessage msg = XMessageParser.parse(new ByteArrayInputStream(xMessageDAO.getXMessage().getBytes()));
+                                    XMessage msg = XMessageReader.parse(xMessageDAO.getXMessage());
                                     String answer = "";
                                     if (msg.getPayload() != null
                                             && msg.getPayload().getText() != null
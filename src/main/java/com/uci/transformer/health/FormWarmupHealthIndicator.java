@@ -0,0 +1,26 @@
+package com.uci.transformer.health;
+
+import com.uci.transformer.odk.FormWarmup;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Out of service until the forms have been warmed up at startup, included in the readiness group.
+ */
+@Component
+public class FormWarmupHealthIndicator implements HealthIndicator {
+
+    @Override
+    public Health health() {
+        FormWarmup warmup = FormWarmup.getInstance();
+        if (!warmup.isCompleted()) {
+            return Health.outOfService().build();
+        }
+        return Health.up()
+                .withDetail("formsLoaded", warmup.getFormsLoaded())
+                .withDetail("formsFailed", warmup.getFormsFailed())
+                .withDetail("durationMs", warmup.getDurationMs())
+                .build();
+    }
+}
@@ -0,0 +1,196 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.Assessment;
+import com.uci.transformer.odk.entity.converters.AssessmentWriteConverter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.r2dbc.mapping.OutboundRow;
+import org.springframework.data.relational.core.sql.SqlIdentifier;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.Parameter;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write behind buffer for the assessments of all messages.
+ * <p>
+ * Assessments are collected from every message & inserted in batches, by size or time, as multi-row
+ * inserts. At most capacity assessments wait to be inserted, the consumer waits for room in the buffer
+ * before transforming a message so that a slow database slows down consumption instead of growing the
+ * buffer. The buffer is flushed when the application shuts down.
+ */
+@Slf4j
+@Component
+public class AssessmentWriter {
+    private static final List<String> COLUMNS = Arrays.asList("id", "question", "answer", "bot_id", "user_id",
+            "device_id", "meta", "updated", "created");
+    /* Postgres allows 65535 bind parameters in a statement */
+    private static final int MAX_ROWS_PER_INSERT = 65535 / 9;
+    private static final Duration CAPACITY_POLL_INTERVAL = Duration.ofMillis(10);
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Value("${assessment-buffer-maxsize}")
+    private int maxBatchSize;
+
+    @Value("${assessment-buffer-maxtime}")
+    private int maxBatchTimeSeconds;
+
+    @Value("${assessment-buffer.capacity:10000}")
+    private int capacity;
+
+    @Value("${assessment-buffer.shutdown-timeout-ms:30000}")
+    private long shutdownTimeoutMs;
+
+    private final AssessmentWriteConverter converter = new AssessmentWriteConverter();
+    private final Sinks.Many<Assessment> sink = Sinks.many().unicast().onBackpressureBuffer();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CountDownLatch flushed = new CountDownLatch(1);
+
+    private DistributionSummary batchSize;
+    private Timer flushTimer;
+
+    @PostConstruct
+    void start() {
+        batchSize = DistributionSummary.builder("transformer.assessments.batch.size")
+                .description("Assessments inserted per batch")
+                .register(Metrics.globalRegistry);
+        flushTimer = Timer.builder("transformer.assessments.flush")
+                .description("Multi-row inserts of assessment batches")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("transformer.assessments.pending", pending, AtomicInteger::get)
+                .description("Assessments waiting to be inserted")
+                .register(Metrics.globalRegistry);
+
+        sink.asFlux()
+                .bufferTimeout(Math.max(1, Math.min(maxBatchSize, MAX_ROWS_PER_INSERT)), Duration.ofSeconds(maxBatchTimeSeconds))
+                .onBackpressureBuffer()
+                .concatMap(this::flush)
+                .doFinally(signal -> flushed.countDown())
+                .subscribe();
+        log.info("Assessments written in batches of " + maxBatchSize + " or every " + maxBatchTimeSeconds + " s, capacity: " + capacity);
+    }
+
+    /**
+     * Add an assessment to the buffer
+     *
+     * @param assessment assessment
+     */
+    public void write(Assessment assessment) {
+        if (assessment.getQuestion() == null || assessment.getQuestion().getId() == null) {
+            log.error("Assessment without question not saved, answer: " + assessment.getAnswer());
+            Metrics.globalRegistry.counter("transformer.assessments.failed").increment();
+            return;
+        }
+        pending.incrementAndGet();
+        Sinks.EmitResult result;
+        while ((result = sink.tryEmitNext(assessment)) == Sinks.EmitResult.FAIL_NON_SERIALIZED) {
+            Thread.onSpinWait();
+        }
+        if (result.isFailure()) {
+            pending.decrementAndGet();
+            log.error("Assessment buffer closed, assessment not saved: " + result);
+            Metrics.globalRegistry.counter("transformer.assessments.failed").increment();
+        }
+    }
+
+    /**
+     * @return Mono completing once the buffer has room for more assessments
+     */
+    public Mono<Void> awaitCapacity() {
+        if (pending.get() < capacity) {
+            return Mono.empty();
+        }
+        return Flux.interval(CAPACITY_POLL_INTERVAL)
+                .filter(tick -> pending.get() < capacity)
+                .next()
+                .then();
+    }
+
+    /**
+     * Insert the buffered assessments & stop accepting new ones
+     */
+    @PreDestroy
+    void close() throws InterruptedException {
+        while (sink.tryEmitComplete() == Sinks.EmitResult.FAIL_NON_SERIALIZED) {
+            Thread.onSpinWait();
+        }
+        if (!flushed.await(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+            log.error("Assessment buffer not flushed on shutdown, assessments lost: " + pending.get());
+        }
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    private Mono<Void> flush(List<Assessment> assessments) {
+        if (assessments.isEmpty()) {
+            return Mono.empty();
+        }
+        final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+        return insert(assessments)
+                .retryWhen(Retry.backoff(2, Duration.ofMillis(100)))
+                .doOnSuccess(rows -> {
+                    sample.stop(flushTimer);
+                    batchSize.record(assessments.size());
+                    log.info("Assessments saved: " + assessments.size());
+                })
+                .onErrorResume(e -> {
+                    log.error("Unable to save " + assessments.size() + " assessments: " + e.getMessage());
+                    Metrics.globalRegistry.counter("transformer.assessments.failed").increment(assessments.size());
+                    return Mono.empty();
+                })
+                .doFinally(signal -> pending.addAndGet(-assessments.size()))
+                .then();
+    }
+
+    /**
+     * Insert assessments in one statement, with the row values of {@link AssessmentWriteConverter}
+     */
+    private Mono<Integer> insert(List<Assessment> assessments) {
+        return Mono.defer(() -> {
+            StringBuilder sql = new StringBuilder("INSERT INTO assessment (")
+                    .append(String.join(", ", COLUMNS))
+                    .append(") VALUES ");
+            int index = 1;
+            for (int i = 0; i < assessments.size(); i++) {
+                sql.append(i == 0 ? "(" : ", (");
+                for (int c = 0; c < COLUMNS.size(); c++) {
+                    sql.append(c == 0 ? "$" : ", $").append(index++);
+                }
+                sql.append(")");
+            }
+            DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+            index = 0;
+            for (Assessment assessment : assessments) {
+                OutboundRow row = converter.convert(assessment);
+                for (String column : COLUMNS) {
+                    Parameter parameter = row.get(SqlIdentifier.unquoted(column));
+                    spec = parameter.hasValue()
+                            ? spec.bind(index++, parameter.getValue())
+                            : spec.bindNull(index++, parameter.getType());
+                }
+            }
+            return spec.fetch().rowsUpdated();
+        });
+    }
+}
@@ -0,0 +1,214 @@
+package com.uci.transformer.odk;
+
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps messages whose processing failed.
+ * <p>
+ * A failed record is sent as it was received, with its headers, to the retry topic with the attempt
+ * number & the time before which it should not be processed again, backing off exponentially. Once the
+ * attempts are exhausted it is sent to the dead letter topic with the cause of the last failure. The
+ * first failure's topic, partition & offset are kept on all retries, as is the version of the user's
+ * state the message failed with if known.
+ */
+@Slf4j
+@Component
+public class FailedMessageHandler {
+    public static final String ATTEMPT = "uci-retry-attempt";
+    public static final String NOT_BEFORE = "uci-retry-not-before";
+    public static final String STATE_VERSION = "uci-retry-state-version";
+    public static final String ERROR = "uci-error";
+    public static final String ERROR_STACKTRACE = "uci-error-stacktrace";
+    public static final String ORIGINAL_TOPIC = "uci-original-topic";
+    public static final String ORIGINAL_PARTITION = "uci-original-partition";
+    public static final String ORIGINAL_OFFSET = "uci-original-offset";
+
+    private static final int MAX_STACKTRACE_LENGTH = 8192;
+
+    @Value("${odk-transformer-retry}")
+    private String retryTopic;
+
+    @Value("${odk-transformer-dlt}")
+    private String deadLetterTopic;
+
+    @Value("${odk-consumer.retry.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${odk-consumer.retry.backoff-ms:1000}")
+    private long backoffMs;
+
+    @Value("${odk-consumer.retry.max-backoff-ms:60000}")
+    private long maxBackoffMs;
+
+    @Autowired
+    private OutboundPublisher outboundPublisher;
+
+    public boolean isRetry(ConsumerRecord<String, String> record) {
+        return retryTopic.equals(record.topic());
+    }
+
+    /**
+     * @param record record from the retry topic
+     * @return time in ms before which the record should not be processed
+     */
+    public long getNotBefore(ConsumerRecord<String, String> record) {
+        String notBefore = header(record.headers(), NOT_BEFORE);
+        try {
+            return notBefore == null ? 0 : Long.parseLong(notBefore);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param record record from the retry topic
+     * @return version of the state of the user the record failed with, null if unknown
+     */
+    public Long getStateVersion(ConsumerRecord<String, String> record) {
+        String stateVersion = header(record.headers(), STATE_VERSION);
+        try {
+            return stateVersion == null ? null : Long.valueOf(stateVersion);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Send a record whose processing failed to the retry topic, or to the dead letter topic once the
+     * attempts are exhausted. Errors while sending are logged.
+     *
+     * @param record failed record
+     * @param error  cause of the failure
+     * @return Mono completing once the record has been sent
+     */
+    public Mono<Void> retry(ConsumerRecord<String, String> record, Throwable error) {
+        return retry(record, error, null);
+    }
+
+    /**
+     * Send a record whose processing failed to the retry topic, or to the dead letter topic once the
+     * attempts are exhausted. Errors while sending are logged.
+     *
+     * @param record       failed record
+     * @param error        cause of the failure
+     * @param stateVersion version of the state of the user the record failed with, null if unknown
+     * @return Mono completing once the record has been sent
+     */
+    public Mono<Void> retry(ConsumerRecord<String, String> record, Throwable error, Long stateVersion) {
+        int attempt = getAttempt(record) + 1;
+        if (attempt > maxAttempts) {
+            return deadLetter(record, error);
+        }
+        long backoff = Math.min(maxBackoffMs, backoffMs << Math.min(attempt - 1, 20));
+        Headers headers = copyHeaders(record);
+        setHeader(headers, ATTEMPT, String.valueOf(attempt));
+        setHeader(headers, NOT_BEFORE, String.valueOf(System.currentTimeMillis() + backoff));
+        setHeader(headers, ERROR, describe(error));
+        if (stateVersion != null) {
+            setHeader(headers, STATE_VERSION, String.valueOf(stateVersion));
+        }
+        log.warn("Retrying message from " + record.topic() + " (attempt " + attempt + " of " + maxAttempts
+                + ") in " + backoff + " ms: " + describe(error));
+        Metrics.globalRegistry.counter("transformer.inbound.failed", "action", "retry").increment();
+        return send(new ProducerRecord<>(retryTopic, null, record.key(), record.value(), headers));
+    }
+
+    /**
+     * Send a record that could not be processed yet back to the retry topic, without counting it as a
+     * failed attempt. Errors while sending are logged.
+     *
+     * @param record    postponed record
+     * @param notBefore time in ms before which the record should not be processed
+     * @param reason    why the record was not processed
+     * @return Mono completing once the record has been sent
+     */
+    public Mono<Void> postpone(ConsumerRecord<String, String> record, long notBefore, Throwable reason) {
+        long retryAt = Math.max(notBefore, System.currentTimeMillis() + backoffMs);
+        Headers headers = copyHeaders(record);
+        setHeader(headers, NOT_BEFORE, String.valueOf(retryAt));
+        setHeader(headers, ERROR, describe(reason));
+        log.warn("Postponing message from " + record.topic() + " by " + (retryAt - System.currentTimeMillis())
+                + " ms: " + describe(reason));
+        Metrics.globalRegistry.counter("transformer.inbound.failed", "action", "postpone").increment();
+        return send(new ProducerRecord<>(retryTopic, null, record.key(), record.value(), headers));
+    }
+
+    /**
+     * Send a record whose processing failed to the dead letter topic. Errors while sending are logged.
+     *
+     * @param record failed record
+     * @param error  cause of the failure
+     * @return Mono completing once the record has been sent
+     */
+    public Mono<Void> deadLetter(ConsumerRecord<String, String> record, Throwable error) {
+        Headers headers = copyHeaders(record);
+        headers.remove(NOT_BEFORE);
+        setHeader(headers, ERROR, describe(error));
+        String stacktrace = ExceptionUtils.getStackTrace(error);
+        setHeader(headers, ERROR_STACKTRACE, stacktrace.length() > MAX_STACKTRACE_LENGTH
+                ? stacktrace.substring(0, MAX_STACKTRACE_LENGTH) : stacktrace);
+        log.error("Sending message from " + record.topic() + " to dead letter topic: " + describe(error));
+        Metrics.globalRegistry.counter("transformer.inbound.failed", "action", "dead_letter").increment();
+        return send(new ProducerRecord<>(deadLetterTopic, null, record.key(), record.value(), headers));
+    }
+
+    private Mono<Void> send(ProducerRecord<String, String> record) {
+        return outboundPublisher.send(record)
+                .onErrorResume(e -> {
+                    log.error("Unable to send failed message to " + record.topic() + ", message is lost: " + e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private int getAttempt(ConsumerRecord<String, String> record) {
+        String attempt = header(record.headers(), ATTEMPT);
+        try {
+            return attempt == null ? 0 : Integer.parseInt(attempt);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Headers of the record, with its position if it is not a retry already
+     */
+    private Headers copyHeaders(ConsumerRecord<String, String> record) {
+        Headers headers = new RecordHeaders();
+        for (Header header : record.headers()) {
+            headers.add(header.key(), header.value());
+        }
+        if (headers.lastHeader(ORIGINAL_TOPIC) == null) {
+            setHeader(headers, ORIGINAL_TOPIC, record.topic());
+            setHeader(headers, ORIGINAL_PARTITION, String.valueOf(record.partition()));
+            setHeader(headers, ORIGINAL_OFFSET, String.valueOf(record.offset()));
+        }
+        return headers;
+    }
+
+    private static String describe(Throwable error) {
+        return error.getClass().getName() + ": " + error.getMessage();
+    }
+
+    private static String header(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    private static void setHeader(Headers headers, String key, String value) {
+        headers.remove(key);
+        headers.add(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,182 @@
+package com.uci.transformer.odk;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker per form, so that a broken form does not keep the consumer busy failing.
+ * <p>
+ * A form's circuit opens after a number of consecutive messages failed by the form itself, not by a
+ * service it calls. Its messages are then short circuited & go to the retry topic, not before the circuit
+ * has been open for a while & without counting as a failed attempt. A single message is then let through,
+ * the circuit closes if it succeeds & opens again if it fails.
+ */
+@Slf4j
+@Component
+public class FormCircuitBreaker {
+
+    @Value("${odk-consumer.circuit-breaker.failure-threshold:5}")
+    private int failureThreshold;
+
+    @Value("${odk-consumer.circuit-breaker.open-ms:60000}")
+    private long openMs;
+
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        Gauge.builder("transformer.forms.circuit.open", this, FormCircuitBreaker::getOpenCircuits)
+                .description("Forms whose circuit is open")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * @param formID form id
+     * @return true if a message of the form can be processed
+     */
+    public boolean allow(String formID) {
+        if (formID == null) {
+            return true;
+        }
+        Circuit circuit = circuits.get(formID);
+        return circuit == null || circuit.allow(clock.getAsLong());
+    }
+
+    /**
+     * @param formID form id
+     * @return time in ms until which the form's circuit is open, 0 if it is not
+     */
+    public long getOpenUntil(String formID) {
+        if (formID == null) {
+            return 0;
+        }
+        Circuit circuit = circuits.get(formID);
+        return circuit == null ? 0 : circuit.getOpenUntil();
+    }
+
+    public void success(String formID) {
+        if (formID == null) {
+            return;
+        }
+        Circuit circuit = circuits.get(formID);
+        if (circuit != null && circuit.success()) {
+            log.info("Circuit closed for form: " + formID);
+        }
+    }
+
+    /**
+     * The message ended without telling whether the form works, eg. a service it calls failed or it was
+     * cancelled. If it was the trial message of an open circuit, the next message is let through.
+     *
+     * @param formID form id
+     */
+    public void release(String formID) {
+        if (formID == null) {
+            return;
+        }
+        Circuit circuit = circuits.get(formID);
+        if (circuit != null) {
+            circuit.release();
+        }
+    }
+
+    public void failure(String formID) {
+        if (formID == null) {
+            return;
+        }
+        Circuit circuit = circuits.computeIfAbsent(formID, id -> new Circuit());
+        if (circuit.failure(clock.getAsLong(), failureThreshold, openMs)) {
+            log.error("Circuit opened for form: " + formID + " for " + openMs + " ms");
+            Metrics.globalRegistry.counter("transformer.forms.circuit.opened", "form", formID).increment();
+        }
+    }
+
+    int getOpenCircuits() {
+        long now = clock.getAsLong();
+        int open = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.isOpen(now)) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    private static class Circuit {
+        private int consecutiveFailures = 0;
+        private long openUntil = 0;
+        private boolean trialInFlight = false;
+
+        synchronized boolean allow(long now) {
+            if (openUntil == 0) {
+                return true;
+            }
+            if (now < openUntil || trialInFlight) {
+                return false;
+            }
+            trialInFlight = true;
+            return true;
+        }
+
+        /**
+         * @return true if the circuit was open & is now closed
+         */
+        synchronized boolean success() {
+            boolean wasOpen = openUntil != 0;
+            consecutiveFailures = 0;
+            openUntil = 0;
+            trialInFlight = false;
+            return wasOpen;
+        }
+
+        synchronized void release() {
+            trialInFlight = false;
+        }
+
+        /**
+         * @return true if the circuit opens
+         */
+        synchronized boolean failure(long now, int threshold, long openMs) {
+            consecutiveFailures++;
+            if (trialInFlight || (openUntil == 0 && consecutiveFailures >= threshold)) {
+                trialInFlight = false;
+                openUntil = now + openMs;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isOpen(long now) {
+            return openUntil != 0 && now < openUntil;
+        }
+
+        synchronized long getOpenUntil() {
+            return openUntil;
+        }
+    }
+
+    /**
+     * A message was not processed as the circuit of its form is open
+     */
+    @Getter
+    public static class CircuitOpenException extends RuntimeException {
+        /* Time in ms until which the circuit is open */
+        private final long openUntil;
+
+        public CircuitOpenException(String formID, long openUntil) {
+            super("Circuit open for form: " + formID);
+            this.openUntil = openUntil;
+        }
+    }
+}
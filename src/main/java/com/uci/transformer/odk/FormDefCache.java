@@ -0,0 +1,450 @@
+package com.uci.transformer.odk;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.uci.transformer.odk.model.Form;
+import com.uci.transformer.odk.persistance.FormsDao;
+import com.uci.transformer.odk.persistance.JsonDB;
+import com.uci.transformer.odk.utilities.FileUtils;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Process wide cache of parsed form definitions.
+ * <p>
+ * A form is parsed from its xml only once per form path & md5 hash. The pristine parsed FormDef is kept
+ * as an externalized snapshot and every caller gets its own copy deserialized from it, as FormDef
+ * is mutated while a form is being filled. Snapshots are also written to files named by the form's md5
+ * hash, outside the forms folder that is emptied on startup, and on a miss a snapshot file of the same
+ * md5 hash is preferred over parsing the xml. The forms registry entries are cached by form path,
+ * so the forms db is only queried the first time a form is loaded. Forms missing from the registry are
+ * remembered for a short while, and their files hashed again only once modified.
+ */
+@Slf4j
+public class FormDefCache {
+    private static final long DEFAULT_MAX_WEIGHT_MB = 256;
+    private static final long MAX_FORMS = 10000;
+    private static final String DEFAULT_SNAPSHOT_DIR = "/tmp/form-snapshots";
+    private static final String SNAPSHOT_EXTENSION = ".formdef";
+    private static final long UNREGISTERED_FORM_EXPIRY_SECONDS = 60;
+    private static volatile FormDefCache instance = new FormDefCache();
+
+    private final Cache<Key, FormTemplate> cache;
+    /* Forms registry entry by form path */
+    private final Cache<String, Form> forms;
+    /* Paths of forms not in the registry, looked up again once expired as the form may be registered since */
+    private final Cache<String, Boolean> unregisteredForms;
+    /* Md5 hash of the files of forms not in the registry, by form path */
+    private final Cache<String, FileHash> fileHashes;
+    private final File snapshotDir;
+
+    private FormDefCache() {
+        FormWarmup.registerModules();
+
+        String envMaxWeight = System.getenv("FORM_DEF_CACHE_MAX_WEIGHT_MB");
+        long maxWeightMb = DEFAULT_MAX_WEIGHT_MB;
+        try {
+            if (envMaxWeight != null && !envMaxWeight.isEmpty()) {
+                maxWeightMb = Long.parseLong(envMaxWeight);
+            }
+        } catch (NumberFormatException e) {
+            log.error("Invalid FORM_DEF_CACHE_MAX_WEIGHT_MB: " + envMaxWeight);
+        }
+
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeightMb * 1024 * 1024)
+                .weigher((Key key, FormTemplate template) -> template.getWeight())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.cache, "formDefCache");
+        this.forms = Caffeine.newBuilder()
+                .maximumSize(MAX_FORMS)
+                .build();
+        this.unregisteredForms = Caffeine.newBuilder()
+                .maximumSize(MAX_FORMS)
+                .expireAfterWrite(Duration.ofSeconds(UNREGISTERED_FORM_EXPIRY_SECONDS))
+                .build();
+        this.fileHashes = Caffeine.newBuilder()
+                .maximumSize(MAX_FORMS)
+                .build();
+
+        String envSnapshotDir = System.getenv("FORM_DEF_SNAPSHOT_DIR");
+        this.snapshotDir = new File(envSnapshotDir != null && !envSnapshotDir.isEmpty() ? envSnapshotDir : DEFAULT_SNAPSHOT_DIR);
+    }
+
+    public static FormDefCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get a fresh copy of the form definition for the given form xml, parsing the xml only on a cache miss.
+     *
+     * @param formXml form xml file
+     * @return FormDef, or null if the form could not be parsed
+     */
+    public FormDef getFormDef(File formXml) {
+        FormTemplate template = getTemplate(formXml);
+        if (template == null) {
+            return null;
+        }
+        try {
+            return template.newFormDef();
+        } catch (IOException | DeserializationException e) {
+            log.error("Unable to copy cached form definition for " + formXml.getAbsolutePath() + ": " + e.getMessage());
+            invalidate(formXml.getAbsolutePath());
+            return parseFormDef(formXml);
+        }
+    }
+
+    /**
+     * Get a fresh copy of a form definition derived from the given form xml, eg. with injected choices.
+     * Each variant of a form is parsed once, and dropped along with the form on invalidation.
+     *
+     * @param formXml form xml file the variant is derived from
+     * @param variant unique name of the variant, eg. a hash of the injected choices
+     * @param source  source of the variant's xml
+     * @return FormDef, or null if the form could not be parsed
+     */
+    public FormDef getFormDef(File formXml, String variant, FormSource source) {
+        Key key = new Key(formXml.getAbsolutePath(), getMd5Hash(formXml, findForm(formXml)), variant);
+        FormTemplate template = cache.get(key, k -> {
+            InputStream is = null;
+            try {
+                final long start = System.currentTimeMillis();
+                is = source.open();
+                FormDef formDef = XFormUtils.getFormFromInputStream(is);
+                log.info("Form variant " + variant + " parsed for: " + k.getFormPath() + " in " + (System.currentTimeMillis() - start) + " ms");
+                return FormTemplate.of(formDef);
+            } catch (Exception e) {
+                log.error("Unable to parse form variant " + variant + " for " + k.getFormPath() + ": " + e.getMessage());
+                return null;
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        });
+        if (template == null) {
+            return null;
+        }
+        try {
+            return template.newFormDef();
+        } catch (IOException | DeserializationException e) {
+            log.error("Unable to copy cached form variant " + variant + " for " + formXml.getAbsolutePath() + ": " + e.getMessage());
+            cache.invalidate(key);
+            return null;
+        }
+    }
+
+    /**
+     * Load a form into the cache, looking it up in the forms registry & reading or hashing its file as
+     * needed. The next calls for the form only read the cache, until the form file is modified.
+     *
+     * @param formXml form xml file
+     */
+    public void preload(File formXml) {
+        getTemplate(formXml);
+    }
+
+    /**
+     * Write the externalized form definition to the snapshot folder, so that it can be loaded without
+     * parsing the xml after a restart. A snapshot already written for the same md5 hash is reused.
+     *
+     * @param formXml form xml file
+     * @return snapshot file path, or null if the snapshot could not be written
+     */
+    public String writeSnapshot(File formXml) {
+        Form form = findForm(formXml);
+        FormTemplate template = getTemplate(formXml, form);
+        if (template == null) {
+            return null;
+        }
+        String md5Hash = getMd5Hash(formXml, form);
+        if (md5Hash == null) {
+            return null;
+        }
+        File snapshotFile = getSnapshotFile(md5Hash);
+        if (snapshotFile.exists()) {
+            return snapshotFile.getAbsolutePath();
+        }
+        /* Written aside & moved, so that a snapshot file is never read half written */
+        File tempFile = new File(snapshotDir, snapshotFile.getName() + ".tmp");
+        OutputStream os = null;
+        try {
+            FileUtils.checkMediaPath(snapshotDir);
+            os = new FileOutputStream(tempFile);
+            os.write(template.snapshot);
+            os.flush();
+            os.close();
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Form definition snapshot written to: " + snapshotFile.getAbsolutePath());
+            return snapshotFile.getAbsolutePath();
+        } catch (Exception e) {
+            log.error("Unable to write form definition snapshot for " + formXml.getAbsolutePath() + ": " + e.getMessage());
+            FileUtils.deleteAndReport(tempFile);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        return null;
+    }
+
+    /**
+     * Get the xpath to FormIndex table of a form, building it from a pristine instance of the form on
+     * first use.
+     *
+     * @param formXml form xml file
+     * @return FormIndexLookup, or null if the form could not be loaded
+     */
+    public FormIndexLookup getIndexLookup(File formXml) {
+        FormTemplate template = getTemplate(formXml);
+        if (template == null) {
+            return null;
+        }
+        try {
+            return template.getIndexLookup();
+        } catch (IOException | DeserializationException e) {
+            log.error("Unable to build form index lookup for " + formXml.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the question catalog of a form
+     *
+     * @param formXml form xml file
+     * @return FormQuestionCatalog, or null if the form could not be loaded
+     */
+    public FormQuestionCatalog getQuestionCatalog(File formXml) {
+        FormTemplate template = getTemplate(formXml);
+        if (template == null) {
+            return null;
+        }
+        return template.questionCatalog;
+    }
+
+    private FormTemplate getTemplate(File formXml) {
+        return getTemplate(formXml, findForm(formXml));
+    }
+
+    private FormTemplate getTemplate(File formXml, Form form) {
+        Key key = new Key(formXml.getAbsolutePath(), getMd5Hash(formXml, form), "");
+        return cache.get(key, k -> {
+            FormTemplate snapshot = readSnapshot(k.getMd5Hash());
+            if (snapshot != null) {
+                return snapshot;
+            }
+            FormDef formDef = parseFormDef(formXml);
+            if (formDef == null) {
+                return null;
+            }
+            try {
+                return FormTemplate.of(formDef);
+            } catch (IOException e) {
+                log.error("Unable to snapshot form definition for " + k.getFormPath() + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Load the snapshot written for the md5 hash of a form, if any. A snapshot that cannot be
+     * deserialized (e.g. written by another JavaRosa version) is deleted.
+     */
+    private FormTemplate readSnapshot(String md5Hash) {
+        if (md5Hash == null) {
+            return null;
+        }
+        File snapshotFile = getSnapshotFile(md5Hash);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            FormTemplate template = new FormTemplate(Files.readAllBytes(snapshotFile.toPath()));
+            template.newFormDef();
+            log.info("Form definition loaded from snapshot: " + snapshotFile.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+            return template;
+        } catch (Exception e) {
+            log.error("Unable to load form definition snapshot " + snapshotFile.getAbsolutePath() + ", falling back to xml: " + e.getMessage());
+            FileUtils.deleteAndReport(snapshotFile);
+            return null;
+        }
+    }
+
+    private File getSnapshotFile(String md5Hash) {
+        return new File(snapshotDir, md5Hash + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Remove all cached versions of a form, to be called when the form file is replaced or deleted.
+     *
+     * @param formFilePath form file path
+     */
+    public void invalidate(String formFilePath) {
+        if (formFilePath == null) {
+            return;
+        }
+        String path = new File(formFilePath).getAbsolutePath();
+        cache.asMap().keySet().removeIf(key -> key.getFormPath().equals(path));
+        forms.invalidate(path);
+        unregisteredForms.invalidate(path);
+        fileHashes.invalidate(path);
+        log.info("Form definition cache invalidated for: " + path);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        forms.invalidateAll();
+        unregisteredForms.invalidateAll();
+        fileHashes.invalidateAll();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private FormDef parseFormDef(File formXml) {
+        InputStream fis = null;
+        try {
+            final long start = System.currentTimeMillis();
+            fis = new FileInputStream(formXml);
+            FormDef formDef = XFormUtils.getFormFromInputStream(fis);
+            log.info("Form parsed from xml: " + formXml.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+            return formDef;
+        } catch (Exception e) {
+            log.error("Unable to parse form xml " + formXml.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+        return null;
+    }
+
+    /**
+     * Form md5 hash from the forms registry, falling back to hashing the file
+     * for forms not downloaded through FormDownloader. The file is hashed again only once modified.
+     */
+    private String getMd5Hash(File formXml, Form form) {
+        if (form != null && form.getMd5Hash() != null) {
+            return form.getMd5Hash();
+        }
+        String path = formXml.getAbsolutePath();
+        long lastModified = formXml.lastModified();
+        long length = formXml.length();
+        FileHash fileHash = fileHashes.getIfPresent(path);
+        if (fileHash != null && fileHash.getLastModified() == lastModified && fileHash.getLength() == length) {
+            return fileHash.getMd5Hash();
+        }
+        String md5Hash = FileUtils.getMd5Hash(formXml);
+        if (md5Hash != null) {
+            fileHashes.put(path, new FileHash(lastModified, length, md5Hash));
+        }
+        return md5Hash;
+    }
+
+    private Form findForm(File formXml) {
+        String path = formXml.getAbsolutePath();
+        Form form = forms.getIfPresent(path);
+        if (form != null || unregisteredForms.getIfPresent(path) != null) {
+            return form;
+        }
+        try {
+            FormsDao dao = new FormsDao(JsonDB.getInstance().getDB());
+            List<Form> records = dao.getFormsCursorForFormFilePath(path);
+            if (records != null && !records.isEmpty()) {
+                form = records.get(0);
+                forms.put(path, form);
+                return form;
+            }
+            unregisteredForms.put(path, Boolean.TRUE);
+        } catch (Exception e) {
+            log.error("Unable to find form in db: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Xml source of a form variant
+     */
+    public interface FormSource {
+        InputStream open() throws Exception;
+    }
+
+    @Value
+    static class FileHash {
+        long lastModified;
+        long length;
+        String md5Hash;
+    }
+
+    @Value
+    static class Key {
+        String formPath;
+        String md5Hash;
+        /* Empty for the form as in the file */
+        String variant;
+    }
+
+    /**
+     * Externalized snapshot of a pristine (uninitialized) form definition, along with
+     * the form's xpath lookup table once it has been built & its question catalog.
+     */
+    static class FormTemplate {
+        private final byte[] snapshot;
+        private final FormQuestionCatalog questionCatalog = new FormQuestionCatalog();
+        private volatile FormIndexLookup indexLookup;
+
+        FormTemplate(byte[] snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        static FormTemplate of(FormDef formDef) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            formDef.writeExternal(dos);
+            dos.flush();
+            return new FormTemplate(bos.toByteArray());
+        }
+
+        FormDef newFormDef() throws IOException, DeserializationException {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(snapshot));
+            FormDef formDef = new FormDef();
+            formDef.readExternal(dis, ExtUtil.defaultPrototypes());
+            return formDef;
+        }
+
+        FormIndexLookup getIndexLookup() throws IOException, DeserializationException {
+            FormIndexLookup lookup = indexLookup;
+            if (lookup == null) {
+                synchronized (this) {
+                    lookup = indexLookup;
+                    if (lookup == null) {
+                        /* From a new instance of the form, the same for all users */
+                        FormDef formDef = newFormDef();
+                        formDef.initialize(true, new InstanceInitializationFactory());
+                        lookup = FormIndexLookup.build(new FormEntryModel(formDef));
+                        indexLookup = lookup;
+                    }
+                }
+            }
+            return lookup;
+        }
+
+        int getWeight() {
+            return snapshot.length;
+        }
+    }
+}
@@ -153,6 +153,7 @@ public class FormDownloader {
                     File formMediaPath = new File(uriResult.getFormMediaPath());
                     FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                 }
+                saveFormDefSnapshot(uriResult);
                 return true;
             } else {
                 log.error("Form uri = null");
@@ -171,6 +172,24 @@ public class FormDownloader {
         return false;
     }
 
+    /**
+     * Serialize the parsed form definition & record its path in the form, so that forms
+     * are not parsed from xml on the first message after a restart.
+     *
+     * @param form the installed form
+     */
+    private void saveFormDefSnapshot(Form form) {
+        try {
+            String snapshotPath = FormDefCache.getInstance().writeSnapshot(new File(form.getFormFilePath()));
+            if (snapshotPath != null) {
+                form.setJrCacheFilePath(snapshotPath);
+                formsDao.updateForm(form);
+            }
+        } catch (Exception e) {
+            log.error("Unable to save form definition snapshot: " + e.getMessage());
+        }
+    }
+
     private void cleanUp(FileResult fileResult, File fileOnCancel, String tempMediaPath) {
         if (fileResult == null) {
             log.error("The user cancelled (or an exception happened) the download of a form at the "
@@ -181,6 +200,7 @@ public class FormDownloader {
                 formsDao.deleteFormsFromMd5Hash(md5Hash);
             }
             FileUtils.deleteAndReport(fileResult.getFile());
+            FormDefCache.getInstance().invalidate(fileResult.getFile().getAbsolutePath());
         }
 
         FileUtils.deleteAndReport(fileOnCancel);
@@ -349,6 +369,8 @@ public class FormDownloader {
 
         if (file.exists()) {
             log.error(String.format("Copied %s over %s", tempFile.getAbsolutePath(), file.getAbsolutePath()));
+            /* Drop any parsed definition of the file that was replaced */
+            FormDefCache.getInstance().invalidate(file.getAbsolutePath());
             // FileUtils.deleteAndReport(tempFile);
         } else {
             String msg = String.format("Could not copy \\'%1$s\\' over \\'%2$s\\'. Reason: %3$s",
@@ -0,0 +1,138 @@
+package com.uci.transformer.odk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable xpath to FormIndex table of a form, built once by walking the structure of a pristine
+ * instance of the form.
+ * <p>
+ * The walk does not evaluate relevance, so every question & group of the form is present. The repeats,
+ * their instances & the prompts to add one depend on each user's instance & are left out, callers
+ * should fall back to stepping through the form for those. A match is only returned if it is relevant
+ * in the caller's instance, as stepping through the form would skip it otherwise.
+ */
+@Slf4j
+public class FormIndexLookup {
+    private final Map<String, FormIndex> indexes;
+
+    private FormIndexLookup(Map<String, FormIndex> indexes) {
+        this.indexes = Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * Build the table from the model of a pristine instance of the form, not one with a user's answers
+     * imported. The current index of the model is not changed.
+     *
+     * @param model form entry model
+     * @return FormIndexLookup
+     */
+    public static FormIndexLookup build(FormEntryModel model) {
+        final long start = System.currentTimeMillis();
+        Map<String, FormIndex> indexes = new HashMap<>();
+        FormIndex index = model.incrementIndex(FormIndex.createBeginningOfFormIndex(), true);
+        while (index != null && index.isInForm()) {
+            int event = model.getEvent(index);
+            if (!isRepeated(event, index)) {
+                /* Keep the first match, same as stepping through the form */
+                indexes.putIfAbsent(toXPath(event, index), index);
+            }
+            index = model.incrementIndex(index, true);
+        }
+        log.info("Form index lookup built with " + indexes.size() + " entries in " + (System.currentTimeMillis() - start) + " ms");
+        return new FormIndexLookup(indexes);
+    }
+
+    /**
+     * @param xpath xpath as returned by toXPath
+     * @return FormIndex, or null if the xpath is not in the table
+     */
+    public FormIndex get(String xpath) {
+        return indexes.get(xpath);
+    }
+
+    /**
+     * @param xpath xpath as returned by toXPath
+     * @param model form entry model of the instance being filled
+     * @return FormIndex if the xpath is in the table & relevant in the instance, else null
+     */
+    public FormIndex find(String xpath, FormEntryModel model) {
+        FormIndex index = indexes.get(xpath);
+        if (index == null || !model.isIndexRelevant(index) || !xpath.equals(toXPath(model.getEvent(index), index))) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * @return xpaths in the table
+     */
+    public Set<String> xpaths() {
+        return indexes.keySet();
+    }
+
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * @return true if the index is a repeat, in one or a prompt to add one
+     */
+    private static boolean isRepeated(int event, FormIndex index) {
+        if (event == FormEntryController.EVENT_REPEAT || event == FormEntryController.EVENT_PROMPT_NEW_REPEAT
+                || event == FormEntryController.EVENT_REPEAT_JUNCTURE) {
+            return true;
+        }
+        for (FormIndex level = index; level != null; level = level.getNextLevel()) {
+            if (level.getInstanceIndex() != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Xpath of a form index, prefixed with its event type
+     *
+     * @param event form entry event at the index
+     * @param index form index
+     * @return xpath
+     */
+    public static String toXPath(int event, FormIndex index) {
+        String value;
+        switch (event) {
+            case FormEntryController.EVENT_BEGINNING_OF_FORM:
+                value = "beginningOfForm";
+                break;
+            case FormEntryController.EVENT_END_OF_FORM:
+                value = "endOfForm";
+                break;
+            case FormEntryController.EVENT_GROUP:
+                value = "group." + index.getReference().toString();
+                break;
+            case FormEntryController.EVENT_QUESTION:
+                value = "question." + index.getReference().toString();
+                break;
+            case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
+                value = "promptNewRepeat." + index.getReference().toString();
+                break;
+            case FormEntryController.EVENT_REPEAT:
+                value = "repeat." + index.getReference().toString();
+                break;
+            case FormEntryController.EVENT_REPEAT_JUNCTURE:
+                value = "repeatJuncture." + index.getReference().toString();
+                break;
+            default:
+                value = "unexpected";
+                break;
+        }
+        return value;
+    }
+}
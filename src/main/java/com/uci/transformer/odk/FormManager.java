@@ -2,7 +2,6 @@ package com.uci.transformer.odk;
 
 import lombok.extern.java.Log;
 import messagerosa.core.model.XMessagePayload;
-import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.javarosa.core.model.*;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
@@ -15,14 +14,10 @@ import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.model.xform.XFormSerializingVisitor;
-import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.xform.parse.XFormParser;
-import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 
 import java.io.*;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
 import java.util.List;
 
 @Log
@@ -33,6 +28,7 @@ public class FormManager {
     String answer;
     String instanceXML;
     public String formPath;
+    FormIndexLookup formIndexLookup;
     public FormManager(String xpath, String answer, String instanceXML, String formPath) {
         this.xpath = xpath;
         this.answer = answer;
@@ -74,7 +70,7 @@ public class FormManager {
     }
 
     public ServiceResponse start() {
-        new XFormsModule().registerModule();
+        FormWarmup.registerModules();
         FECWrapper fecWrapper = loadForm(); // If instance load from instance (If form is filled load new)
         formController = fecWrapper.controller;
         String currentPath = "";
@@ -209,12 +205,8 @@ public class FormManager {
 
 
     public static void importData(String instanceXML, FormEntryController fec) throws IOException, RuntimeException {
-        // convert files into a byte array
-        //byte[] fileBytes = org.apache.commons.io.FileUtils.readFileToByteArray(instanceFile);
-        byte[] fileBytes = instanceXML.getBytes();
-
         // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        TreeElement savedRoot = InstanceRestorer.restoreRoot(instanceXML);
         TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
         // weak check for matching forms
@@ -257,10 +249,16 @@ public class FormManager {
                 log.severe("Unexpected string from XPath");
                 throw new IllegalArgumentException("unexpected string from XPath");
             default:
+                if (formIndexLookup != null) {
+                    FormIndex index = formIndexLookup.find(xpath, fec.getModel());
+                    if (index != null) {
+                        return index;
+                    }
+                }
+                // not in the lookup table, e.g. in a repeat or not relevant in this instance,
+                // so step through the entire form until the XPath of a form entry matches
                 FormIndex returned = null;
                 FormIndex saved = fec.getModel().getFormIndex();
-                // the only way I know how to do this is to step through the entire form
-                // until the XPath of a form entry matches that of the supplied XPath
                 try {
                     jumpToIndex(fec, FormIndex.createBeginningOfFormIndex());
                     int event = fec.stepToNextEvent();
@@ -286,34 +284,7 @@ public class FormManager {
      * @return xpath value for this index
      */
     public String getXPath(FormEntryController fec, FormIndex index) {
-        String value;
-        switch (getEvent(fec)) {
-            case FormEntryController.EVENT_BEGINNING_OF_FORM:
-                value = "beginningOfForm";
-                break;
-            case FormEntryController.EVENT_END_OF_FORM:
-                value = "endOfForm";
-                break;
-            case FormEntryController.EVENT_GROUP:
-                value = "group." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_QUESTION:
-                value = "question." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                value = "promptNewRepeat." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_REPEAT:
-                value = "repeat." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_REPEAT_JUNCTURE:
-                value = "repeatJuncture." + index.getReference().toString();
-                break;
-            default:
-                value = "unexpected";
-                break;
-        }
-        return value;
+        return FormIndexLookup.toXPath(getEvent(fec), index);
     }
 
     /**
@@ -421,21 +392,8 @@ public class FormManager {
     }
 
     private FormDef createFormDefFromCacheOrXml(String formPath, File formXml) {
-
-        FileInputStream fis = null;
-        // no binary, read from xml
-        try {
-            log.info(String.format("Attempting to load from: %s", formXml.getAbsolutePath()));
-            Path path = FileSystems.getDefault().getPath("CensusBot.xml");
-            fis = new FileInputStream(formXml);
-            FormDef fd = XFormUtils.getFormFromInputStream(fis);
-            return fd;
-        } catch (Exception e) {
-            log.severe(e.getMessage());
-        } finally {
-            IOUtils.closeQuietly(fis);
-        }
-        return null;
+        log.info(String.format("Attempting to load from: %s", formXml.getAbsolutePath()));
+        return FormDefCache.getInstance().getFormDef(formXml);
     }
 
     public QuestionDef getQuestionDefForNode(FormEntryController fec, TreeElement t) {
@@ -491,6 +449,8 @@ public class FormManager {
             e.printStackTrace();
         }
 
+        formIndexLookup = FormDefCache.getInstance().getIndexLookup(formXml);
+
         if (xpath != null && !xpath.isEmpty()) {
             FormIndex idx = getIndexFromXPath(xpath, fec);
             fec.jumpToIndex(idx);
@@ -13,4 +13,12 @@ public class FormManagerParams {
     String previousPath;
     String currentAnswer;
     String instanceXMlPrevious;
+    /* Version of the saved state the previous path & instance were read from, null if unknown */
+    Long stateVersion;
+    /* Language of the user read with the state, null if not cached */
+    String language;
+
+    public FormManagerParams(String previousPath, String currentAnswer, String instanceXMlPrevious) {
+        this(previousPath, currentAnswer, instanceXMlPrevious, null, null);
+    }
 }
@@ -0,0 +1,253 @@
+package com.uci.transformer.odk;
+
+import com.uci.adapter.utils.CommonUtils;
+import com.uci.transformer.odk.entity.Question;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import messagerosa.core.model.ButtonChoice;
+import messagerosa.core.model.MediaCategory;
+import messagerosa.core.model.StylingTag;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled question data of a form, keyed by locale & xpath: rendered question text, choices,
+ * bind attributes & question type.
+ * <p>
+ * The entries of a locale are compiled from the form entry model the first time that locale is asked for.
+ * Question text is only compiled for forms without output values, as it depends on the answers otherwise.
+ * Choices are only compiled for static select one questions.
+ */
+@Slf4j
+public class FormQuestionCatalog {
+    private static final String DEFAULT_LOCALE = "";
+
+    private final Map<String, Map<String, QuestionEntry>> localeEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Get the compiled entry of a question
+     *
+     * @param model form entry model, its current language is used as the locale
+     * @param xpath question xpath
+     * @return QuestionEntry, or null if the xpath is not a question of the form
+     */
+    public QuestionEntry get(FormEntryModel model, String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        String locale = model.getLanguage() != null ? model.getLanguage() : DEFAULT_LOCALE;
+        return localeEntries.computeIfAbsent(locale, l -> compile(model)).get(xpath);
+    }
+
+    private static Map<String, QuestionEntry> compile(FormEntryModel model) {
+        final long start = System.currentTimeMillis();
+        boolean staticText = model.getForm().getOutputFragments() == null
+                || model.getForm().getOutputFragments().isEmpty();
+        Map<String, QuestionEntry> entries = new HashMap<>();
+        FormIndex index = model.incrementIndex(FormIndex.createBeginningOfFormIndex(), true);
+        while (index != null && index.isInForm()) {
+            if (model.getEvent(index) == FormEntryController.EVENT_QUESTION) {
+                String xpath = FormIndexLookup.toXPath(FormEntryController.EVENT_QUESTION, index);
+                try {
+                    entries.putIfAbsent(xpath, QuestionEntry.of(model, model.getQuestionPrompt(index), staticText));
+                } catch (Exception e) {
+                    log.info("Unable to compile question " + xpath + ": " + e.getMessage());
+                }
+            }
+            index = model.incrementIndex(index, true);
+        }
+        log.info("Question catalog compiled for locale " + model.getLanguage() + " with " + entries.size()
+                + " questions in " + (System.currentTimeMillis() - start) + " ms");
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Question text followed by the help text, if any
+     */
+    public static String renderQuestionText(String questionText, String helpText) {
+        if (helpText == null || helpText.equals("")) {
+            return "" + questionText + "" + " \n\n";
+        }
+        return "" + questionText + "" + " \n" + "_" + helpText + "_" + " \n\n";
+    }
+
+    /**
+     * Get Choice Label text as per current locale
+     *
+     * @param model form entry model
+     * @param item  select choice
+     * @return label
+     */
+    public static String getLocaleChoiceText(FormEntryModel model, SelectChoice item) {
+        String locale = "";
+        if (model.getLanguages() != null && model.getLanguage() != null && !model.getLanguage().isEmpty()) {
+            locale = model.getForm().getLocalizer().getLocale();
+        }
+        String label = item.getLabelInnerText();
+        if (!locale.isEmpty() && item.getTextID() != null && !item.getTextID().isEmpty()) {
+            label = model.getForm().getLocalizer().getLocaleData(locale).get(item.getTextID());
+        }
+        return label;
+    }
+
+    /**
+     * Key of a choice from its text, if the text starts with a number (eg. "1 Yes" or "1. Yes")
+     *
+     * @param text choice text
+     * @return key, or null if the text does not start with a number
+     */
+    public static String getChoiceKeyFromText(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            String[] a = text.split(" ");
+            if (a[0] != null && !a[0].isEmpty()) {
+                Integer.parseInt(a[0]);
+                return a[0];
+            }
+        } catch (NumberFormatException ex) {
+            String[] b = text.split(".");
+            try {
+                if (b[0] != null && !b[0].isEmpty()) {
+                    Integer.parseInt(b[0]);
+                    return b[0];
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException exc) {
+                // do nothing
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // do nothing
+        }
+        return null;
+    }
+
+    @Getter
+    public static class QuestionEntry {
+        private final Question.QuestionType questionType;
+        /* Null if the text has to be rendered from the form entry prompt */
+        private final String questionText;
+        /* Null if the choices have to be read from the form entry prompt */
+        private final List<Choice> choices;
+        private final BindTags bindTags;
+
+        private QuestionEntry(Question.QuestionType questionType, String questionText, List<Choice> choices, BindTags bindTags) {
+            this.questionType = questionType;
+            this.questionText = questionText;
+            this.choices = choices;
+            this.bindTags = bindTags;
+        }
+
+        static QuestionEntry of(FormEntryModel model, FormEntryPrompt prompt, boolean staticText) {
+            int controlType = prompt.getControlType();
+            Question.QuestionType questionType;
+            switch (controlType) {
+                case Constants.CONTROL_SELECT_ONE:
+                    questionType = Question.QuestionType.SINGLE_SELECT;
+                    break;
+                case Constants.CONTROL_SELECT_MULTI:
+                    questionType = Question.QuestionType.MULTI_SELECT;
+                    break;
+                default:
+                    questionType = Question.QuestionType.STRING;
+            }
+
+            String questionText = null;
+            if (staticText) {
+                /* A question without text is rendered empty, as by the menu manager */
+                questionText = prompt.getQuestionText() == null
+                        ? "" : renderQuestionText(prompt.getQuestionText(), prompt.getHelpText());
+            }
+
+            List<Choice> choices = null;
+            if (controlType != Constants.CONTROL_SELECT_ONE) {
+                choices = Collections.emptyList();
+            } else if (staticText && prompt.getQuestion().getDynamicChoices() == null) {
+                List<Choice> items = new ArrayList<>();
+                List<SelectChoice> selectChoices = prompt.getSelectChoices();
+                if (selectChoices != null) {
+                    for (SelectChoice item : selectChoices) {
+                        String text = getLocaleChoiceText(model, item);
+                        String key = getChoiceKeyFromText(text);
+                        items.add(new Choice(key != null ? key : item.getValue(), text));
+                    }
+                }
+                choices = Collections.unmodifiableList(items);
+            }
+
+            return new QuestionEntry(questionType, questionText, choices, BindTags.of(prompt.getBindAttributes()));
+        }
+
+        /**
+         * New button choices for a message payload, as payloads are modified by their users
+         */
+        public ArrayList<ButtonChoice> newButtonChoices() {
+            ArrayList<ButtonChoice> buttonChoices = new ArrayList<>();
+            for (Choice choice : choices) {
+                buttonChoices.add(ButtonChoice.builder().key(choice.key).text(choice.text).build());
+            }
+            return buttonChoices;
+        }
+    }
+
+    static class Choice {
+        private final String key;
+        private final String text;
+
+        Choice(String key, String text) {
+            this.key = key;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Bind attributes of a question, which are applied to its message payload
+     */
+    @Getter
+    public static class BindTags {
+        private StylingTag stylingTag;
+        private MediaCategory mediaCategory;
+        private String flow;
+        private Integer questionIndex;
+        private String caption;
+
+        public static BindTags of(List<TreeElement> bindAttributes) {
+            BindTags tags = new BindTags();
+            if (bindAttributes == null) {
+                return tags;
+            }
+            for (TreeElement attribute : bindAttributes) {
+                if (attribute.getName().equals("stylingTags")) {
+                    StylingTag tag = StylingTag.getEnumByText(attribute.getAttributeValue().toString());
+                    if (tag != null) {
+                        /* If styling tag is media type & correspond to a valid media category */
+                        if (CommonUtils.isStylingTagMediaType(tag) && CommonUtils.getMediaCategoryFromStylingTag(tag) != null) {
+                            tags.mediaCategory = CommonUtils.getMediaCategoryFromStylingTag(tag);
+                        } else {
+                            tags.stylingTag = tag;
+                        }
+                    }
+                } else if (attribute.getName().equals("flow")) {
+                    tags.flow = attribute.getAttributeValue().toString();
+                } else if (attribute.getName().equals("index")) {
+                    try {
+                        tags.questionIndex = Integer.parseInt(attribute.getAttributeValue());
+                    } catch (IllegalArgumentException e) {
+                        log.info("Exception in bind tags for parse int: " + e.getMessage());
+                    }
+                } else if (attribute.getName().equals("caption")) {
+                    tags.caption = attribute.getAttributeValue();
+                }
+            }
+            return tags;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.model.Form;
+import com.uci.transformer.odk.persistance.FormsDao;
+import com.uci.transformer.odk.persistance.JsonDB;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.javarosa.model.xform.XFormsModule;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Startup phase run before the Kafka receiver starts consuming.
+ * <p>
+ * JavaRosa modules are registered once for the process. Every form in the forms registry is then
+ * loaded into the FormDefCache, and a few synthetic sessions walk through each form so that its
+ * xpath lookup table & question catalog are built and the message path is JIT compiled. The sessions
+ * have no user, so nothing is looked up in or saved to the cache & db.
+ */
+@Slf4j
+public class FormWarmup {
+    private static final int DEFAULT_ITERATIONS = 3;
+    private static final AtomicBoolean modulesRegistered = new AtomicBoolean(false);
+    private static volatile FormWarmup instance = new FormWarmup();
+
+    private volatile boolean completed = false;
+    private volatile int formsLoaded = 0;
+    private volatile int formsFailed = 0;
+    private volatile long durationMs = -1;
+
+    private FormWarmup() {
+    }
+
+    public static FormWarmup getInstance() {
+        return instance;
+    }
+
+    /**
+     * Register the JavaRosa modules, only the first call does any work.
+     */
+    public static void registerModules() {
+        if (modulesRegistered.compareAndSet(false, true)) {
+            new XFormsModule().registerModule();
+            log.info("JavaRosa modules registered");
+        }
+    }
+
+    /**
+     * Warm up all forms in the forms registry.
+     */
+    public void run() {
+        final long start = System.currentTimeMillis();
+        registerModules();
+        int iterations = getIterations();
+        int loaded = 0;
+        int failed = 0;
+        List<Form> forms = null;
+        try {
+            forms = new FormsDao(JsonDB.getInstance().getDB()).getForms();
+        } catch (Exception e) {
+            log.error("Unable to read forms registry for warm up: " + e.getMessage());
+        }
+        if (forms != null) {
+            for (Form form : forms) {
+                if (warmUp(form, iterations)) {
+                    loaded++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+        complete(loaded, failed, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Mark the warm up as done without warming up any form, eg. when it is disabled.
+     */
+    public void skip() {
+        registerModules();
+        complete(0, 0, 0);
+    }
+
+    private void complete(int loaded, int failed, long duration) {
+        this.formsLoaded = loaded;
+        this.formsFailed = failed;
+        this.durationMs = duration;
+        this.completed = true;
+        Metrics.globalRegistry.timer("transformer.forms.warmup").record(duration, TimeUnit.MILLISECONDS);
+        log.info("Forms warm up completed in " + duration + " ms, forms loaded: " + loaded + ", failed: " + failed);
+    }
+
+    boolean warmUp(Form form, int iterations) {
+        String formPath = form.getFormFilePath();
+        if (formPath == null || !new File(formPath).exists()) {
+            log.error("Form file not found for warm up: " + form.getJrFormId() + " at " + formPath);
+            return false;
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            if (FormDefCache.getInstance().getFormDef(new File(formPath)) == null) {
+                return false;
+            }
+            String instanceXML = null;
+            for (int i = 0; i < iterations; i++) {
+                MenuManager menuManager = new MenuManager(null, null, instanceXML, formPath, form.getJrFormId(),
+                        null, null, null, null, null);
+                ServiceResponse response = menuManager.start();
+                if (menuManager.formIndexLookup != null) {
+                    for (String xpath : menuManager.formIndexLookup.xpaths()) {
+                        if (xpath.startsWith("question.")) {
+                            menuManager.getQuestionPayloadFromXPath(xpath);
+                        }
+                    }
+                }
+                /* Next session restores the saved instance, as for a returning user */
+                instanceXML = response.currentResponseState;
+            }
+            log.info("Form warmed up: " + form.getJrFormId() + " in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (Exception e) {
+            log.error("Unable to warm up form " + form.getJrFormId() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private int getIterations() {
+        String envIterations = System.getenv("FORM_WARMUP_ITERATIONS");
+        try {
+            if (envIterations != null && !envIterations.isEmpty()) {
+                return Math.max(1, Integer.parseInt(envIterations));
+            }
+        } catch (NumberFormatException e) {
+            log.error("Invalid FORM_WARMUP_ITERATIONS: " + envIterations);
+        }
+        return DEFAULT_ITERATIONS;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public int getFormsLoaded() {
+        return formsLoaded;
+    }
+
+    public int getFormsFailed() {
+        return formsFailed;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+}
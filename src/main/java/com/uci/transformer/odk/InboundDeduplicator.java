@@ -0,0 +1,125 @@
+package com.uci.transformer.odk;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import messagerosa.core.model.XMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+
+/**
+ * Drops inbound messages that were already received, eg. redelivered after a rebalance or retried by
+ * the adapter, so that a duplicate does not advance the user's form again.
+ * <p>
+ * A message is identified by its user & channel message id. Ids seen by this instance are kept in a
+ * bounded LRU cache, ids seen by any instance are claimed with a SETNX on a short lived redis key. If
+ * redis is unavailable the message is let through. The claim of a message that could not be processed is
+ * released, so that its redelivery is not dropped.
+ */
+@Slf4j
+@Component
+public class InboundDeduplicator {
+    private static final Boolean SEEN = Boolean.TRUE;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Value("${inbound.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${inbound.dedup.ttl-seconds:900}")
+    private long ttlSeconds;
+
+    @Value("${inbound.dedup.local.max-size:100000}")
+    private long localMaxSize;
+
+    private Cache<String, Boolean> seen;
+
+    @PostConstruct
+    void init() {
+        seen = Caffeine.newBuilder()
+                .maximumSize(localMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build();
+        log.info("Inbound de-duplication enabled: " + enabled + ", ttl: " + ttlSeconds + " s, local ids: " + localMaxSize);
+    }
+
+    /**
+     * Claim a message, blocking on redis
+     *
+     * @param message inbound message
+     * @return true if the message is received for the first time & should be processed
+     */
+    public boolean isFirstDelivery(XMessage message) {
+        String id = messageKey(message);
+        if (!enabled || id == null) {
+            count("skipped");
+            return true;
+        }
+        if (seen.asMap().putIfAbsent(id, SEEN) != null) {
+            log.info("Dropping duplicate message: " + id);
+            count("duplicate_local");
+            return false;
+        }
+        try {
+            Boolean claimed = redisTemplate.opsForValue().setIfAbsent(redisKey(id), "1", Duration.ofSeconds(ttlSeconds));
+            if (Boolean.FALSE.equals(claimed)) {
+                log.info("Dropping duplicate message: " + id);
+                count("duplicate_redis");
+                return false;
+            }
+        } catch (Exception e) {
+            log.error("Unable to claim message " + id + " in redis: " + e.getMessage());
+            count("redis_error");
+            return true;
+        }
+        count("new");
+        return true;
+    }
+
+    /**
+     * Release the claim of a message that failed or was abandoned before it was processed, blocking on redis
+     *
+     * @param message inbound message
+     */
+    public void release(XMessage message) {
+        String id = messageKey(message);
+        if (!enabled || id == null) {
+            return;
+        }
+        seen.invalidate(id);
+        try {
+            redisTemplate.delete(redisKey(id));
+            count("released");
+        } catch (Exception e) {
+            log.error("Unable to release message " + id + " in redis: " + e.getMessage());
+            count("redis_error");
+        }
+    }
+
+    /**
+     * @return user & channel message id, null if the message has no id
+     */
+    private String messageKey(XMessage message) {
+        if (message.getMessageId() == null || message.getMessageId().getChannelMessageId() == null
+                || message.getMessageId().getChannelMessageId().isEmpty()) {
+            return null;
+        }
+        String userID = message.getTo() != null ? message.getTo().getUserID() : null;
+        return userID + ":" + message.getMessageId().getChannelMessageId();
+    }
+
+    private String redisKey(String id) {
+        return System.getenv("ENV") + "-inbound-message-" + id;
+    }
+
+    private void count(String result) {
+        Metrics.globalRegistry.counter("transformer.inbound.dedup", "result", result).increment();
+    }
+}
@@ -0,0 +1,129 @@
+package com.uci.transformer.odk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.javarosa.core.model.data.UncastData;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.parse.XFormParser;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a saved form instance into a TreeElement tree with a single pass of a StAX reader, instead of
+ * building a kxml document first as XFormParser.restoreDataModel does. The tree has the same names,
+ * multiplicities, attributes & uncast values, so it can be used to populate a form's instance.
+ */
+@Slf4j
+public class InstanceRestorer {
+    private static final String JR_NAMESPACE = "http://openrosa.org/javarosa";
+    private static final XMLInputFactory factory = newInputFactory();
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Root of the saved instance, read with StAX, falling back to XFormParser if the reader fails.
+     *
+     * @param instanceXML saved instance xml
+     * @return root TreeElement
+     */
+    public static TreeElement restoreRoot(String instanceXML) {
+        try {
+            return read(instanceXML);
+        } catch (XMLStreamException | RuntimeException e) {
+            log.error("Unable to read instance with StAX, falling back to XFormParser: " + e.getMessage());
+            return XFormParser.restoreDataModel(instanceXML.getBytes(), null).getRoot();
+        }
+    }
+
+    static TreeElement read(String instanceXML) throws XMLStreamException {
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(instanceXML));
+        try {
+            Deque<Node> stack = new ArrayDeque<>();
+            TreeElement root = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Node parent = stack.peek();
+                        String name = reader.getLocalName();
+                        int mult = isTemplate(reader) ? TreeReference.INDEX_TEMPLATE
+                                : (parent == null ? 0 : parent.nextMultiplicity(name));
+                        TreeElement element = new TreeElement(name, mult);
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String namespace = reader.getAttributeNamespace(i);
+                            element.setAttribute(namespace == null || namespace.isEmpty() ? null : namespace,
+                                    reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                        if (parent == null) {
+                            root = element;
+                        } else {
+                            parent.element.addChild(element);
+                            parent.hasChildren = true;
+                        }
+                        stack.push(new Node(element));
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!stack.isEmpty()) {
+                            stack.peek().appendText(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        Node node = stack.pop();
+                        if (!node.hasChildren && node.text != null) {
+                            node.element.setValue(new UncastData(node.text.toString().trim()));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return root;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isTemplate(XMLStreamReader reader) {
+        return reader.getAttributeValue(JR_NAMESPACE, "template") != null;
+    }
+
+    private static class Node {
+        private final TreeElement element;
+        private Map<String, Integer> multiplicities;
+        private StringBuilder text;
+        private boolean hasChildren;
+
+        Node(TreeElement element) {
+            this.element = element;
+        }
+
+        int nextMultiplicity(String name) {
+            if (multiplicities == null) {
+                multiplicities = new HashMap<>();
+            }
+            return multiplicities.merge(name, 1, Integer::sum) - 1;
+        }
+
+        void appendText(String value) {
+            if (text == null) {
+                text = new StringBuilder();
+            }
+            text.append(value);
+        }
+    }
+}
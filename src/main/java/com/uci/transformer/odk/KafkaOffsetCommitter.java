@@ -0,0 +1,181 @@
+package com.uci.transformer.odk;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.kafka.receiver.ReceiverOffset;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Commits the offsets of processed records, in batches by count & interval.
+ * <p>
+ * Records complete out of order as they are processed concurrently, so a record is only acknowledged
+ * once all records received before it on its partition have completed. A commit then covers every
+ * acknowledged offset of every partition.
+ */
+@Slf4j
+public class KafkaOffsetCommitter {
+    private final int batchSize;
+    private final Duration interval;
+    private final Map<TopicPartition, PartitionOffsets> partitions = new ConcurrentHashMap<>();
+    private final AtomicInteger uncommitted = new AtomicInteger();
+    private final AtomicReference<ReceiverOffset> lastAcknowledged = new AtomicReference<>();
+    private final AtomicBoolean committing = new AtomicBoolean(false);
+
+    private final Timer commitTimer;
+    private final Counter committedRecords;
+    private final Counter commitFailures;
+
+    public KafkaOffsetCommitter(int batchSize, Duration interval) {
+        this.batchSize = Math.max(1, batchSize);
+        this.interval = interval;
+        this.commitTimer = Timer.builder("transformer.kafka.commit")
+                .description("Offset commits of the ODK consumer")
+                .register(Metrics.globalRegistry);
+        this.committedRecords = Metrics.globalRegistry.counter("transformer.kafka.commit.records");
+        this.commitFailures = Metrics.globalRegistry.counter("transformer.kafka.commit.failures");
+        Gauge.builder("transformer.kafka.offsets.pending", this, KafkaOffsetCommitter::getPending)
+                .description("Records received but not yet acknowledged")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("transformer.kafka.offsets.uncommitted", uncommitted, AtomicInteger::get)
+                .description("Records acknowledged but not yet committed")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Start the periodic commits
+     *
+     * @return Disposable to stop them
+     */
+    public Disposable start() {
+        log.info("Kafka offsets committed every " + batchSize + " records or " + interval.toMillis() + " ms");
+        return Flux.interval(interval).subscribe(tick -> commit());
+    }
+
+    /**
+     * Track a record as it is received, records must be passed in the order of their partition.
+     *
+     * @param offset record offset
+     */
+    public void received(ReceiverOffset offset) {
+        partitions.computeIfAbsent(offset.topicPartition(), tp -> new PartitionOffsets()).add(offset);
+    }
+
+    /**
+     * Mark a record as processed, acknowledging all completed records of its partition up to the first
+     * record still being processed. Records received before their partition was revoked are ignored,
+     * they are redelivered to whichever consumer the partition is assigned to.
+     *
+     * @param offset record offset
+     */
+    public void completed(ReceiverOffset offset) {
+        PartitionOffsets partitionOffsets = partitions.get(offset.topicPartition());
+        if (partitionOffsets == null || !partitionOffsets.complete(offset)) {
+            log.debug("Ignoring completed record of a previous assignment: " + offset.topicPartition() + "@" + offset.offset());
+            return;
+        }
+        ReceiverOffset acknowledgeable = partitionOffsets.pollCompleted();
+        if (acknowledgeable != null) {
+            acknowledgeable.acknowledge();
+            lastAcknowledged.set(acknowledgeable);
+        }
+        if (uncommitted.incrementAndGet() >= batchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Stop tracking partitions that are no longer assigned to this consumer
+     *
+     * @param revoked revoked partitions
+     */
+    public void revoke(Collection<TopicPartition> revoked) {
+        revoked.forEach(partitions::remove);
+    }
+
+    /**
+     * Commit the acknowledged offsets, unless a commit is in progress
+     */
+    public void commit() {
+        ReceiverOffset offset = lastAcknowledged.get();
+        if (offset == null || uncommitted.get() == 0 || !committing.compareAndSet(false, true)) {
+            return;
+        }
+        final int count = uncommitted.getAndSet(0);
+        final Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+        offset.commit()
+                .doFinally(signal -> committing.set(false))
+                .subscribe(v -> {
+                }, e -> {
+                    log.error("Unable to commit kafka offsets: " + e.getMessage());
+                    commitFailures.increment();
+                    /* Acknowledged offsets stay in the batch & go with the next commit */
+                    uncommitted.addAndGet(count);
+                }, () -> {
+                    sample.stop(commitTimer);
+                    committedRecords.increment(count);
+                });
+    }
+
+    int getPending() {
+        int pending = 0;
+        for (PartitionOffsets partitionOffsets : partitions.values()) {
+            pending += partitionOffsets.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Records of one assignment of a partition in the order they were received. A partition assigned
+     * again gets new instances, records are matched by identity so that a record still in flight from
+     * the previous assignment never completes a redelivered record with the same offset.
+     */
+    private static class PartitionOffsets {
+        private final ArrayDeque<ReceiverOffset> received = new ArrayDeque<>();
+        private final Set<ReceiverOffset> inFlight = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Set<ReceiverOffset> completed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        synchronized void add(ReceiverOffset offset) {
+            received.addLast(offset);
+            inFlight.add(offset);
+        }
+
+        /**
+         * @return false if the record was not received in this assignment or already completed
+         */
+        synchronized boolean complete(ReceiverOffset offset) {
+            return inFlight.remove(offset) && completed.add(offset);
+        }
+
+        /**
+         * @return last record of the completed prefix, null if the first record is still being processed
+         */
+        synchronized ReceiverOffset pollCompleted() {
+            ReceiverOffset last = null;
+            while (!received.isEmpty() && completed.remove(received.peekFirst())) {
+                last = received.pollFirst();
+            }
+            return last;
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import com.uci.dao.models.XMessageDAO;
 import com.uci.transformer.odk.entity.Meta;
 import com.uci.transformer.odk.entity.Question;
 import com.uci.transformer.odk.repository.QuestionRepository;
+import com.uci.transformer.odk.utilities.FileUtils;
 import com.uci.transformer.odk.utilities.FormUpdation;
 import com.uci.transformer.odk.utilities.Item;
 import com.uci.utils.cache.service.RedisCacheService;
@@ -18,7 +19,6 @@ import lombok.extern.java.Log;
 import messagerosa.core.model.*;
 import reactor.core.publisher.Flux;
 
-import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.javarosa.core.model.*;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.IntegerData;
@@ -34,9 +34,7 @@ import org.javarosa.form.api.FormEntryController;
 import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.XFormSerializingVisitor;
-import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.xform.parse.XFormParser;
-import org.javarosa.xform.util.XFormUtils;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -45,6 +43,7 @@ import org.springframework.data.redis.core.HashOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -92,9 +91,18 @@ public class MenuManager {
     String flow;
     Integer questionIndex;
     RedisCacheService redisCacheService;
+    /* Language read with the session state, null if not cached */
+    String sessionLanguage;
+    boolean sessionLanguageEnabled = false;
+    /* Language to be saved by the caller once the step is done, null if unchanged */
+    String changedLanguage;
     String userID;
     String appID;
     FileCdnProvider fileCdnProvider;
+    FormIndexLookup formIndexLookup;
+    FormQuestionCatalog questionCatalog;
+    boolean formDefCustomized = false;
+    int formLoadCount = 0;
 
     public MenuManager(String xpath, String answer, String instanceXML, String formPath,
                        String formID, RedisCacheService redisCacheService,
@@ -175,6 +183,24 @@ public class MenuManager {
         setAssesmentCharacters();
     }
     
+    /**
+     * Take the language of the user from the session instead of the blocking redis cache, which is then
+     * never used. A language chosen in the form is saved by the caller, see {@link #getChangedLanguage()}.
+     *
+     * @param language language of the user resolved with the session state, null for the default
+     */
+    public void setSessionLanguage(String language) {
+        this.sessionLanguageEnabled = true;
+        this.sessionLanguage = language;
+    }
+
+    /**
+     * @return language of the user to save after the step, null if unchanged
+     */
+    public String getChangedLanguage() {
+        return changedLanguage;
+    }
+
     public void setAssesmentCharacters() {
     	String envAssesOneLevelUpChar = System.getenv("ASSESSMENT_ONE_LEVEL_UP_CHAR");
         String envAssesGoToStartChar = System.getenv("ASSESSMENT_GO_TO_START_CHAR");
@@ -225,13 +251,17 @@ public class MenuManager {
     }
 
     public ServiceResponse start() {
-        new XFormsModule().registerModule();
+        FormWarmup.registerModules();
         
         FECWrapper fecWrapper = loadForm(formPath, xpath); // If instance load from instance (If form is filled load new)
+        if (fecWrapper == null) {
+            throw new IllegalStateException("Unable to load form: " + formPath);
+        }
         formController = fecWrapper.controller;
         
         String currentPath = "";
-        String udpatedInstanceXML = "";
+        /* Serialized once at the end of the step, unless the previous instance is kept */
+        String udpatedInstanceXML = null;
         XMessagePayload nextQuestion;
         SaveStatus saveStatus = new SaveStatus();        
         
@@ -323,12 +353,6 @@ public class MenuManager {
                 }
             }
 
-            try {
-                udpatedInstanceXML = getCurrentInstance();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
             nextQuestion = createView(formController.getModel().getEvent(), "");
             currentPath = getXPath(formController, formController.getModel().getFormIndex());
 
@@ -340,14 +364,13 @@ public class MenuManager {
 
         } else {
             try {
+                boolean instanceChanged;
                 if (xpath != null && !xpath.equals("endOfForm")) {
                     saveStatus = addResponseToForm(getIndexFromXPath(xpath, formController), answer, xpath);
-                    udpatedInstanceXML = saveStatus.getInstanceXML();
+                    instanceChanged = saveStatus.getSaveStatus() == ANSWER_OK;
                 } else {
-                    FormInstance formInstance = formController.getModel().getForm().getInstance();
-                    XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-                    ByteArrayPayload payload = (ByteArrayPayload) serializer.createSerializedPayload(formInstance);
-                    udpatedInstanceXML = payload.toString();
+                    /* Nothing is answered at the start or the end of a form, only a new form moves ahead */
+                    instanceChanged = xpath == null;
                 }
 
                 formController.stepToNextEvent();
@@ -355,15 +378,15 @@ public class MenuManager {
                 log.info(String.format("Current question is %s with %d choices", nextQuestion.getText(), (nextQuestion.getButtonChoices() != null ? nextQuestion.getButtonChoices().size() : 0)));
 
                 if (instanceXML != null) {
-                    if (!udpatedInstanceXML.equals(instanceXML) || saveStatus.getSaveStatus() == ANSWER_OK) {
+                    if (instanceChanged) {
                         currentPath = getXPath(formController, formController.getModel().getFormIndex());
                     } else {
+                        udpatedInstanceXML = instanceXML;
                         if (xpath.equals("endOfForm")) {
                             currentPath = xpath;
                             nextQuestion = XMessagePayload.builder().text("---------End of Form---------").build();
                         } else {
                             currentPath = xpath;
-                            udpatedInstanceXML = instanceXML;
                             String constraintText;
                             FormIndex formIndex = getIndexFromXPath(currentPath, formController);
                             constraintText = formController.getModel().getQuestionPrompt(formIndex).getConstraintText();
@@ -389,7 +412,8 @@ public class MenuManager {
         // check if currentPath is persisted in the DB. If not, insert it with all the things.
         String formVersion = formController.getModel().getForm().getInstance().formVersion;
         Question question = new Question();
-        question.setQuestionType(Question.QuestionType.STRING);
+        FormQuestionCatalog.QuestionEntry questionEntry = getCatalogEntry(formController, currentPath);
+        question.setQuestionType(questionEntry != null ? questionEntry.getQuestionType() : Question.QuestionType.STRING);
         question.setFormID(formID);
         question.setFormVersion(formVersion);
         question.setXPath(currentPath);
@@ -402,6 +426,14 @@ public class MenuManager {
 
         question.setMeta(Json.of(new Meta(nextQuestion.getText(), choices).toString()));
 
+        if (udpatedInstanceXML == null) {
+            try {
+                udpatedInstanceXML = getCurrentInstance();
+            } catch (IOException e) {
+                e.printStackTrace();
+                udpatedInstanceXML = "";
+            }
+        }
         log.info("udpatedInstanceXML: "+udpatedInstanceXML);
 
         FormIndex formIndex = formController.getModel().getFormIndex();
@@ -420,26 +452,38 @@ public class MenuManager {
     }
     
     private String getFormLanguageCache() {
+    	if(this.sessionLanguageEnabled) {
+    		return this.sessionLanguage != null ? this.sessionLanguage : "English (en)";
+    	}
+    	String language = null;
     	try {
 	    	if(this.redisCacheService != null) {
 	    		String key = this.userID;
 	    		if(this.appID != null) {
 	    			key = this.appID+"-"+key;
 	    		}
-	    		String language = (String)redisCacheService.getLanguageCache(key);
-	    	  	if(language != null) {
-	    	  		return language;
-	    	  	} else {
+	    		language = (String)redisCacheService.getLanguageCache(key);
+	    	  	if(language == null) {
 	    	  		log.info("not found in redis for key: "+redisKeyWithPrefix("language")+", "+redisKeyWithPrefix(key));
 	    	  	}
 	    	}
     	} catch (Exception e) {
     		log.info("Exception in getFormLanguageCache: "+e.getMessage());
+    		return "English (en)";
+    	}
+    	if(language == null) {
+    		language = "English (en)";
     	}
-    	return "English (en)";
+    	return language;
     }
     
     private void setFormLanguageCache(String language) {
+    	if(this.sessionLanguageEnabled) {
+    		this.sessionLanguage = language;
+    		this.changedLanguage = language;
+    		log.info("Language to be set in session cache: "+language+" for user: "+this.userID);
+    		return;
+    	}
     	try {
     		if(this.redisCacheService != null) {
     			String key = this.userID;
@@ -488,35 +532,47 @@ public class MenuManager {
     }
     
     /**
-     * Get Question XMessage Payload with text & button choices from question xPath
+     * Get Question XMessage Payload with text & button choices from question xPath, the media url is
+     * set by resolveMediaUrl
      * 
      * @return XMessagePayload
      */
     public XMessagePayload getQuestionPayloadFromXPath(String xpathStr) {
     	log.info("getQuestionPayloadFromXPath called");
-    	new XFormsModule().registerModule();
-        FECWrapper fecWrapper2 = loadForm(formPath, xpathStr); // If instance load from instance (If form is filled load new)
-        FormEntryController formController2 = fecWrapper2.controller;
-        
-        /* Previous Question */
-        ArrayList<ButtonChoice> choices = new ArrayList();
-        choices = getChoices(choices);
-        String questionText = renderQuestion(formController2);
-        
-        XMessagePayload payload = XMessagePayload.builder()
-        								.text(questionText)
-        								.buttonChoices(choices)
-        								.build();
-        
+        FormEntryController formController2 = getSessionController();
+        if (formController2 == null) {
+            return null;
+        }
+
+        FormIndex saved = formController2.getModel().getFormIndex();
         try {
-        	if(formController2.getModel().getQuestionPrompt().getBindAttributes() != null) {
-        		payload = getPayloadWithBindTags(payload, formController2.getModel().getQuestionPrompt().getBindAttributes());
+            FormIndex formIndex = getIndexFromXPath(xpathStr, formController2);
+            if (formIndex == null) {
+                log.severe("Unable to evaluate the formIndex for xpath ::" + xpathStr);
+            } else {
+                jumpToIndex(formController2, formIndex);
             }
-        } catch (Exception e) {
-        	log.info("Exception in getQuestionPayloadFromXPath for bind attributes: "+e.getMessage());
+
+            /* Previous Question */
+            ArrayList<ButtonChoice> choices = new ArrayList();
+            choices = getChoices(choices);
+            String questionText = renderQuestion(formController2);
+
+            XMessagePayload payload = XMessagePayload.builder()
+                                            .text(questionText)
+                                            .buttonChoices(choices)
+                                            .build();
+
+            try {
+                payload = getPayloadWithBindTags(payload, getBindTags(formController2));
+            } catch (Exception e) {
+                log.info("Exception in getQuestionPayloadFromXPath for bind attributes: "+e.getMessage());
+            }
+
+            return payload;
+        } finally {
+            jumpToIndex(formController2, saved);
         }
-        
-        return payload;
     }
     
     /**
@@ -525,21 +581,48 @@ public class MenuManager {
      * @return Question
      */
     public Question getQuestionFromXPath(String xpathStr) {
-    	log.info("getQuestionPayloadFromXPath called");
-    	new XFormsModule().registerModule();
-        FECWrapper fecWrapper2 = loadForm(formPath, xpathStr); // If instance load from instance (If form is filled load new)
-        FormEntryController formController2 = fecWrapper2.controller;
-        
+    	log.info("getQuestionFromXPath called");
+        FormEntryController formController2 = getSessionController();
+        if (formController2 == null) {
+            return null;
+        }
+
     	String formVersion = formController2.getModel().getForm().getInstance().formVersion;
         Question question = new Question();
-        question.setQuestionType(Question.QuestionType.STRING);
+        FormQuestionCatalog.QuestionEntry questionEntry = getCatalogEntry(formController2, xpathStr);
+        question.setQuestionType(questionEntry != null ? questionEntry.getQuestionType() : Question.QuestionType.STRING);
         question.setFormID(formID);
         question.setFormVersion(formVersion);
         question.setXPath(xpathStr);
         
         return question;
     }
-    
+
+    /**
+     * Form controller of this message, as loaded by start(). The form is only loaded here if
+     * start() has not been called, so a message loads its form once.
+     *
+     * @return FormEntryController
+     */
+    private FormEntryController getSessionController() {
+        if (formController == null) {
+            FormWarmup.registerModules();
+            FECWrapper fecWrapper = loadForm(formPath, null);
+            if (fecWrapper == null) {
+                return null;
+            }
+            formController = fecWrapper.controller;
+        }
+        return formController;
+    }
+
+    /**
+     * Number of times the form was loaded by this instance
+     */
+    int getFormLoadCount() {
+        return formLoadCount;
+    }
+
     private boolean isDynamicQuestion() {
         try {
             return formController.getModel().getEvent() == 4 &&
@@ -703,14 +786,11 @@ public class MenuManager {
                 IAnswerData answerData = new IntegerData(Integer.parseInt(value));
                 saveStatus = formController.answerQuestion(formIndex, answerData, true);
             }
+            /* The instance is serialized by the caller, once the step is done */
             if (saveStatus != ANSWER_OK) {
                 return new SaveStatus(instanceXML, saveStatus);
-            } else {
-                FormInstance formInstance = formController.getModel().getForm().getInstance();
-                XFormSerializingVisitor serializer = new XFormSerializingVisitor();
-                ByteArrayPayload payload = (ByteArrayPayload) serializer.createSerializedPayload(formInstance);
-                return new SaveStatus(payload.toString(), saveStatus);
             }
+            return new SaveStatus(null, saveStatus);
         }
         return new SaveStatus(instanceXML, saveStatus);
     }
@@ -770,12 +850,8 @@ public class MenuManager {
     }
 
     public static void importData(String instanceXML, FormEntryController fec) throws IOException, RuntimeException {
-        // convert files into a byte array
-        //byte[] fileBytes = org.apache.commons.io.FileUtils.readFileToByteArray(instanceFile);
-        byte[] fileBytes = instanceXML.getBytes();
-
         // get the root of the saved and template instances
-        TreeElement savedRoot = XFormParser.restoreDataModel(fileBytes, null).getRoot();
+        TreeElement savedRoot = InstanceRestorer.restoreRoot(instanceXML);
         TreeElement templateRoot = fec.getModel().getForm().getInstance().getRoot().deepCopy(true);
 
         // weak check for matching forms
@@ -817,10 +893,16 @@ public class MenuManager {
                 log.severe("Unexpected string from XPath");
                 throw new IllegalArgumentException("unexpected string from XPath");
             default:
+                if (formIndexLookup != null) {
+                    FormIndex index = formIndexLookup.find(xpath, fec.getModel());
+                    if (index != null) {
+                        return index;
+                    }
+                }
+                // not in the lookup table, e.g. in a repeat or not relevant in this instance,
+                // so step through the entire form until the XPath of a form entry matches
                 FormIndex returned = null;
                 FormIndex saved = fec.getModel().getFormIndex();
-                // the only way I know how to do this is to step through the entire form
-                // until the XPath of a form entry matches that of the supplied XPath
                 try {
                     jumpToIndex(fec, FormIndex.createBeginningOfFormIndex());
                     int event = fec.stepToNextEvent();
@@ -846,34 +928,7 @@ public class MenuManager {
      * @return xpath value for this index
      */
     public String getXPath(FormEntryController fec, FormIndex index) {
-        String value;
-        switch (getEvent(fec)) {
-            case FormEntryController.EVENT_BEGINNING_OF_FORM:
-                value = "beginningOfForm";
-                break;
-            case FormEntryController.EVENT_END_OF_FORM:
-                value = "endOfForm";
-                break;
-            case FormEntryController.EVENT_GROUP:
-                value = "group." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_QUESTION:
-                value = "question." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_PROMPT_NEW_REPEAT:
-                value = "promptNewRepeat." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_REPEAT:
-                value = "repeat." + index.getReference().toString();
-                break;
-            case FormEntryController.EVENT_REPEAT_JUNCTURE:
-                value = "repeatJuncture." + index.getReference().toString();
-                break;
-            default:
-                value = "unexpected";
-                break;
-        }
-        return value;
+        return FormIndexLookup.toXPath(getEvent(fec), index);
     }
 
     /**
@@ -896,19 +951,41 @@ public class MenuManager {
 
     private String renderQuestion(FormEntryController formController) {
         try {
-            System.out.println("test");
-            if(cleanText(getHelpText(formController)).equals("")){
-                return "" + cleanText(getQuestionText(formController)) + "" + " \n\n";
-            }else{
-                return "" + cleanText(getQuestionText(formController)) + "" + " \n" +
-                        "_" + cleanText(getHelpText(formController)) + "_" + " \n\n";
+            FormQuestionCatalog.QuestionEntry entry = getCatalogEntry(formController);
+            if (entry != null && entry.getQuestionText() != null) {
+                return entry.getQuestionText();
             }
+            return FormQuestionCatalog.renderQuestionText(cleanText(getQuestionText(formController)), cleanText(getHelpText(formController)));
             //return "*" + cleanText(getQuestionText(formController)) + "*" + " \n" + "_" + cleanText(getHelpText(formController)) + "_" + " \n\n";
         } catch (Exception e) {
             return "";
         }
     }
 
+    /**
+     * Compiled catalog entry of the question at the current index of the controller
+     *
+     * @return QuestionEntry, or null if not in the catalog
+     */
+    private FormQuestionCatalog.QuestionEntry getCatalogEntry(FormEntryController fec) {
+        if (questionCatalog == null || fec.getModel().getEvent() != FormEntryController.EVENT_QUESTION) {
+            return null;
+        }
+        return getCatalogEntry(fec, getXPath(fec, fec.getModel().getFormIndex()));
+    }
+
+    private FormQuestionCatalog.QuestionEntry getCatalogEntry(FormEntryController fec, String xpath) {
+        if (questionCatalog == null) {
+            return null;
+        }
+        try {
+            return questionCatalog.get(fec.getModel(), xpath);
+        } catch (Exception e) {
+            log.info("Exception in getCatalogEntry: " + e.getMessage());
+            return null;
+        }
+    }
+
     private String getHelpText(FormEntryController formController) {
         String helpText = formController.getModel().getQuestionPrompt().getHelpText();
         if (helpText == null) return "";
@@ -968,7 +1045,7 @@ public class MenuManager {
                     //Check this
                     return getPayloadWithBindTags(
                     		XMessagePayload.builder().text(previousPrompt + renderQuestion(formController)).buttonChoices(choices).build(), 
-                    		formController.getModel().getQuestionPrompt().getBindAttributes());
+                    		getBindTags(formController));
                 } catch (Exception e) {
                 	e.printStackTrace();
                     log.info("Non Question data type");
@@ -998,6 +1075,11 @@ public class MenuManager {
     }
 
     private ArrayList<ButtonChoice> getChoices(ArrayList<ButtonChoice> choices) {
+        FormQuestionCatalog.QuestionEntry entry = getCatalogEntry(formController);
+        if (entry != null && entry.getChoices() != null) {
+            return entry.newButtonChoices();
+        }
+
     	ArrayList<ButtonChoice> buttonChoices = new ArrayList<>();
         try {
         	switch (formController.getModel().getQuestionPrompt().getControlType()) {
@@ -1023,36 +1105,12 @@ public class MenuManager {
 	 */
 	private ArrayList<ButtonChoice> getQuestionsChoiceWithKey(ArrayList<ButtonChoice> questionChoices) {
 		if(questionChoices != null) {
-			try {
-				questionChoices.forEach(choice -> {
-					try {
-						String[] a = choice.getText().split(" ");
-						if(a[0] != null && !a[0].isEmpty()) {
-							Integer.parseInt(a[0]);
-					        choice.setKey(a[0].toString());
-			    		}
-					} catch (NumberFormatException ex) {
-						String[] b = choice.getText().split(".");
-			    		try {
-			    			if(b[0] != null && !b[0].isEmpty()) {
-				    		    Integer.parseInt(b[0]);
-				    		    choice.setKey(b[0].toString());
-			    			}
-			    		} catch (NumberFormatException exc) {
-			    			// do nothing
-			    		} catch (ArrayIndexOutOfBoundsException exc) {
-			    			// do nothing
-			    		}
-					} catch (ArrayIndexOutOfBoundsException ex) {
-						// do nothing
-					} catch (Exception ex) {
-						log.info("Exception in getQuestionsChoiceWithKey-2: "+ex.getMessage());
-					}
-				});
-			} catch (Exception e) {
-				log.info("Exception in getQuestionsChoiceWithKey: "+e.getMessage());
-			}
-			
+			questionChoices.forEach(choice -> {
+				String key = FormQuestionCatalog.getChoiceKeyFromText(choice.getText());
+				if(key != null) {
+					choice.setKey(key);
+				}
+			});
 		}
 		return questionChoices;
 	}
@@ -1091,52 +1149,52 @@ public class MenuManager {
     }
 
     private FormDef createFormDefFromCacheOrXml(String formPath, File formXml) {
-
-        InputStream fis = null;
-        // no binary, read from xml
+        formDefCustomized = false;
         try {
             // log.info(String.format("Attempting to load from: %s", formXml.getAbsolutePath()));
             if(this.shouldUpdateFormXML) {
-                FormUpdation ss = FormUpdation.builder().formPath(formPath).build();
-                ss.init();
-
                 // Populate items - TODO fix this hardcoding with actual schema
-                try{
-                    ArrayList<Item> options = new ArrayList<>();
-                    JSONArray matchedVacancies = this.user.getJSONArray("matched");
+                JSONArray matchedVacancies = null;
+                try {
+                    matchedVacancies = this.user.getJSONArray("matched");
                     log.info("matchedVacancies count: "+matchedVacancies.length());
-                    if(matchedVacancies.length() > 0){
-                        for(int i=0; i<matchedVacancies.length(); i++){
-                            try {
-                            	String label = matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getString("job_role") +
-                                        " at " + matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getJSONObject("employer_detail").getString("company_name");
-                                String value = String.valueOf(matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getInt("id"));
-                                log.info("vacancy label: "+label+", value: "+value);
-                                options.add(Item.builder().label(label).value(value).build());
-                            } catch (Exception ex) {
-                            	log.info("Exception in createFormDefFromCacheOrXml forloop: "+ex.getMessage());
-                            	ex.printStackTrace();
-                            }
-                        	
-                        }
-//                        if(options.size() > 0) {
-                        	ss.addSelectOneOptions(options, "vacancies");
-//                        }
-                    }
-//                    log.info("Form XML :" +ss.getXML());
                 } catch(Exception e) {
                 	log.info("Exception in createFormDefFromCacheOrXml: "+e.getMessage());
-//                	e.printStackTrace();
                 }
-                fis = ss.getInputStream();
-            }else{
-                fis = new FileInputStream(formXml);
+
+                /* Forms are rewritten only to inject the matched vacancies, else the form file is used as it is */
+                if(matchedVacancies != null && matchedVacancies.length() > 0) {
+                    ArrayList<Item> options = new ArrayList<>();
+                    StringBuilder optionsKey = new StringBuilder();
+                    for(int i=0; i<matchedVacancies.length(); i++){
+                        try {
+                            String label = matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getString("job_role") +
+                                    " at " + matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getJSONObject("employer_detail").getString("company_name");
+                            String value = String.valueOf(matchedVacancies.getJSONObject(i).getJSONObject("vacancy_detail").getInt("id"));
+                            log.info("vacancy label: "+label+", value: "+value);
+                            options.add(Item.builder().label(label).value(value).build());
+                            optionsKey.append(value).append('\u0000').append(label).append('\n');
+                        } catch (Exception ex) {
+                            log.info("Exception in createFormDefFromCacheOrXml forloop: "+ex.getMessage());
+                            ex.printStackTrace();
+                        }
+                    }
+
+                    /* Rewritten forms are cached by the option set, so the DOM rewrite & parse happen once per option set */
+                    formDefCustomized = true;
+                    String variant = "vacancies-" + FileUtils.getMd5Hash(
+                            new ByteArrayInputStream(optionsKey.toString().getBytes(StandardCharsets.UTF_8)));
+                    return FormDefCache.getInstance().getFormDef(formXml, variant, () -> {
+                        FormUpdation ss = FormUpdation.builder().formPath(formPath).build();
+                        ss.init();
+                        ss.addSelectOneOptions(options, "vacancies");
+                        return ss.getInputStream();
+                    });
+                }
             }
-            return XFormUtils.getFormFromInputStream(fis);
+            return FormDefCache.getInstance().getFormDef(formXml);
         } catch (Exception e) {
             log.severe("CP-2" + e.getMessage());
-        } finally {
-            IOUtils.closeQuietly(fis);
         }
         return null;
     }
@@ -1145,25 +1203,48 @@ public class MenuManager {
         return FormDef.findQuestionByRef(t.getRef(), fec.getModel().getForm());
     }
 
-    public FECWrapper loadForm(String formPath, String xpath) {
-
-        if (formPath == null) {
-            System.out.println("formPath is null");
-            return null;
-        }
-        log.info("Current form path :: " + formPath);
-
-        File formXml;
-        formXml = new File(formPath);
+    /**
+     * Form file of a form path, the copy in the form's media folder if the path does not exist
+     *
+     * @param formPath
+     * @return File
+     */
+    private static File getFormFile(String formPath) {
+        File formXml = new File(formPath);
         if(!formXml.exists()){
             String[] filePathParts = formPath.split("/");
             String filePathLast = filePathParts[filePathParts.length-1];
             log.info(filePathLast);
             String mediaFilePath = "/tmp/forms2/" + filePathLast.split(".xml")[0] + MEDIA_SUFFIX + "/" + filePathLast;
             log.info("Media Path ::" + mediaFilePath);
-            formPath = mediaFilePath; // Change formPath to media one, so it loads the same file
             formXml = new File(mediaFilePath);
         }
+        return formXml;
+    }
+
+    /**
+     * Load a form into the form definition cache, reading its file & its forms registry entry. To be
+     * called where blocking is allowed before start(), which then only reads the cache.
+     *
+     * @param formPath
+     */
+    public static void preloadForm(String formPath) {
+        if (formPath != null) {
+            FormDefCache.getInstance().preload(getFormFile(formPath));
+        }
+    }
+
+    public FECWrapper loadForm(String formPath, String xpath) {
+        formLoadCount++;
+
+        if (formPath == null) {
+            System.out.println("formPath is null");
+            return null;
+        }
+        log.info("Current form path :: " + formPath);
+
+        File formXml = getFormFile(formPath);
+        formPath = formXml.getPath(); // Change formPath to media one, so it loads the same file
 
         FormDef formDef = null;
         try {
@@ -1205,6 +1286,10 @@ public class MenuManager {
             e.printStackTrace();
         }
 
+        formIndexLookup = FormDefCache.getInstance().getIndexLookup(formXml);
+        /* The catalog is compiled from the form file, it does not apply to forms with injected choices */
+        questionCatalog = formDefCustomized ? null : FormDefCache.getInstance().getQuestionCatalog(formXml);
+
         if (xpath != null && !xpath.isEmpty()) {
             FormIndex idx = getIndexFromXPath(xpath, fec);
             if (idx == null) {
@@ -1221,53 +1306,60 @@ public class MenuManager {
     }
     
     /**
-     * Get XMessage payload with bind attributes added to it
+     * Get XMessage payload with bind attributes added to it, the media url is set by resolveMediaUrl
      * 
      * @param payload
-     * @param bindAttributes
+     * @param bindTags
      * @return XMessagePayload
      */
-    private XMessagePayload getPayloadWithBindTags(XMessagePayload payload, List<TreeElement> bindAttributes) {
-    	log.info("Bind Attributes: "+bindAttributes);
+    private XMessagePayload getPayloadWithBindTags(XMessagePayload payload, FormQuestionCatalog.BindTags bindTags) {
     	try {
-    		bindAttributes.forEach(attribute -> {
-        		if(attribute.getName().equals("stylingTags")) {
-        			String tagText = attribute.getAttributeValue().toString();
-        			StylingTag tag = StylingTag.getEnumByText(tagText);
-        			if(tag != null ) {
-                        /* If styling tag is media type & correspond to a valid media category */
-                        if(CommonUtils.isStylingTagMediaType(tag) && CommonUtils.getMediaCategoryFromStylingTag(tag) != null) {
-                            MessageMedia media = payload.getMedia();
-                            if(media == null) {
-                                media = new MessageMedia();
-                            }
-                            media.setUrl(payload.getText());
-                            media.setCategory(CommonUtils.getMediaCategoryFromStylingTag(tag));
-                            payload.setMedia(media);
-                        } else {
-                            payload.setStylingTag(tag);
-                        }
+            if(bindTags.getMediaCategory() != null) {
+                MessageMedia media = payload.getMedia();
+                if(media == null) {
+                    media = new MessageMedia();
+                }
+                media.setUrl(payload.getText());
+                media.setCategory(bindTags.getMediaCategory());
+                payload.setMedia(media);
+            } else if(bindTags.getStylingTag() != null) {
+                payload.setStylingTag(bindTags.getStylingTag());
+            }
+            if(bindTags.getFlow() != null) {
+                payload.setFlow(bindTags.getFlow());
+            }
+            if(bindTags.getQuestionIndex() != null) {
+                payload.setQuestionIndex(bindTags.getQuestionIndex());
+            }
+            if(bindTags.getCaption() != null) {
+                MessageMedia media = payload.getMedia();
+                if(media == null) {
+                    media = new MessageMedia();
+                }
+                media.setText(bindTags.getCaption());
+                payload.setMedia(media);
+            }
 
-                    }
-        		} else if(attribute.getName().equals("flow")) {
-        			payload.setFlow(attribute.getAttributeValue().toString());
-        		} else if(attribute.getName().equals("index")) {
-        			try {
-        				payload.setQuestionIndex(Integer.parseInt(attribute.getAttributeValue()));
-        			} catch (IllegalArgumentException e) {
-        				log.info("Exception in getPayloadWithBindTags for parse int: "+e.getMessage());
-        			}
-        		} else if(attribute.getName().equals("caption")) {
-                        MessageMedia media = payload.getMedia();
-                        if(media == null) {
-                            media = new MessageMedia();
-                        }
-                        media.setText(attribute.getAttributeValue());
-                        payload.setMedia(media);
-                        // payload.setMediaCaption(attribute.getAttributeValue().toString());
-        		} 
-        	});
+    	} catch (Exception e) {
+    		log.info("Exception in getPayloadWithBindTags: "+e.getMessage());
+    	}
+    	
+    	return payload;
+    }
 
+    /**
+     * Set the url of the media of a payload built by the menu manager: a public url as it is, a file
+     * name as its cdn url, signed by the file cdn provider. The media is dropped if it has no url, so the
+     * payload is sent as text. Signing a url may block, it is kept out of start() for this reason.
+     *
+     * @param payload
+     * @return XMessagePayload
+     */
+    public XMessagePayload resolveMediaUrl(XMessagePayload payload) {
+    	if(payload == null) {
+    		return null;
+    	}
+    	try {
             /* Media cdn url or public url find, else set text only */
             if(payload.getMedia() != null && payload.getMedia().getUrl() != null
                     && !payload.getMedia().getUrl().isEmpty()
@@ -1301,11 +1393,9 @@ public class MenuManager {
             } else {
                 payload.setMedia(null);
             }
-
     	} catch (Exception e) {
-    		log.info("Exception in getPayloadWithBindTags: "+e.getMessage());
+    		log.info("Exception in resolveMediaUrl: "+e.getMessage());
     	}
-    	
     	return payload;
     }
     
@@ -1315,20 +1405,20 @@ public class MenuManager {
      * @return
      */
     private String getLocaleChoiceText(SelectChoice item) {
-    	String locale = "";
-    	if(formController.getModel().getLanguages() != null 
-    			&& formController.getModel().getLanguage() != null 
-				&& !formController.getModel().getLanguage().isEmpty()) {
-    		locale = formController.getModel().getForm().getLocalizer().getLocale();
-    			
-    	}
-    	String label = item.getLabelInnerText();
-    	log.info("Label first: "+label+", locale: "+locale);
-		if(!locale.isEmpty() && item.getTextID() != null && !item.getTextID().isEmpty()) {
-			label = formController.getModel().getForm().getLocalizer().getLocaleData(locale).get(item.getTextID());
-			log.info("Label: "+label+", textid: "+item.getTextID()+", value: "+item.getValue());
-		}
-		log.info("Label final: "+label);
-		return label;
+    	return FormQuestionCatalog.getLocaleChoiceText(formController.getModel(), item);
+    }
+
+    /**
+     * Bind tags of the question at the current index, from the catalog if compiled
+     *
+     * @param fec
+     * @return BindTags
+     */
+    private FormQuestionCatalog.BindTags getBindTags(FormEntryController fec) {
+        FormQuestionCatalog.QuestionEntry entry = getCatalogEntry(fec);
+        if (entry != null) {
+            return entry.getBindTags();
+        }
+        return FormQuestionCatalog.BindTags.of(fec.getModel().getQuestionPrompt().getBindAttributes());
     }
 }
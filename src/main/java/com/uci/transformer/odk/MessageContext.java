@@ -0,0 +1,30 @@
+package com.uci.transformer.odk;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+
+/**
+ * State of one inbound message, passed along its transform chain. The consumer is shared by all
+ * messages being processed, so nothing specific to a message may be kept on it.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class MessageContext {
+    XMessage xMessage;
+    Transformer transformer;
+    String formID;
+    boolean startingMessage;
+    FormManagerParams previousMeta;
+    /* Menu manager of the form the message was answered in */
+    MenuManager menuManager;
+    String currentXPath;
+    Boolean validResponse;
+    /* Set once the state of the user was saved, the message must not be replayed after that */
+    boolean stateSaved;
+    /* Set if a form step threw, as opposed to a service called by the step */
+    boolean formFailed;
+}
@@ -23,11 +23,18 @@ import com.uci.transformer.odk.repository.MessageRepository;
 import com.uci.transformer.odk.repository.QuestionRepository;
 import com.uci.transformer.odk.repository.StateRepository;
 import com.uci.transformer.odk.utilities.FormInstanceUpdation;
+import com.uci.transformer.odk.utilities.RoutingHeaders;
+import com.uci.transformer.odk.utilities.SessionStateCodec;
+import com.uci.transformer.odk.utilities.XMessageCopier;
+import com.uci.transformer.odk.utilities.XMessageReader;
 import com.uci.transformer.telemetry.AssessmentTelemetryBuilder;
 import com.uci.utils.cache.service.RedisCacheService;
 import com.uci.utils.kafka.SimpleProducer;
 import com.uci.utils.telemetry.service.PosthogService;
 
+import io.micrometer.core.instrument.Metrics;
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import messagerosa.core.model.LocationParams;
@@ -35,7 +42,6 @@ import messagerosa.core.model.Transformer;
 import messagerosa.core.model.XMessage;
 import messagerosa.core.model.XMessage.MessageState;
 import messagerosa.core.model.XMessagePayload;
-import messagerosa.xml.XMessageParser;
 import org.apache.commons.lang3.tuple.Pair;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -45,17 +51,17 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.event.EventListener;
-import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
+import reactor.core.scheduler.Scheduler;
 import reactor.kafka.receiver.ReceiverRecord;
-import reactor.util.function.Tuple2;
+import reactor.util.function.Tuple3;
+import reactor.util.function.Tuples;
 
 import javax.xml.bind.JAXBException;
-import java.io.ByteArrayInputStream;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.LocalDateTime;
@@ -73,6 +79,8 @@ public class ODKConsumerReactive extends TransformerProvider {
     private final Flux<ReceiverRecord<String, String>> reactiveKafkaReceiver;
 
     private static final String SMS_BROADCAST_IDENTIFIER = "Broadcast";
+    private static final int RETRY_GROUP = -1;
+    private static final String DEFAULT_LANGUAGE = "English (en)";
     public static final String XML_PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
 
     @Value("${outbound}")
@@ -93,9 +101,24 @@ public class ODKConsumerReactive extends TransformerProvider {
     @Autowired
     public SimpleProducer kafkaProducer;
 
+    @Autowired
+    private OutboundPublisher outboundPublisher;
+
+    @Autowired
+    private InboundDeduplicator inboundDeduplicator;
+
+    @Autowired
+    private FailedMessageHandler failedMessageHandler;
+
+    @Autowired
+    private FormCircuitBreaker formCircuitBreaker;
+
     @Autowired
     QuestionRepository questionRepo;
 
+    @Autowired
+    private QuestionRegistry questionRegistry;
+
     @Autowired
     AssessmentRepository assessmentRepo;
 
@@ -128,10 +151,6 @@ public class ODKConsumerReactive extends TransformerProvider {
     @Value("${assesment.character.go_to_start}")
     public String assesGoToStartChar;
 
-    public MenuManager menuManager;
-
-    public Boolean isStartingMessage;
-
     @Autowired
     public PosthogService posthogService;
 
@@ -146,60 +165,47 @@ public class ODKConsumerReactive extends TransformerProvider {
 
     @Autowired
     private SurveyService surveyService;
-    @Value("${assessment-buffer-maxsize}")
-    private int assessmentBufferMaxSize;
-    @Value("${assessment-buffer-maxtime}")
-    private int assessmentBufferMaxTime;
+    @Autowired
+    private AssessmentWriter assessmentWriter;
+    @Autowired
+    private SessionStateWriter sessionStateWriter;
+    @Autowired
+    private SessionCache sessionCache;
+
+    @Value("${session-state.compact:false}")
+    private boolean compactSessionState;
+
+    @Value("${odk-consumer.concurrency:16}")
+    private int consumerConcurrency;
+
+    @Autowired
+    private KafkaOffsetCommitter offsetCommitter;
+
+    @Qualifier("computeScheduler")
+    @Autowired
+    private Scheduler computeScheduler;
+
+    @Qualifier("ioScheduler")
+    @Autowired
+    private Scheduler ioScheduler;
 
     @EventListener(ApplicationStartedEvent.class)
     public void onMessage() {
+        final int concurrency = Math.max(1, consumerConcurrency);
+        log.info("ODK consumer started with concurrency: " + concurrency);
+        offsetCommitter.start();
         reactiveKafkaReceiver
-                .doOnNext(new Consumer<ReceiverRecord<String, String>>() {
-                    @Override
-                    public void accept(ReceiverRecord<String, String> stringMessage) {
-                        final long startTime = System.currentTimeMillis();
-                        final Date startDateTime = new Date();
-                        try {
-                            XMessage msg = XMessageParser.parse(new ByteArrayInputStream(stringMessage.value().getBytes()));
-                            logTimeTaken(startTime, 1);
-                            Mono.just(msg)
-                                    .flatMap(message -> transform(message))
-                                    .subscribeOn(Schedulers.parallel())
-                                    .subscribe(transformedMessage -> {
-                                        long endTime = System.currentTimeMillis();
-                                        long duration = (endTime - startTime);
-                                        log.info("Total time spent in processing form: " + duration + ". Start: " + startDateTime + ". End: " + new Date());
-                                        logTimeTaken(startTime, 2);
-                                        if (transformedMessage != null) {
-                                            try {
-                                                if (transformedMessage.getTransformers() != null && transformedMessage.getTransformers().get(0) != null
-                                                        && transformedMessage.getTransformers().get(0).getMetaData() != null && transformedMessage.getTransformers().get(0).getMetaData().get("type") != null
-                                                        && transformedMessage.getTransformers().get(0).getMetaData().get("type").equals("generic")) {
-                                                    log.info("CP-04" + transformedMessage.toXML());
-                                                    kafkaProducer.send(genericTransformer, transformedMessage.toXML());
-
-                                                } else {
-                                                    log.info("CP-05" + transformedMessage.toXML());
-                                                    kafkaProducer.send(processOutboundTopic, transformedMessage.toXML());
-                                                }
-                                            } catch (JAXBException e) {
-                                                log.error("An error occured : " + e.getMessage());
-                                                e.printStackTrace();
-                                            }
-                                        }
-                                    });
-                        } catch (JAXBException e) {
-                            log.error("An error occured : " + e.getMessage());
-                            e.printStackTrace();
-                        } catch (NullPointerException e) {
-                            log.error("An error occured : " + e.getMessage() + " at line no : " + e.getStackTrace()[0].getLineNumber()
-                                    + " in class : " + e.getStackTrace()[0].getClassName());
-                        } catch (Exception e) {
-                            log.error("An error occured : " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    }
-                })
+                .doOnNext(record -> offsetCommitter.received(record.receiverOffset()))
+                .map(this::parseRecord)
+                /* A user's messages always land in the same group & are handled one after the other,
+                 * groups run in parallel. The groups are as many as the concurrency, so none is starved.
+                 * Retried messages have a group of their own & each waits for its backoff without
+                 * holding up the users' groups. */
+                .groupBy(inbound -> inbound.isRetry() ? RETRY_GROUP : Math.floorMod(inbound.getUserKey().hashCode(), concurrency))
+                .flatMap(messages -> messages.key() == RETRY_GROUP
+                        ? messages.flatMap(inbound -> Mono.delay(getRetryDelay(inbound))
+                                .then(processAndComplete(inbound)), concurrency)
+                        : messages.concatMap(this::processAndComplete), concurrency + 1)
                 .doOnError(new Consumer<Throwable>() {
                     @Override
                     public void accept(Throwable e) {
@@ -210,8 +216,186 @@ public class ODKConsumerReactive extends TransformerProvider {
 
     }
 
+    private Mono<Void> processAndComplete(InboundMessage inbound) {
+        return processMessage(inbound)
+                .then(Mono.fromRunnable(() -> offsetCommitter.completed(inbound.getRecord().receiverOffset())));
+    }
+
+    private Duration getRetryDelay(InboundMessage inbound) {
+        return Duration.ofMillis(Math.max(0, failedMessageHandler.getNotBefore(inbound.getRecord()) - System.currentTimeMillis()));
+    }
+
+    /**
+     * Records with routing headers are ordered by the user in the headers & decoded when processed, in
+     * parallel. Records without them are decoded here to find their user.
+     *
+     * @param record kafka record
+     * @return InboundMessage
+     */
+    private InboundMessage parseRecord(ReceiverRecord<String, String> record) {
+        final long startTime = System.currentTimeMillis();
+        RoutingHeaders routing = RoutingHeaders.read(record.headers());
+        InboundMessage inbound = new InboundMessage(record, routing, startTime);
+        if (routing == null) {
+            Metrics.globalRegistry.counter("transformer.inbound.routing", "source", "payload").increment();
+            inbound.getMessage();
+        } else {
+            Metrics.globalRegistry.counter("transformer.inbound.routing", "source", "headers").increment();
+        }
+        return inbound;
+    }
+
+    private XMessage decodeRecord(ReceiverRecord<String, String> record, long startTime) {
+        XMessage msg = null;
+        try {
+            msg = XMessageReader.parse(record.value());
+            logTimeTaken(startTime, 1);
+        } catch (JAXBException e) {
+            log.error("An error occured : " + e.getMessage());
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            log.error("An error occured : " + e.getMessage() + " at line no : " + e.getStackTrace()[0].getLineNumber()
+                    + " in class : " + e.getStackTrace()[0].getClassName());
+        } catch (Exception e) {
+            log.error("An error occured : " + e.getMessage());
+            e.printStackTrace();
+        }
+        return msg;
+    }
+
+    /**
+     * A record routed by its headers to a form that is not loaded is dropped without being decoded
+     *
+     * @param routing routing headers of the record
+     * @return false if the record should be dropped
+     */
+    private boolean isRoutable(RoutingHeaders routing) {
+        if (routing == null || routing.getFormID() == null || routing.getFormID().isEmpty()) {
+            return true;
+        }
+        if (getFormPath(routing.getFormID()) == null) {
+            log.error("formPath null found, dropping message for form : " + routing.getFormID());
+            Metrics.globalRegistry.counter("transformer.inbound.dropped", "reason", "form_not_found").increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Transform a message & send the next message, completing once the broker has acknowledged it. A message
+     * that fails to transform before the state of the user is saved is sent to the retry topic, with the
+     * version of the state it failed with so that it is only replayed if the user has not moved on. One
+     * that fails after, or whose next message cannot be sent, goes to the dead letter topic as the form step
+     * has already run. The user's later messages are still processed, and the record is committed.
+     *
+     * @param inbound
+     * @return Mono<Void>
+     */
+    private Mono<Void> processMessage(InboundMessage inbound) {
+        final long startTime = inbound.getStartTime();
+        final Date startDateTime = new Date(startTime);
+        /* Waits while the assessments buffer is full, ie. the database is behind */
+        return assessmentWriter.awaitCapacity().then(Mono.defer(() -> {
+                    if (!isRoutable(inbound.getRouting())) {
+                        return Mono.<XMessage>empty();
+                    }
+                    XMessage message = inbound.getMessage();
+                    /* A retried message was claimed when it was first received */
+                    if (message == null || (!inbound.isRetry() && !inboundDeduplicator.isFirstDelivery(message))) {
+                        return Mono.<XMessage>empty();
+                    }
+                    final String formID = inbound.getFormID();
+                    final Mono<XMessage> transformed = !formCircuitBreaker.allow(formID)
+                            ? Mono.<XMessage>error(new FormCircuitBreaker.CircuitOpenException(formID, formCircuitBreaker.getOpenUntil(formID)))
+                            : Mono.defer(() -> transform(message, inbound.getExpectedStateVersion()))
+                                    .doOnSuccess(transformedMessage -> formCircuitBreaker.success(formID))
+                                    /* Only failures of the form count, a trial message that fails otherwise lets the next one through */
+                                    .doOnError(e -> {
+                                        if (e instanceof TransformException && ((TransformException) e).isFormFailure()) {
+                                            formCircuitBreaker.failure(formID);
+                                        } else {
+                                            formCircuitBreaker.release(formID);
+                                        }
+                                    })
+                                    .doOnCancel(() -> formCircuitBreaker.release(formID));
+                    if (inbound.isRetry()) {
+                        return transformed;
+                    }
+                    /* Claimed above, released if not processed so that a redelivery of the message is */
+                    return transformed
+                            .onErrorResume(e -> isReplayable(e)
+                                    ? releaseClaim(message).then(Mono.<XMessage>error(e))
+                                    : Mono.<XMessage>error(e))
+                            .doOnCancel(() -> releaseClaim(message).subscribe());
+                }))
+                .subscribeOn(ioScheduler)
+                .flatMap(transformedMessage -> {
+                    long endTime = System.currentTimeMillis();
+                    long duration = (endTime - startTime);
+                    log.info("Total time spent in processing form: " + duration + ". Start: " + startDateTime + ". End: " + new Date());
+                    logTimeTaken(startTime, 2);
+                    if (transformedMessage.getTransformers() != null && transformedMessage.getTransformers().get(0) != null
+                            && transformedMessage.getTransformers().get(0).getMetaData() != null && transformedMessage.getTransformers().get(0).getMetaData().get("type") != null
+                            && transformedMessage.getTransformers().get(0).getMetaData().get("type").equals("generic")) {
+                        return outboundPublisher.send(genericTransformer, transformedMessage, "CP-04")
+                                .onErrorResume(e -> failedMessageHandler.deadLetter(inbound.getRecord(), e));
+                    } else {
+                        return outboundPublisher.send(processOutboundTopic, transformedMessage, "CP-05")
+                                .onErrorResume(e -> failedMessageHandler.deadLetter(inbound.getRecord(), e));
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.error("An error occured : " + e.getMessage());
+                    e.printStackTrace();
+                    /* Not a failure of the message, it waits for the circuit to close */
+                    if (e instanceof FormCircuitBreaker.CircuitOpenException) {
+                        return failedMessageHandler.postpone(inbound.getRecord(),
+                                ((FormCircuitBreaker.CircuitOpenException) e).getOpenUntil(), e);
+                    }
+                    if (!(e instanceof TransformException)) {
+                        return failedMessageHandler.retry(inbound.getRecord(), e);
+                    }
+                    TransformException failure = (TransformException) e;
+                    if (!failure.isReplayable()) {
+                        return failedMessageHandler.deadLetter(inbound.getRecord(), failure.getFailure());
+                    }
+                    return failedMessageHandler.retry(inbound.getRecord(), failure.getFailure(), failure.getStateVersion());
+                })
+                .then();
+    }
+
+    /**
+     * @return false if the message failed after it changed the state of the user
+     */
+    private boolean isReplayable(Throwable e) {
+        return !(e instanceof TransformException) || ((TransformException) e).isReplayable();
+    }
+
+    /**
+     * Release the de-duplication claim of a message that was not processed
+     *
+     * @param message inbound message
+     * @return Mono completing once released, on the io scheduler as it blocks on redis
+     */
+    private Mono<Void> releaseClaim(XMessage message) {
+        return Mono.<Void>fromRunnable(() -> inboundDeduplicator.release(message))
+                .subscribeOn(ioScheduler);
+    }
+
     @Override
     public Mono<XMessage> transform(XMessage xMessage) {
+        return transform(xMessage, null);
+    }
+
+    /**
+     * Transform a message, failing with a TransformException that tells whether it can be replayed
+     *
+     * @param xMessage
+     * @param expectedStateVersion version of the state of the user a retried message failed with, the
+     *                             message is not replayed if the state changed since. Null if unknown
+     * @return Mono<XMessage>
+     */
+    Mono<XMessage> transform(XMessage xMessage, Long expectedStateVersion) {
         ArrayList<Transformer> transformers = xMessage.getTransformers();
         Transformer transformer = transformers.get(0);
 
@@ -229,7 +413,11 @@ public class ODKConsumerReactive extends TransformerProvider {
             log.error("formPath null found return null value : " + formID);
             return Mono.empty();
         }
-        isStartingMessage = xMessage.getPayload().getText() == null ? false : xMessage.getPayload().getText().equals(getTransformerMetaDataValue(transformer, "startingMessage"));
+        final MessageContext context = new MessageContext();
+        context.setXMessage(xMessage);
+        context.setTransformer(transformer);
+        context.setFormID(formID);
+        context.setStartingMessage(xMessage.getPayload().getText() == null ? false : xMessage.getPayload().getText().equals(getTransformerMetaDataValue(transformer, "startingMessage")));
         Boolean addOtherOptions = xMessage.getProvider().equals("sunbird") ? true : false;
 
         // Get details of user from database
@@ -237,34 +425,32 @@ public class ODKConsumerReactive extends TransformerProvider {
             log.error("UserId not found in xmessage : " + xMessage);
             return Mono.empty();
         }
-        return getPreviousMetadata(xMessage, formID)
-                .flatMap((Function<FormManagerParams, Mono<XMessage>>) previousMeta -> {
+        return Mono.defer(() -> getPreviousMetadata(xMessage, formID))
+                .flatMap(previousMeta -> Mono.fromCallable(() -> {
+                            MenuManager.preloadForm(formPath);
+                            return Optional.ofNullable(getFederatedUser(transformer, xMessage));
+                        })
+                        .subscribeOn(ioScheduler)
+                        .map(user -> Pair.of(previousMeta, user)))
+                /* The federated user lookup & the form file reads block, the form step is CPU bound */
+                .subscribeOn(ioScheduler)
+                .publishOn(computeScheduler)
+                .flatMap(formStep(context, (Function<Pair<FormManagerParams, Optional<JSONObject>>, Mono<XMessage>>) metaAndUser -> {
+                    final FormManagerParams previousMeta = metaAndUser.getLeft();
+                    context.setPreviousMeta(previousMeta);
+                    /* The user's later messages were processed while this one waited to be retried */
+                    if (expectedStateVersion != null && !expectedStateVersion.equals(previousMeta.getStateVersion())) {
+                        return Mono.error(new TransformException("State of user " + xMessage.getTo().getUserID()
+                                + " changed since the message failed, expected version: " + expectedStateVersion
+                                + ", found: " + previousMeta.getStateVersion(), previousMeta.getStateVersion(), false));
+                    }
                     final ServiceResponse[] response = new ServiceResponse[1];
                     MenuManager mm;
                     ObjectMapper mapper = new ObjectMapper();
                     JSONObject camp = null; //  is not being used in menumanager, only being added in constructor
                     // Remove camp from MenuManager construction
                     String hiddenFieldsStr = getTransformerMetaDataValue(transformer, "hiddenFields");
-
-
-                    String serviceClass = getTransformerMetaDataValue(transformer, "serviceClass");
-                    JSONObject user = null;
-                    if (serviceClass.equalsIgnoreCase(SurveyService.class.getSimpleName())) {
-                        String[] mobileNo = xMessage.getTo().getUserID().split(":");
-                        try {
-                            if (mobileNo[1] != null && !mobileNo[1].isEmpty()) {
-                                user = surveyService.getUserByPhoneFromFederatedServers(hiddenFieldsStr, mobileNo[1]);
-                            }
-                        } catch (ArrayIndexOutOfBoundsException ex) {
-                            user = null;
-                            log.error("An error occured : " + ex.getMessage());
-                        }
-                    } else {
-                        user = userService.getUserByPhoneFromFederatedServers(
-                                getTransformerMetaDataValue(transformer, "botId"),
-                                xMessage.getTo().getUserID()
-                        );
-                    }
+                    JSONObject user = metaAndUser.getRight().orElse(null);
 
                     log.info("Federated User by phone : " + user);
 //                        try {
@@ -285,15 +471,17 @@ public class ODKConsumerReactive extends TransformerProvider {
                     String instanceXMlPrevious = "";
                     Boolean prefilled;
                     String answer;
-                    if (previousMeta.instanceXMlPrevious == null || previousMeta.currentAnswer.equals(assesGoToStartChar) || isStartingMessage) {
+                    if (previousMeta.instanceXMlPrevious == null || previousMeta.currentAnswer.equals(assesGoToStartChar) || context.isStartingMessage()) {
                         /* If bot restarted - create new session id */
                         if (previousMeta.currentAnswer.equals(assesGoToStartChar)) {
                             xMessage.setSessionId(BotUtil.newConversationSessionId());
                         }
                         previousMeta.currentAnswer = assesGoToStartChar;
-                        ServiceResponse serviceResponse = new MenuManager(null,
+                        MenuManager startMenuManager = new MenuManager(null,
                                 null, null, formPath, formID, false,
-                                questionRepo, redisCacheService, xMessage.getTo().getUserID(), xMessage.getApp(), null).start();
+                                questionRepo, redisCacheService, xMessage.getTo().getUserID(), xMessage.getApp(), null);
+                        startMenuManager.setSessionLanguage(previousMeta.getLanguage());
+                        ServiceResponse serviceResponse = startMenuManager.start();
                         FormInstanceUpdation ss = FormInstanceUpdation.builder().build();
                         ss.parse(serviceResponse.currentResponseState);
                         ss.updateAdapterProperties(xMessage.getChannel(), xMessage.getProvider());
@@ -307,6 +495,7 @@ public class ODKConsumerReactive extends TransformerProvider {
                                 formPath, formID, redisCacheService,
                                 xMessage.getTo().getUserID(), xMessage.getApp(), xMessage.getPayload(),
                                 fileCdnFactory.getFileCdnProvider());
+                        mm.setSessionLanguage(previousMeta.getLanguage());
                         response[0] = mm.start();
                     } else {
                         FormInstanceUpdation ss = FormInstanceUpdation.builder().build();
@@ -353,6 +542,7 @@ public class ODKConsumerReactive extends TransformerProvider {
                                     prefilled, questionRepo, user, true, redisCacheService,
                                     xMessage, fileCdnFactory.getFileCdnProvider());
                         }
+                        mm.setSessionLanguage(previousMeta.getLanguage());
                         response[0] = mm.start();
                     }
 
@@ -360,16 +550,21 @@ public class ODKConsumerReactive extends TransformerProvider {
 
                     /* To use with previous question & question payload methods */
 //                                            log.info("menu manager instanceXMlPrevious: "+instanceXMlPrevious);
-                    menuManager = mm;
+                    /* Saved before the user's next message is processed */
+                    final Mono<Void> languageSaved = saveLanguage(xMessage.getTo().getUserID(), xMessage.getApp(), mm);
+                    context.setMenuManager(mm);
+                    context.setCurrentXPath(response[0].currentIndex);
+                    context.setValidResponse(response[0].validResponse);
 
                     /* Previous Question Data */
                     Question prevQuestion = null;
-                    if (!isStartingMessage) {
-                        prevQuestion = menuManager.getQuestionFromXPath(previousMeta.previousPath);
+                    if (!context.isStartingMessage()) {
+                        prevQuestion = mm.getQuestionFromXPath(previousMeta.previousPath);
                     }
 
                     // Save answerData => PreviousQuestion + CurrentAnswer
-                    Mono<Pair<Boolean, List<Question>>> updateQuestionAndAssessment = updateQuestionAndAssessment(getPreviousQuestions(
+                    Mono<Assessment> updateQuestionAndAssessment = updateQuestionAndAssessment(context,
+                            getPreviousQuestions(
                                     previousMeta.previousPath,
                                     formID,
                                     response[0].formVersion),
@@ -382,7 +577,7 @@ public class ODKConsumerReactive extends TransformerProvider {
                      **/
                     if (response[0].currentIndex.contains("eof__") && response[0].currentIndex.contains("doubtnut")) {
                         String nextBotID = mm.getNextBotID(response[0].currentIndex);
-                        return botService.getBotNodeFromId(nextBotID).map(new Function<JsonNode, Mono<XMessage>>() {
+                        return languageSaved.then(botService.getBotNodeFromId(nextBotID)).map(new Function<JsonNode, Mono<XMessage>>() {
                             @Override
                             public Mono<XMessage> apply(JsonNode data) {
 //                                    JsonNode data = jsonNode.get("data");
@@ -436,27 +631,37 @@ public class ODKConsumerReactive extends TransformerProvider {
                                 xMessage.setSessionId(UUID.randomUUID());
                                 return Mono.just(xMessage);
                             }
-                        }).block();
+                        }).flatMap(nextMessage -> nextMessage);
                     }
                     /* If form contains eof__, then process next bot by id addded with eof__bot_id, else process message */
                     else if (response[0].currentIndex.contains("eof__")) {
                         String nextBotID = mm.getNextBotID(response[0].currentIndex);
+                        final String language = mm.getChangedLanguage() != null ? mm.getChangedLanguage() : previousMeta.getLanguage();
 
-                        return Mono.zip(
+                        return languageSaved.then(Mono.zip(
                                 botService.getBotNameByBotID(nextBotID),
                                 botService.getFirstFormByBotID(nextBotID)
-                        ).flatMap(new Function<Tuple2<String, String>, Mono<XMessage>>() {
+                        )).flatMap(objects -> Mono.fromCallable(() -> {
+                            String nextFormPath = getFormPath(objects.getT2());
+                            if (nextFormPath == null) {
+                                throw new IllegalStateException("Unable to find form of bot " + nextBotID + ": " + objects.getT2());
+                            }
+                            MenuManager.preloadForm(nextFormPath);
+                            return Tuples.of(objects.getT1(), objects.getT2(), nextFormPath);
+                        }).subscribeOn(ioScheduler)).publishOn(computeScheduler).flatMap(formStep(context, new Function<Tuple3<String, String, String>, Mono<XMessage>>() {
                             @Override
-                            public Mono<XMessage> apply(Tuple2<String, String> objects) {
+                            public Mono<XMessage> apply(Tuple3<String, String, String> objects) {
                                 String nextFormID = objects.getT2();
                                 String nextAppName = objects.getT1();
+                                String nextFormPath = objects.getT3();
 
-                                ServiceResponse serviceResponse = new MenuManager(
+                                MenuManager startMenuManager = new MenuManager(
                                         null, null, null,
-                                        getFormPath(nextFormID), nextFormID,
+                                        nextFormPath, nextFormID,
                                         false, questionRepo, redisCacheService,
-                                        xMessage.getTo().getUserID(), xMessage.getApp(), null)
-                                        .start();
+                                        xMessage.getTo().getUserID(), xMessage.getApp(), null);
+                                startMenuManager.setSessionLanguage(language);
+                                ServiceResponse serviceResponse = startMenuManager.start();
                                 FormInstanceUpdation ss = FormInstanceUpdation.builder().build();
                                 ss.parse(serviceResponse.currentResponseState);
                                 ss.updateAdapterProperties(xMessage.getChannel(), xMessage.getProvider());
@@ -465,18 +670,137 @@ public class ODKConsumerReactive extends TransformerProvider {
                                 String instanceXMlPrevious = ss.getXML();
                                 log.debug("Instance value >> " + instanceXMlPrevious);
                                 MenuManager mm2 = new MenuManager(null, null,
-                                        instanceXMlPrevious, getFormPath(nextFormID), nextFormID, true,
+                                        instanceXMlPrevious, nextFormPath, nextFormID, true,
                                         questionRepo, redisCacheService,
                                         xMessage.getTo().getUserID(), xMessage.getApp(), null);
+                                mm2.setSessionLanguage(language);
                                 ServiceResponse response = mm2.start();
+                                final Mono<Void> nextLanguageSaved = saveLanguage(xMessage.getTo().getUserID(), xMessage.getApp(), mm2);
                                 xMessage.setApp(nextAppName);
-                                return decodeXMessage(xMessage, response, nextFormID, updateQuestionAndAssessment);
+                                return nextLanguageSaved.then(resolveMediaUrl(mm2, response.getNextMessage()))
+                                        .then(decodeXMessage(xMessage, response, nextFormID, null, context, updateQuestionAndAssessment));
                             }
-                        });
+                        }));
                     } else {
-                        return decodeXMessage(xMessage, response[0], formID, updateQuestionAndAssessment);
+                        return languageSaved.then(resolveMediaUrl(mm, response[0].getNextMessage()))
+                                .then(decodeXMessage(xMessage, response[0], formID, previousMeta.getStateVersion(), context, updateQuestionAndAssessment));
                     }
-                });
+                }))
+                .onErrorMap(e -> !(e instanceof TransformException), e -> new TransformException(e,
+                        context.getPreviousMeta() != null ? context.getPreviousMeta().getStateVersion() : null,
+                        !context.isStateSaved(), context.isFormFailed()));
+    }
+
+    /**
+     * Mark the message as failed by its form if a form step throws, the services it calls fail through
+     * the Mono it returns
+     *
+     * @param context message context
+     * @param step    form step
+     * @return Function
+     */
+    private <T, R> Function<T, R> formStep(MessageContext context, Function<T, R> step) {
+        return value -> {
+            try {
+                return step.apply(value);
+            } catch (RuntimeException e) {
+                context.setFormFailed(true);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Set the media url of a payload built by the menu manager, on the io scheduler as a file url is
+     * signed by the cdn
+     *
+     * @return Mono completing once set
+     */
+    private Mono<Void> resolveMediaUrl(MenuManager mm, XMessagePayload payload) {
+        if (payload == null || payload.getMedia() == null) {
+            return Mono.empty();
+        }
+        return Mono.<Void>fromRunnable(() -> mm.resolveMediaUrl(payload))
+                .subscribeOn(ioScheduler);
+    }
+
+    /**
+     * Save the language the user chose in a step, in the session cache & in the language cache it falls
+     * back to once the session has expired
+     *
+     * @return Mono completing once saved, errors are logged
+     */
+    private Mono<Void> saveLanguage(String userID, String appID, MenuManager mm) {
+        String language = mm.getChangedLanguage();
+        if (language == null) {
+            return Mono.empty();
+        }
+        return sessionCache.putLanguage(userID, appID, language)
+                .then(Mono.<Void>fromRunnable(() -> redisCacheService.setLanguageCache(getLanguageKey(userID, appID), language))
+                        .subscribeOn(ioScheduler)
+                        .onErrorResume(e -> {
+                            log.error("Unable to set language of user " + userID + " in redis: " + e.getMessage());
+                            return Mono.empty();
+                        }));
+    }
+
+    /**
+     * Language of the user in a bot: from the session, else from the language cache, else the default.
+     * It is then kept in the session, to be read with the state from the next message on.
+     *
+     * @param userID
+     * @param appID
+     * @param sessionLanguage language read with the session, null if not cached
+     * @return Mono<String>
+     */
+    private Mono<String> getLanguage(String userID, String appID, String sessionLanguage) {
+        if (sessionLanguage != null) {
+            return Mono.just(sessionLanguage);
+        }
+        return Mono.fromCallable(() -> (String) redisCacheService.getLanguageCache(getLanguageKey(userID, appID)))
+                .subscribeOn(ioScheduler)
+                .onErrorResume(e -> {
+                    log.error("Unable to get language of user " + userID + " from redis: " + e.getMessage());
+                    return Mono.empty();
+                })
+                .defaultIfEmpty(DEFAULT_LANGUAGE)
+                .flatMap(language -> sessionCache.putLanguage(userID, appID, language).thenReturn(language));
+    }
+
+    /**
+     * Key of the language of the user in the language cache, as in the menu manager
+     */
+    private String getLanguageKey(String userID, String appID) {
+        return appID != null ? appID + "-" + userID : userID;
+    }
+
+    /**
+     * Get details of the user from the federated servers, a blocking call
+     *
+     * @param transformer
+     * @param xMessage
+     * @return user, null if not found
+     */
+    private JSONObject getFederatedUser(Transformer transformer, XMessage xMessage) {
+        String serviceClass = getTransformerMetaDataValue(transformer, "serviceClass");
+        JSONObject user = null;
+        if (serviceClass.equalsIgnoreCase(SurveyService.class.getSimpleName())) {
+            String[] mobileNo = xMessage.getTo().getUserID().split(":");
+            try {
+                if (mobileNo[1] != null && !mobileNo[1].isEmpty()) {
+                    user = surveyService.getUserByPhoneFromFederatedServers(getTransformerMetaDataValue(transformer, "hiddenFields"), mobileNo[1]);
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                user = null;
+                log.error("An error occured : " + ex.getMessage());
+            }
+        } else {
+            user = userService.getUserByPhoneFromFederatedServers(
+                    getTransformerMetaDataValue(transformer, "botId"),
+                    xMessage.getTo().getUserID()
+            );
+        }
+        return user;
     }
 
     /**
@@ -496,30 +820,29 @@ public class ODKConsumerReactive extends TransformerProvider {
         if (!message.getMessageState().equals(XMessage.MessageState.OPTED_IN)) {
 
             if (message != null && message.getTo() != null && message.getTo().getUserID() != null && !message.getTo().getUserID().isEmpty() && formID != null && !formID.isEmpty()) {
-                String cacheKey = String.format("get-previous-meta-data-%s-%s", message.getTo().getUserID(), formID);
-                log.info("getPreviousMetadata:: cacheKey : " + cacheKey);
-                if (redisCacheService.isKeyExists(cacheKey)) {
-                    GupshupStateEntity stateEntity = (GupshupStateEntity) redisCacheService.getCache(cacheKey);
-                    log.info("getPreviousMetadata:: Getting findByPhoneNoAndBotFormName from cache : " + stateEntity);
-                    if (stateEntity != null) {
-                        return Mono.just(prepareFormManagerParams(stateEntity, message));
-                    }
-                }
-                log.info("getPreviousMetadata:: findByPhoneNoAndBotFormName from db...UserId : {}, FormId : {}", message.getTo().getUserID(), formID);
-                return stateRepo.findByPhoneNoAndBotFormName(message.getTo().getUserID(), formID)
-                        .defaultIfEmpty(new GupshupStateEntity())
-                        .flatMap(new Function<GupshupStateEntity, Mono<FormManagerParams>>() {
-                            @Override
-                            public Mono<FormManagerParams> apply(GupshupStateEntity stateEntity) {
-                                if (stateEntity != null) {
-                                    log.info("getPreviousMetadata::Received data from DB : ID {}, Phone {} ", stateEntity.getId(), stateEntity.getPhoneNo());
-                                    redisCacheService.setCache(cacheKey, stateEntity);
-                                } else {
-                                    log.error("getPreviousMetadata:: GupshupStateEntity is null or Id not found : " + stateEntity);
-                                }
-                                FormManagerParams formManagerParams = prepareFormManagerParams(stateEntity, message);
-                                return Mono.just(formManagerParams);
+                final String userID = message.getTo().getUserID();
+                /* State & language in one redis round trip */
+                return sessionCache.get(userID, message.getApp(), formID)
+                        .flatMap(session -> getLanguage(userID, message.getApp(), session.getLanguage())
+                                .map(language -> new SessionCache.Session(session.getState(), language)))
+                        .flatMap(session -> {
+                            GupshupStateEntity pendingState = sessionStateWriter.getPending(userID, formID);
+                            if (pendingState != null) {
+                                log.info("getPreviousMetadata:: Getting state not flushed yet : " + pendingState);
+                                return Mono.just(prepareFormManagerParams(pendingState, message, session.getLanguage()));
+                            }
+                            if (session.getState() != null) {
+                                log.info("getPreviousMetadata:: Getting findByPhoneNoAndBotFormName from cache : " + session.getState());
+                                return Mono.just(prepareFormManagerParams(session.getState(), message, session.getLanguage()));
                             }
+                            log.info("getPreviousMetadata:: findByPhoneNoAndBotFormName from db...UserId : {}, FormId : {}", userID, formID);
+                            return stateRepo.findByPhoneNoAndBotFormName(userID, formID)
+                                    .defaultIfEmpty(new GupshupStateEntity())
+                                    .flatMap(stateEntity -> {
+                                        log.info("getPreviousMetadata::Received data from DB : ID {}, Phone {} ", stateEntity.getId(), stateEntity.getPhoneNo());
+                                        return sessionCache.putState(userID, formID, stateEntity)
+                                                .thenReturn(prepareFormManagerParams(stateEntity, message, session.getLanguage()));
+                                    });
                         })
                         .doOnError(e -> log.error("Error in getPreviousMetadata:: " + e.getMessage()));
             } else {
@@ -531,17 +854,32 @@ public class ODKConsumerReactive extends TransformerProvider {
             formManagerParams.setCurrentAnswer("");
             formManagerParams.setPreviousPath(prevPath);
             formManagerParams.setInstanceXMlPrevious(prevXMl);
-            return Mono.just(formManagerParams);
+            if (message.getTo() == null || message.getTo().getUserID() == null || formID == null) {
+                return Mono.just(formManagerParams);
+            }
+            final String userID = message.getTo().getUserID();
+            return sessionCache.get(userID, message.getApp(), formID)
+                    .flatMap(session -> getLanguage(userID, message.getApp(), session.getLanguage()))
+                    .map(language -> {
+                        formManagerParams.setLanguage(language);
+                        return formManagerParams;
+                    });
         }
     }
 
-    private FormManagerParams prepareFormManagerParams(GupshupStateEntity stateEntity, XMessage message) {
+    private FormManagerParams prepareFormManagerParams(GupshupStateEntity stateEntity, XMessage message, String language) {
         FormManagerParams formManagerParams = new FormManagerParams();
+        formManagerParams.setLanguage(language);
         String prevXMl = null, prevPath = null;
         if (stateEntity != null && message.getPayload() != null) {
-            prevXMl = stateEntity.getXmlPrevious();
+            prevXMl = decodeSessionState(stateEntity.getXmlPrevious());
             prevPath = stateEntity.getPreviousPath();
         }
+        if (stateEntity != null) {
+            /* State never saved is expected at version 0, state cached before versioning at any version */
+            formManagerParams.setStateVersion(stateEntity.getVersion() == null && stateEntity.getId() == null
+                    ? Long.valueOf(0) : stateEntity.getVersion());
+        }
 
         // Handle image responses to a question
         if (message.getPayload() != null) {
@@ -581,70 +919,62 @@ public class ODKConsumerReactive extends TransformerProvider {
         return text.trim();
     }
 
+    /**
+     * Save the question if new & the assessment of the answer, completing once both are done. The state of
+     * the user is already saved, so a failure is logged & does not fail the message.
+     */
     @NotNull
-    private Mono<Pair<Boolean, List<Question>>> updateQuestionAndAssessment(Mono<Pair<Boolean, List<Question>>> previousQuestions, Question question, Question prevQuestion) {
+    private Mono<Assessment> updateQuestionAndAssessment(MessageContext context, Mono<Pair<Boolean, List<Question>>> previousQuestions, Question question, Question prevQuestion) {
         return previousQuestions
-                .doOnNext(new Consumer<Pair<Boolean, List<Question>>>() {
-                    @Override
-                    public void accept(Pair<Boolean, List<Question>> existingQuestionStatus) {
-                        if (existingQuestionStatus.getLeft()) {
-                            log.info("updateQuestionAndAssessment::Found Question id: " + existingQuestionStatus.getRight().get(0).getId() + ", xPath: " + existingQuestionStatus.getRight().get(0).getXPath());
-//                            saveAssessmentData(existingQuestionStatus, formID, previousMeta, transformer, xMessage, null, currentXPath, validResponse);
-                        } else {
-                            Question saveQuestion;
-                            if (prevQuestion == null) {
-                                saveQuestion = question;
-                            } else {
-                                saveQuestion = prevQuestion;
-                            }
-                            log.info("updateQuestionAndAssessment::Start Saving Question : xpath : " + saveQuestion.getXPath() + " formVersion: " + saveQuestion.getFormVersion() + " formId: " + saveQuestion.getFormID());
-                            saveQuestion(saveQuestion)
-                                    .doOnError(throwable -> {
-                                        log.error("Exception While Saving Question : " + throwable.getMessage());
-                                    })
-                                    .subscribe(new Consumer<Question>() {
-                                        @Override
-                                        public void accept(Question question) {
-                                            log.info("updateQuestionAndAssessment::Question Saved Successfully, id: " + question.getId() + ", xPath: " + question.getXPath());
-//                                            saveAssessmentData(existingQuestionStatus, formID, previousMeta, transformer, xMessage, question, currentXPath, validResponse);
-                                        }
-                                    });
-                        }
+                .publishOn(computeScheduler)
+                .flatMap(existingQuestionStatus -> {
+                    if (existingQuestionStatus.getLeft()) {
+                        log.info("updateQuestionAndAssessment::Found Question id: " + existingQuestionStatus.getRight().get(0).getId() + ", xPath: " + existingQuestionStatus.getRight().get(0).getXPath());
+                        return saveAssessmentData(existingQuestionStatus, context, null);
+                    }
+                    Question saveQuestion;
+                    if (prevQuestion == null) {
+                        saveQuestion = question;
+                    } else {
+                        saveQuestion = prevQuestion;
                     }
+                    log.info("updateQuestionAndAssessment::Start Saving Question : xpath : " + saveQuestion.getXPath() + " formVersion: " + saveQuestion.getFormVersion() + " formId: " + saveQuestion.getFormID());
+                    return saveQuestion(saveQuestion)
+                            .doOnError(throwable -> log.error("Exception While Saving Question : " + throwable.getMessage()))
+                            .publishOn(computeScheduler)
+                            .flatMap(savedQuestion -> {
+                                log.info("updateQuestionAndAssessment::Question Saved Successfully, id: " + savedQuestion.getId() + ", xPath: " + savedQuestion.getXPath());
+                                return saveAssessmentData(existingQuestionStatus, context, savedQuestion);
+                            });
+                })
+                .onErrorResume(e -> {
+                    log.error("updateQuestionAndAssessment::Unable to save assessment: " + e.getMessage());
+                    Metrics.globalRegistry.counter("transformer.assessments.failed").increment();
+                    return Mono.empty();
                 });
     }
 
     private Mono<Pair<Boolean, List<Question>>> getPreviousQuestions(String previousPath, String formID, String formVersion) {
         log.info("ODKConsumerReactive:getPreviousQuestions:: previousPath: " + previousPath + " :: formId: " + formID + " :: formVersion:" + formVersion);
-        return questionRepo
-                .findQuestionByXPathAndFormIDAndFormVersion(previousPath, formID, formVersion)
-                .collectList()
-                .flatMap(new Function<List<Question>, Mono<Pair<Boolean, List<Question>>>>() {
-                    @Override
-                    public Mono<Pair<Boolean, List<Question>>> apply(List<Question> questions) {
-                        Pair<Boolean, List<Question>> response = Pair.of(false, new ArrayList<Question>());
-                        if (questions != null && questions.size() > 0) {
-                            log.info("ODKConsumerReactive:getPreviousQuestions:: questions size : " + questions.size());
-                            response = Pair.of(true, questions);
-                        }
-                        return Mono.just(response);
-                    }
-                });
+        return questionRegistry
+                .find(previousPath, formID, formVersion)
+                .map(question -> question.isPresent()
+                        ? Pair.of(true, Collections.singletonList(question.get()))
+                        : Pair.of(false, Collections.<Question>emptyList()));
     }
 
     private Mono<Question> saveQuestion(Question question) {
-        return questionRepo.save(question)
-                .onErrorResume(DataIntegrityViolationException.class, ex -> {
-                    log.info("onErrorResume::Question Data getXPath : " + question.getXPath() + "  : getFormID : " + question.getFormID() + " : getFormVersion : " + question.getFormVersion());
-                    return questionRepo.findQuestionByXPathAndFormIDAndFormVersionOrderByCreatedOnDesc(question.getXPath(), question.getFormID(), question.getFormVersion())
-                            .switchIfEmpty(Mono.error(ex));
-                });
+        return questionRegistry.register(question);
     }
 
-    private void saveAssessmentData(Pair<Boolean, List<Question>> existingQuestionStatus,
-                                    String formID, FormManagerParams previousMeta,
-                                    Transformer transformer, XMessage xMessage, Question question,
-                                    String currentXPath, Boolean validResponse) {
+    /**
+     * Buffer the assessment of the answer & send its telemetry events
+     *
+     * @return Mono with the assessment, completing once the events are sent
+     */
+    Mono<Assessment> saveAssessmentData(Pair<Boolean, List<Question>> existingQuestionStatus, MessageContext context, Question question) {
+        XMessage xMessage = context.getXMessage();
+        Transformer transformer = context.getTransformer();
         if (question == null) {
             question = existingQuestionStatus.getRight().get(0);
         }
@@ -654,10 +984,11 @@ public class ODKConsumerReactive extends TransformerProvider {
         Assessment assessment = Assessment.builder()
                 .question(question)
                 .deviceID(userID)
-                .answer(previousMeta.currentAnswer)
+                .answer(context.getPreviousMeta().currentAnswer)
                 .botID(UUID.fromString(getTransformerMetaDataValue(transformer, "botId")))
                 .userID(userID)
                 .build();
+        Mono<Void> events = Mono.empty();
         try {
             if (question != null) {
                 log.info("In saveAssessmentData, question id: " + question.getId() + ", question xpath: " + question.getXPath());
@@ -665,11 +996,12 @@ public class ODKConsumerReactive extends TransformerProvider {
                 log.info("In saveAssessmentData, Question empty: " + question);
             }
 
-            if (question != null && !isStartingMessage) {
+            if (question != null && !context.isStartingMessage()) {
 
-                XMessagePayload questionPayload = menuManager.getQuestionPayloadFromXPath(question.getXPath());
+                XMessagePayload questionPayload = context.getMenuManager().getQuestionPayloadFromXPath(question.getXPath());
 
-                sendEvents(xMessage, questionPayload, assessment, transformer, currentXPath, validResponse);
+                events = resolveMediaUrl(context.getMenuManager(), questionPayload)
+                        .then(Mono.defer(() -> sendEvents(xMessage, questionPayload, assessment, transformer, context.getCurrentXPath(), context.getValidResponse())));
             }
         } catch (Exception e) {
             log.error("An error occured : " + e.getMessage());
@@ -678,34 +1010,31 @@ public class ODKConsumerReactive extends TransformerProvider {
         log.info("question xpath:" + question.getXPath() + ",answer: " + assessment.getAnswer());
 
         saveAssessmentBuffer(assessment);
+        return events.thenReturn(assessment);
     }
 
     /**
-     * Save Assessment in batch
+     * Save Assessment in batch, with the assessments of other messages
      *
      * @param assessment
      */
     private void saveAssessmentBuffer(Assessment assessment) {
-        Flux.just(assessment)
-                .bufferTimeout(assessmentBufferMaxSize, Duration.ofSeconds(assessmentBufferMaxTime))
-                .onBackpressureBuffer()
-                .flatMap(assessmentBatch -> assessmentRepo.saveAll(assessmentBatch))
-                .collectList()
-                .flatMap(assessmentList -> {
-                    assessmentList.forEach(assessment1 -> {
-                        log.info("Assessment Saved Successfully {}", assessment1.getId());
-                    });
-                    return Mono.empty();
-                }).subscribe();
+        assessmentWriter.write(assessment);
     }
 
-    private void sendEvents(XMessage xMessage, XMessagePayload questionPayload, Assessment assessment, Transformer transformer,
-                            String currentXPath, Boolean validResponse) throws Exception {
+    /**
+     * Send the telemetry events of an assessment, the posthog requests are not waited for
+     *
+     * @return Mono completing once the exhaust event is sent, errors are logged
+     */
+    private Mono<Void> sendEvents(XMessage xMessage, XMessagePayload questionPayload, Assessment assessment, Transformer transformer,
+                                  String currentXPath, Boolean validResponse) {
         if (exhaustTelemetryEnabled.equalsIgnoreCase("true") || posthogEventEnabled.equalsIgnoreCase("true")) {
             log.info("find xmessage by app: " + xMessage.getApp() + ", userId: " + xMessage.getTo().getUserID() + ", fromId: admin, status: " + MessageState.SENT.name());
             /* Get Previous question XMessage */
-            getLastSentXMessage(xMessage.getApp(), xMessage.getTo().getUserID())
-                    .subscribe(new Consumer<XMessageDAO>() {
+            return getLastSentXMessage(xMessage.getApp(), xMessage.getTo().getUserID())
+                    .next()
+                    .doOnNext(new Consumer<XMessageDAO>() {
                         @Override
                         public void accept(XMessageDAO xMsgDao) {
                             log.info("found xMsgDao");
@@ -764,8 +1093,14 @@ public class ODKConsumerReactive extends TransformerProvider {
                                 }
                             }
                         }
-                    });
+                    })
+                    .onErrorResume(e -> {
+                        log.error("Exception in telemetry events: " + e.getMessage());
+                        return Mono.empty();
+                    })
+                    .then();
         }
+        return Mono.empty();
     }
 
     /**
@@ -825,18 +1160,21 @@ public class ODKConsumerReactive extends TransformerProvider {
         return xMsgRepo.findFirstByAppAndUserIdAndFromIdAndMessageStateOrderByTimestampDesc(appName, userID, "admin", MessageState.SENT.name());
     }
 
-    private Mono<XMessage> decodeXMessage(XMessage xMessage, ServiceResponse response, String formID, Mono<Pair<Boolean, List<Question>>> updateQuestionAndAssessment) {
+    private Mono<XMessage> decodeXMessage(XMessage xMessage, ServiceResponse response, String formID, Long stateVersion,
+                                          MessageContext context, Mono<Assessment> updateQuestionAndAssessment) {
         XMessage nextMessage = getMessageFromResponse(xMessage, response);
         if (isEndOfForm(response)) {
             return appendNewResponse(formID, xMessage, response)
-                    .flatMap(resp -> replaceUserState(formID, xMessage, response))
-                    .flatMap(resp -> Mono.defer(() -> Mono.fromCallable(updateQuestionAndAssessment::subscribe)))
-                    .flatMap(resp -> Mono.defer(() -> Mono.fromCallable(() -> new UploadService().submit(response.currentResponseState, restTemplate, customRestTemplate))))
+                    .flatMap(resp -> Mono.defer(() -> replaceUserState(formID, xMessage, response, stateVersion, true)).subscribeOn(ioScheduler))
+                    .doOnNext(state -> context.setStateSaved(true))
+                    .flatMap(resp -> updateQuestionAndAssessment.thenReturn(resp))
+                    .flatMap(resp -> Mono.defer(() -> Mono.fromCallable(() -> new UploadService().submit(response.currentResponseState, restTemplate, customRestTemplate)).subscribeOn(ioScheduler)))
                     .flatMap(resp -> Mono.just(getClone(nextMessage)));
         } else {
             return appendNewResponse(formID, xMessage, response)
-                    .flatMap(resp -> replaceUserState(formID, xMessage, response))
-                    .flatMap(resp -> Mono.defer(() -> Mono.fromCallable(updateQuestionAndAssessment::subscribe)))
+                    .flatMap(resp -> Mono.defer(() -> replaceUserState(formID, xMessage, response, stateVersion, false)).subscribeOn(ioScheduler))
+                    .doOnNext(state -> context.setStateSaved(true))
+                    .flatMap(resp -> updateQuestionAndAssessment.thenReturn(resp))
                     .flatMap(resp -> Mono.just(getClone(nextMessage)));
         }
     }
@@ -862,13 +1200,7 @@ public class ODKConsumerReactive extends TransformerProvider {
 
     @Nullable
     private XMessage getClone(XMessage nextMessage) {
-        XMessage cloneMessage = null;
-        try {
-            cloneMessage = XMessageParser.parse(new ByteArrayInputStream(nextMessage.toXML().getBytes()));
-        } catch (JAXBException e) {
-            e.printStackTrace();
-        }
-        return cloneMessage;
+        return XMessageCopier.copy(nextMessage);
     }
 
     private XMessage getMessageFromResponse(XMessage xMessage, ServiceResponse response) {
@@ -896,75 +1228,106 @@ public class ODKConsumerReactive extends TransformerProvider {
         return msgRepo.save(msgEntity);
     }
 
-    private Mono<GupshupStateEntity> replaceUserState(String formID, XMessage xMessage, ServiceResponse response) {
+    /**
+     * Save the state of the user in the form in one statement, if it was not updated since it was read.
+     * With write behind the state is saved in redis & flushed to the database later, or now if the form ended.
+     *
+     * @param formID
+     * @param xMessage
+     * @param response
+     * @param stateVersion version of the state the message was processed with, null if unknown
+     * @param endOfForm
+     * @return Mono<GupshupStateEntity>, errors with a TransformException that is not replayable, caused by an
+     * OptimisticLockingFailureException, if the state was updated concurrently
+     */
+    private Mono<GupshupStateEntity> replaceUserState(String formID, XMessage xMessage, ServiceResponse response, Long stateVersion, boolean endOfForm) {
         if (xMessage == null || xMessage.getTo() == null && xMessage.getTo().getUserID() == null || xMessage.getTo().getUserID().isEmpty() || formID == null || formID.isEmpty()) {
             log.error("replaceUserState:UserId or FormId is null/empty found : userid : " + xMessage.getTo() + " :::: formId : " + formID);
             return Mono.empty();
         }
-//        log.info("replaceUserState:: Saving State : UserId: {} , formId : {} ", xMessage.getTo().getUserID(), formID);
-        String cacheKey = String.format("get-previous-meta-data-%s-%s", xMessage.getTo().getUserID(), formID);
-        log.info("replaceUserState:: cacheKey : " + cacheKey);
-        if (redisCacheService.isKeyExists(cacheKey)) {
-            GupshupStateEntity saveEntity = (GupshupStateEntity) redisCacheService.getCache(cacheKey);
-            log.info("replaceUserState:: Getting findByPhoneNoAndBotFormName from cache : " + saveEntity);
-            if (saveEntity != null) {
-                saveEntity.setPhoneNo(xMessage.getTo().getUserID());
-                saveEntity.setPreviousPath(response.getCurrentIndex());
-                saveEntity.setXmlPrevious(response.getCurrentResponseState());
-                saveEntity.setBotFormName(formID);
-                log.info("replaceUserState: Getting data from cache : " + saveEntity);
-                redisCacheService.setCache(cacheKey, saveEntity);
-                return stateRepo.save(saveEntity)
-                        .doOnError(new Consumer<Throwable>() {
-                            @Override
-                            public void accept(Throwable throwable) {
-                                log.error("replaceUserState::Cache:Unable to persist state entity {}", throwable.getMessage());
-                            }
-                        }).doOnNext(new Consumer<GupshupStateEntity>() {
-                            @Override
-                            public void accept(GupshupStateEntity gupshupStateEntity) {
-                                log.info("replaceUserState::Cache:Successfully persisted state entity : Phone No : {} , Form Id : {} , StateId : {}", gupshupStateEntity.getPhoneNo(), formID, gupshupStateEntity.getId());
-                            }
-                        });
-            }
-        }
-        log.info("replaceUserState:: findByPhoneNoAndBotFormName from db...");
-
-        return stateRepo.findByPhoneNoAndBotFormName(xMessage.getTo().getUserID(), formID)
-                .defaultIfEmpty(new GupshupStateEntity())
-                .map(new Function<GupshupStateEntity, Mono<GupshupStateEntity>>() {
-                    @Override
-                    public Mono<GupshupStateEntity> apply(GupshupStateEntity saveEntity) {
+        final String userID = xMessage.getTo().getUserID();
+        log.info("replaceUserState:: UserId : " + userID + ", formId : " + formID + ", version : " + stateVersion);
+        if (sessionStateWriter.isEnabled()) {
+            /* The flush only replaces older versions, so the version must follow the saved one */
+            return (stateVersion != null ? Mono.just(stateVersion) : getSavedStateVersion(userID, formID))
+                    .map(savedVersion -> {
+                        GupshupStateEntity saveEntity = new GupshupStateEntity();
                         saveEntity.setPhoneNo(xMessage.getTo().getUserID());
                         saveEntity.setPreviousPath(response.getCurrentIndex());
-                        saveEntity.setXmlPrevious(response.getCurrentResponseState());
+                        saveEntity.setXmlPrevious(encodeSessionState(response.getCurrentResponseState()));
                         saveEntity.setBotFormName(formID);
-                        if (saveEntity != null) {
-                            log.info("replaceUserState::Received data from DB : ID {}, Phone {} ", saveEntity.getId(), saveEntity.getPhoneNo());
-                            redisCacheService.setCache(cacheKey, saveEntity);
-                        } else {
-                            log.error("replaceUserState:: GupshupStateEntity is null or Id not found : " + saveEntity);
-                        }
-                        return stateRepo.save(saveEntity)
-                                .doOnError(new Consumer<Throwable>() {
-                                    @Override
-                                    public void accept(Throwable throwable) {
-                                        log.error("replaceUserState::Unable to persist state entity {}", throwable.getMessage());
-                                    }
-                                }).doOnNext(new Consumer<GupshupStateEntity>() {
-                                    @Override
-                                    public void accept(GupshupStateEntity gupshupStateEntity) {
-                                        log.info("replaceUserState::Successfully persisted state entity : Phone No : {} , Form Id : {} ", gupshupStateEntity.getPhoneNo(), formID);
-                                    }
-                                });
-                    }
-                }).flatMap(new Function<Mono<GupshupStateEntity>, Mono<? extends GupshupStateEntity>>() {
-                    @Override
-                    public Mono<? extends GupshupStateEntity> apply(Mono<GupshupStateEntity> gupshupStateEntityMono) {
-                        return gupshupStateEntityMono;
-                    }
-                });
+                        saveEntity.setVersion(savedVersion + 1);
+                        sessionStateWriter.write(saveEntity);
+                        return saveEntity;
+                    })
+                    .flatMap(saveEntity -> sessionCache.putState(userID, formID, saveEntity).thenReturn(saveEntity))
+                    .flatMap(saveEntity -> endOfForm
+                            ? sessionStateWriter.flush(saveEntity.getPhoneNo(), formID).thenReturn(saveEntity)
+                            : Mono.just(saveEntity));
+        }
+        return stateRepo.upsertIfVersion(userID, formID,
+                        encodeSessionState(response.getCurrentResponseState()), response.getCurrentIndex(), stateVersion)
+                .switchIfEmpty(Mono.defer(() -> {
+                    Metrics.globalRegistry.counter("transformer.state.conflicts").increment();
+                    /* Another message of the user moved the form on, so this answer is dead lettered. The saved
+                     * state is cached for the user's next message */
+                    return stateRepo.findByPhoneNoAndBotFormName(userID, formID)
+                            .flatMap(savedEntity -> sessionCache.putState(userID, formID, savedEntity))
+                            .then(Mono.<GupshupStateEntity>error(new TransformException(new OptimisticLockingFailureException("State of user " + userID
+                                    + " in form " + formID + " was updated concurrently, expected version: " + stateVersion), stateVersion, false)));
+                }))
+                .flatMap(saveEntity -> {
+                    log.info("replaceUserState::Successfully persisted state entity : Phone No : {} , Form Id : {} , StateId : {}, Version : {}",
+                            saveEntity.getPhoneNo(), formID, saveEntity.getId(), saveEntity.getVersion());
+                    return sessionCache.putState(userID, formID, saveEntity).thenReturn(saveEntity);
+                })
+                .doOnError(throwable -> log.error("replaceUserState::Unable to persist state entity {}", throwable.getMessage()));
+    }
+
+    /**
+     * Version of the state of the user in a form, for a state saved without having been read, eg. when
+     * moving on to the next bot's form
+     *
+     * @param userID
+     * @param formID
+     * @return Mono with the version of the state not flushed yet, else in the database, 0 if never saved
+     */
+    private Mono<Long> getSavedStateVersion(String userID, String formID) {
+        GupshupStateEntity pendingState = sessionStateWriter.getPending(userID, formID);
+        if (pendingState != null && pendingState.getVersion() != null) {
+            return Mono.just(pendingState.getVersion());
+        }
+        return stateRepo.findByPhoneNoAndBotFormName(userID, formID)
+                .map(savedEntity -> savedEntity.getVersion() == null ? Long.valueOf(0) : savedEntity.getVersion())
+                .defaultIfEmpty(Long.valueOf(0));
+    }
+
+    /**
+     * Session state to save, compact encoded if enabled
+     *
+     * @param instanceXML
+     * @return String
+     */
+    private String encodeSessionState(String instanceXML) {
+        if (compactSessionState) {
+            return SessionStateCodec.encode(instanceXML);
+        }
+        return instanceXML;
+    }
 
+    /**
+     * Instance xml from saved session state, which may be compact encoded or legacy xml
+     *
+     * @param state
+     * @return String, null if the state cannot be decoded
+     */
+    private String decodeSessionState(String state) {
+        try {
+            return SessionStateCodec.decode(state);
+        } catch (IllegalArgumentException e) {
+            log.error("Unable to decode session state, starting a new session: " + e.getMessage());
+            return null;
+        }
     }
 
     private void logTimeTaken(long startTime, int checkpointID) {
@@ -976,4 +1339,76 @@ public class ODKConsumerReactive extends TransformerProvider {
     private String redisKeyWithPrefix(String key) {
         return System.getenv("ENV") + "-" + key;
     }
-}
\ No newline at end of file
+
+    /**
+     * Kafka record with its routing headers & its message, decoded the first time it is needed
+     */
+    @Getter
+    private class InboundMessage {
+        private final ReceiverRecord<String, String> record;
+        private final RoutingHeaders routing;
+        private final long startTime;
+        @Getter(AccessLevel.NONE)
+        private XMessage message;
+        @Getter(AccessLevel.NONE)
+        private boolean decoded;
+
+        InboundMessage(ReceiverRecord<String, String> record, RoutingHeaders routing, long startTime) {
+            this.record = record;
+            this.routing = routing;
+            this.startTime = startTime;
+        }
+
+        /**
+         * @return message, null if it could not be parsed
+         */
+        XMessage getMessage() {
+            if (!decoded) {
+                message = decodeRecord(record, startTime);
+                decoded = true;
+            }
+            return message;
+        }
+
+        boolean isRetry() {
+            return failedMessageHandler.isRetry(record);
+        }
+
+        /**
+         * @return version of the state of the user a retried message failed with, null if unknown
+         */
+        Long getExpectedStateVersion() {
+            return isRetry() ? failedMessageHandler.getStateVersion(record) : null;
+        }
+
+        /**
+         * @return form id from the routing headers, else from the message
+         */
+        String getFormID() {
+            if (routing != null && routing.getFormID() != null && !routing.getFormID().isEmpty()) {
+                return routing.getFormID();
+            }
+            XMessage message = getMessage();
+            if (message == null || message.getTransformers() == null || message.getTransformers().isEmpty()
+                    || message.getTransformers().get(0) == null || message.getTransformers().get(0).getMetaData() == null) {
+                return null;
+            }
+            String formID = getTransformerMetaDataValue(message.getTransformers().get(0), "formID");
+            return formID.isEmpty() ? null : formID;
+        }
+
+        /**
+         * Key messages are ordered by: the user, else the record key
+         */
+        String getUserKey() {
+            if (routing != null && routing.getUserID() != null) {
+                return routing.getUserID();
+            }
+            XMessage message = getMessage();
+            if (message != null && message.getTo() != null && message.getTo().getUserID() != null) {
+                return message.getTo().getUserID();
+            }
+            return record.key() == null ? "" : record.key();
+        }
+    }
+}
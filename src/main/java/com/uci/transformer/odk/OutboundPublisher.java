@@ -0,0 +1,74 @@
+package com.uci.transformer.odk;
+
+import io.micrometer.core.instrument.Metrics;
+import com.uci.transformer.odk.utilities.RoutingHeaders;
+import lombok.extern.slf4j.Slf4j;
+import messagerosa.core.model.XMessage;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderRecord;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+
+/**
+ * Sends transformed messages through the reactive kafka sender. A message is serialized once, keyed by
+ * its user so that a user's messages stay on one partition & carries its {@link RoutingHeaders}, and the
+ * returned Mono completes once the broker has acknowledged it or fails once the retries are exhausted.
+ */
+@Slf4j
+@Component
+public class OutboundPublisher {
+
+    @Autowired
+    private KafkaSender<String, String> reactiveKafkaSender;
+
+    @Value("${outbound.kafka.retries:3}")
+    private int retries;
+
+    @Value("${outbound.kafka.retry-backoff-ms:100}")
+    private long retryBackoffMs;
+
+    /**
+     * Send a message to a topic
+     *
+     * @param topic      topic
+     * @param message    message
+     * @param checkpoint log checkpoint of the message
+     * @return Mono completing once sent
+     */
+    public Mono<Void> send(String topic, XMessage message, String checkpoint) {
+        return Mono.fromCallable(message::toXML)
+                .flatMap(xml -> {
+                    log.info(checkpoint + xml);
+                    RoutingHeaders routing = RoutingHeaders.of(message);
+                    RecordHeaders headers = new RecordHeaders();
+                    routing.write(headers);
+                    return send(new ProducerRecord<>(topic, null, routing.getUserID(), xml, headers));
+                });
+    }
+
+    /**
+     * Send a record as it is
+     *
+     * @param record record
+     * @return Mono completing once sent
+     */
+    Mono<Void> send(ProducerRecord<String, String> record) {
+        final String topic = record.topic();
+        return reactiveKafkaSender.send(Mono.just(SenderRecord.create(record, topic)))
+                .next()
+                .flatMap(result -> result.exception() != null ? Mono.<Void>error(result.exception()) : Mono.<Void>empty())
+                .retryWhen(Retry.backoff(retries, Duration.ofMillis(retryBackoffMs)))
+                .doOnSuccess(v -> Metrics.globalRegistry.counter("transformer.outbound.sent", "topic", topic).increment())
+                .doOnError(e -> {
+                    Metrics.globalRegistry.counter("transformer.outbound.failed", "topic", topic).increment();
+                    log.error("Unable to send message to " + topic + ": " + e.getMessage());
+                });
+    }
+}
@@ -0,0 +1,112 @@
+package com.uci.transformer.odk;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.uci.transformer.odk.entity.Question;
+import com.uci.transformer.odk.repository.QuestionRepository;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.util.Optional;
+
+/**
+ * Questions of the forms, by form id, form version & xpath.
+ * <p>
+ * The questions of a form version are loaded in one query the first time one of them is looked up,
+ * and are then read from memory. A question that is not found is inserted unless it already exists,
+ * eg. inserted by another instance, in which case the existing question is read.
+ */
+@Slf4j
+@Component
+public class QuestionRegistry {
+
+    @Autowired
+    private QuestionRepository questionRepo;
+
+    @Value("${question-registry.max-size:100000}")
+    private long maxSize;
+
+    @Value("${question-registry.max-form-versions:10000}")
+    private long maxFormVersions;
+
+    private Cache<String, Question> questions;
+    /* Load of the questions of a form version, by form version. An evicted form version is loaded again */
+    private Cache<String, Mono<Void>> formVersions;
+
+    @PostConstruct
+    void init() {
+        questions = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+        formVersions = Caffeine.newBuilder()
+                .maximumSize(maxFormVersions)
+                .build();
+    }
+
+    /**
+     * Find a question
+     *
+     * @param xPath       question xpath
+     * @param formID      form id
+     * @param formVersion form version
+     * @return question, empty if it does not exist
+     */
+    public Mono<Optional<Question>> find(String xPath, String formID, String formVersion) {
+        final String key = key(formID, formVersion, xPath);
+        Question question = questions.getIfPresent(key);
+        if (question != null) {
+            Metrics.globalRegistry.counter("transformer.questions.lookup", "result", "hit").increment();
+            return Mono.just(Optional.of(question));
+        }
+        return loadFormVersion(formID, formVersion)
+                .then(Mono.fromCallable(() -> {
+                    Metrics.globalRegistry.counter("transformer.questions.lookup", "result", "miss").increment();
+                    return Optional.ofNullable(questions.getIfPresent(key));
+                }));
+    }
+
+    /**
+     * Save a question unless a question of the same form version & xpath exists
+     *
+     * @param question question
+     * @return saved or existing question
+     */
+    public Mono<Question> register(Question question) {
+        final String key = key(question.getFormID(), question.getFormVersion(), question.getXPath());
+        Question existing = questions.getIfPresent(key);
+        if (existing != null) {
+            return Mono.just(existing);
+        }
+        return questionRepo.insertIfAbsent(question.getFormID(), question.getFormVersion(), question.getXPath(),
+                        question.getQuestionType() == null ? null : question.getQuestionType().name(), question.getMeta())
+                .switchIfEmpty(Mono.defer(() -> questionRepo.findQuestionByXPathAndFormIDAndFormVersionOrderByCreatedOnDesc(
+                        question.getXPath(), question.getFormID(), question.getFormVersion())))
+                .doOnNext(saved -> questions.put(key, saved));
+    }
+
+    /**
+     * Load the questions of a form version once, a failed load is retried on the next lookup
+     */
+    private Mono<Void> loadFormVersion(String formID, String formVersion) {
+        final String formKey = key(formID, formVersion, "");
+        return formVersions.get(formKey, k -> questionRepo.findByFormIDAndFormVersion(formID, formVersion)
+                .doOnNext(question -> questions.put(key(formID, formVersion, question.getXPath()), question))
+                .count()
+                .doOnNext(count -> log.info("Questions loaded for form: " + formID + ", version: " + formVersion + ", count: " + count))
+                .doOnError(e -> {
+                    log.error("Unable to load questions of form " + formID + ": " + e.getMessage());
+                    formVersions.invalidate(formKey);
+                })
+                .then()
+                .cache());
+    }
+
+    private static String key(String formID, String formVersion, String xPath) {
+        return formID + '\n' + formVersion + '\n' + xPath;
+    }
+}
@@ -0,0 +1,187 @@
+package com.uci.transformer.odk;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.micrometer.core.instrument.Metrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non blocking redis cache of the sessions of the users: their state in a form & their language in a bot.
+ * <p>
+ * Both are read in one MGET. Commands of all messages share one connection & are pipelined on it, so a
+ * write is sent without waiting for earlier replies & is applied before later reads. Redis errors & slow
+ * replies are treated as cache misses.
+ */
+@Slf4j
+@Component
+public class SessionCache {
+
+    @Value("${spring.redis.host:localhost}")
+    private String host;
+
+    @Value("${spring.redis.number.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.db:1}")
+    private int database;
+
+    @Value("${redis.key.timeout:3600}")
+    private long ttlSeconds;
+
+    @Value("${session-cache.timeout-ms:1000}")
+    private long timeoutMs;
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private RedisClient client;
+    private RedisURI uri;
+    private final AtomicReference<Mono<StatefulRedisConnection<String, String>>> connection = new AtomicReference<>();
+
+    @PostConstruct
+    void init() {
+        uri = RedisURI.builder()
+                .withHost(host)
+                .withPort(port)
+                .withDatabase(database)
+                .withTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+        client = RedisClient.create();
+    }
+
+    @PreDestroy
+    void close() {
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Get the state of the user in a form & the language of the user in a bot
+     *
+     * @param userID user
+     * @param appID  bot, may be null
+     * @param formID form
+     * @return session, with the state & language null if not cached
+     */
+    public Mono<Session> get(String userID, String appID, String formID) {
+        final String stateKey = stateKey(userID, formID);
+        final String languageKey = languageKey(userID, appID);
+        return commands().flatMapMany(redis -> redis.mget(stateKey, languageKey))
+                .filter(KeyValue::hasValue)
+                .collectMap(KeyValue::getKey, KeyValue::getValue)
+                .timeout(Duration.ofMillis(timeoutMs))
+                .map(values -> {
+                    Session session = new Session(readState(values.get(stateKey)), values.get(languageKey));
+                    count(session.getState() == null ? "miss" : "hit");
+                    return session;
+                })
+                .onErrorResume(e -> {
+                    log.error("Unable to get session of user " + userID + " from redis: " + e.getMessage());
+                    count("error");
+                    return Mono.just(new Session(null, null));
+                });
+    }
+
+    /**
+     * Cache the state of the user in a form
+     *
+     * @return Mono completing once redis has replied, errors are logged
+     */
+    public Mono<Void> putState(String userID, String formID, GupshupStateEntity state) {
+        return Mono.fromCallable(() -> mapper.writeValueAsString(state))
+                .flatMap(value -> set(stateKey(userID, formID), value));
+    }
+
+    /**
+     * Cache the language of the user in a bot
+     *
+     * @return Mono completing once redis has replied, errors are logged
+     */
+    public Mono<Void> putLanguage(String userID, String appID, String language) {
+        return set(languageKey(userID, appID), language);
+    }
+
+    /**
+     * Commands on the shared connection, connected on first use. A failed connection is attempted again
+     * on the next use, once connected lettuce reconnects by itself.
+     */
+    private Mono<RedisReactiveCommands<String, String>> commands() {
+        Mono<StatefulRedisConnection<String, String>> current = connection.get();
+        if (current == null) {
+            final AtomicReference<Mono<StatefulRedisConnection<String, String>>> connecting = new AtomicReference<>();
+            connecting.set(Mono.defer(() -> Mono.fromCompletionStage(client.connectAsync(StringCodec.UTF8, uri)))
+                    .doOnNext(c -> log.info("Session cache connected to redis: " + host + ":" + port + "/" + database))
+                    .doOnError(e -> connection.compareAndSet(connecting.get(), null))
+                    .cache());
+            current = connection.compareAndSet(null, connecting.get()) ? connecting.get() : connection.get();
+        }
+        return current.map(StatefulRedisConnection::reactive);
+    }
+
+    private Mono<Void> set(String key, String value) {
+        return commands().flatMap(redis -> redis.setex(key, ttlSeconds, value))
+                .timeout(Duration.ofMillis(timeoutMs))
+                .onErrorResume(e -> {
+                    log.error("Unable to set " + key + " in redis: " + e.getMessage());
+                    Metrics.globalRegistry.counter("transformer.session.cache.write.failed").increment();
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private GupshupStateEntity readState(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return mapper.readValue(value, GupshupStateEntity.class);
+        } catch (Exception e) {
+            log.error("Unable to read cached session state: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String stateKey(String userID, String formID) {
+        return redisKeyWithPrefix("session-state-" + userID + "-" + formID);
+    }
+
+    /**
+     * Language of the user per bot if known, as in the menu manager
+     */
+    private String languageKey(String userID, String appID) {
+        return redisKeyWithPrefix("session-language-" + (appID != null ? appID + "-" + userID : userID));
+    }
+
+    private String redisKeyWithPrefix(String key) {
+        return System.getenv("ENV") + "-" + key;
+    }
+
+    private void count(String result) {
+        Metrics.globalRegistry.counter("transformer.session.cache", "result", result).increment();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Session {
+        private final GupshupStateEntity state;
+        private final String language;
+    }
+}
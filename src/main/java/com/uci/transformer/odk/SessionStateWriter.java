@@ -0,0 +1,227 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write behind for the session states of the users, when enabled.
+ * <p>
+ * The live state is kept in redis & in memory until flushed, only the latest state of a user in a form
+ * is kept. The states are flushed to the database in batches every flush interval, as multi-row upserts
+ * that never replace a state with an older version. The state of a user is flushed right away when the
+ * form ends, and all states are flushed when the application shuts down.
+ */
+@Slf4j
+@Component
+public class SessionStateWriter {
+    /* Postgres allows 65535 bind parameters in a statement */
+    private static final int MAX_ROWS_PER_UPSERT = 65535 / 5;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Value("${session-state.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${session-state.write-behind.flush-interval-ms:5000}")
+    private long flushIntervalMs;
+
+    @Value("${session-state.write-behind.batch-size:500}")
+    private int batchSize;
+
+    @Value("${session-state.write-behind.shutdown-timeout-ms:30000}")
+    private long shutdownTimeoutMs;
+
+    private final Map<String, GupshupStateEntity> dirty = new ConcurrentHashMap<>();
+
+    private DistributionSummary flushSize;
+    private Disposable flushes;
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        flushSize = DistributionSummary.builder("transformer.state.flush.size")
+                .description("Session states upserted per batch")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("transformer.state.pending", dirty, Map::size)
+                .description("Session states waiting to be flushed")
+                .register(Metrics.globalRegistry);
+
+        flushes = Flux.interval(Duration.ofMillis(flushIntervalMs))
+                .onBackpressureDrop()
+                .concatMap(tick -> flushAll())
+                .subscribe();
+        log.info("Session states written behind every " + flushIntervalMs + " ms in batches of " + batchSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Keep the state of a user to be flushed, replacing a state not flushed yet
+     *
+     * @param state state with its phone no, form & next version
+     */
+    public void write(GupshupStateEntity state) {
+        dirty.put(key(state.getPhoneNo(), state.getBotFormName()), state);
+    }
+
+    /**
+     * @return state of the user in the form not flushed yet, null if none
+     */
+    public GupshupStateEntity getPending(String phoneNo, String formID) {
+        if (dirty.isEmpty()) {
+            return null;
+        }
+        return dirty.get(key(phoneNo, formID));
+    }
+
+    /**
+     * Flush the state of a user in a form now
+     *
+     * @param phoneNo user
+     * @param formID  form
+     * @return Mono completing once the state is saved
+     */
+    public Mono<Void> flush(String phoneNo, String formID) {
+        return Mono.defer(() -> {
+            String key = key(phoneNo, formID);
+            GupshupStateEntity state = dirty.remove(key);
+            if (state == null) {
+                return Mono.empty();
+            }
+            List<String> keys = new ArrayList<>();
+            keys.add(key);
+            List<GupshupStateEntity> states = new ArrayList<>();
+            states.add(state);
+            return flush(keys, states);
+        });
+    }
+
+    /**
+     * Flush the states of all users
+     */
+    Mono<Void> flushAll() {
+        return Mono.defer(() -> {
+            List<String> keys = new ArrayList<>();
+            List<GupshupStateEntity> states = new ArrayList<>();
+            for (String key : dirty.keySet()) {
+                GupshupStateEntity state = dirty.remove(key);
+                if (state != null) {
+                    keys.add(key);
+                    states.add(state);
+                }
+            }
+            int size = Math.max(1, Math.min(batchSize, MAX_ROWS_PER_UPSERT));
+            return Flux.range(0, (states.size() + size - 1) / size)
+                    .concatMap(batch -> {
+                        int from = batch * size;
+                        int to = Math.min(states.size(), from + size);
+                        return flush(keys.subList(from, to), states.subList(from, to));
+                    })
+                    .then();
+        });
+    }
+
+    /**
+     * Flush the buffered states & stop flushing periodically
+     */
+    @PreDestroy
+    void close() {
+        if (!enabled) {
+            return;
+        }
+        flushes.dispose();
+        try {
+            flushAll().block(Duration.ofMillis(shutdownTimeoutMs));
+        } catch (Exception e) {
+            log.error("Session states not flushed on shutdown: " + e.getMessage());
+        }
+        if (!dirty.isEmpty()) {
+            log.error("Session states not flushed on shutdown, states only in redis: " + dirty.size());
+        }
+    }
+
+    int getPending() {
+        return dirty.size();
+    }
+
+    /**
+     * Upsert states, those that fail are kept to be flushed again unless a newer state was written meanwhile
+     */
+    private Mono<Void> flush(List<String> keys, List<GupshupStateEntity> states) {
+        return upsert(states)
+                .doOnSuccess(rows -> {
+                    flushSize.record(states.size());
+                    log.info("Session states saved: " + states.size());
+                })
+                .onErrorResume(e -> {
+                    log.error("Unable to save " + states.size() + " session states: " + e.getMessage());
+                    Metrics.globalRegistry.counter("transformer.state.flush.failed").increment(states.size());
+                    for (int i = 0; i < states.size(); i++) {
+                        dirty.putIfAbsent(keys.get(i), states.get(i));
+                    }
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private Mono<Integer> upsert(List<GupshupStateEntity> states) {
+        return Mono.defer(() -> {
+            StringBuilder sql = new StringBuilder("INSERT INTO xmessage_state (phone_no, state, previous_path, bot_form_name, version) VALUES ");
+            for (int i = 0; i < states.size(); i++) {
+                int index = i * 5;
+                sql.append(i == 0 ? "(" : ", (")
+                        .append("$").append(index + 1)
+                        .append(", $").append(index + 2)
+                        .append(", $").append(index + 3)
+                        .append(", $").append(index + 4)
+                        .append(", $").append(index + 5)
+                        .append(")");
+            }
+            sql.append(" ON CONFLICT (phone_no, bot_form_name) DO UPDATE ")
+                    .append("SET state = EXCLUDED.state, previous_path = EXCLUDED.previous_path, ")
+                    .append("updated_at = CURRENT_TIMESTAMP, version = EXCLUDED.version ")
+                    .append("WHERE xmessage_state.version < EXCLUDED.version");
+            DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+            int index = 0;
+            for (GupshupStateEntity state : states) {
+                spec = spec.bind(index++, state.getPhoneNo());
+                spec = bind(spec, index++, state.getXmlPrevious());
+                spec = bind(spec, index++, state.getPreviousPath());
+                spec = spec.bind(index++, state.getBotFormName());
+                spec = spec.bind(index++, state.getVersion() == null ? Long.valueOf(1) : state.getVersion());
+            }
+            return spec.fetch().rowsUpdated();
+        });
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec, int index, String value) {
+        return value == null ? spec.bindNull(index, String.class) : spec.bind(index, value);
+    }
+
+    private static String key(String phoneNo, String formID) {
+        return phoneNo + '\n' + formID;
+    }
+}
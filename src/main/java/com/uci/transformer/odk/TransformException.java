@@ -0,0 +1,42 @@
+package com.uci.transformer.odk;
+
+import lombok.Getter;
+
+/**
+ * Failure to transform a message, with how far the message got so that it is only replayed if that
+ * leaves the user's form as if the message had never been received.
+ */
+@Getter
+public class TransformException extends RuntimeException {
+    /* Version of the state of the user the message was processed with, null if not read */
+    private final Long stateVersion;
+    /* False once the message saved the state of the user, or if the state changed since it failed */
+    private final boolean replayable;
+    /* True if the form step failed, not a service it reads from or writes to */
+    private final boolean formFailure;
+
+    public TransformException(String message, Long stateVersion, boolean replayable) {
+        super(message);
+        this.stateVersion = stateVersion;
+        this.replayable = replayable;
+        this.formFailure = false;
+    }
+
+    public TransformException(Throwable cause, Long stateVersion, boolean replayable) {
+        this(cause, stateVersion, replayable, false);
+    }
+
+    public TransformException(Throwable cause, Long stateVersion, boolean replayable, boolean formFailure) {
+        super(cause.getMessage(), cause);
+        this.stateVersion = stateVersion;
+        this.replayable = replayable;
+        this.formFailure = formFailure;
+    }
+
+    /**
+     * @return the error that made the message fail
+     */
+    public Throwable getFailure() {
+        return getCause() != null ? getCause() : this;
+    }
+}
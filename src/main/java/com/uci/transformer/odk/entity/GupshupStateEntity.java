@@ -35,4 +35,8 @@ public class GupshupStateEntity {
     @Column(value = "bot_form_name")
     private String botFormName;
 
+    /* Incremented on every update, to detect concurrent updates */
+    @Column(value = "version")
+    private Long version;
+
 }
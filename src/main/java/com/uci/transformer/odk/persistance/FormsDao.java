@@ -137,11 +137,16 @@ public class FormsDao {
                 .geometryXPath(formInfo.get(FileUtils.GEOMETRY_XPATH))
                 .formMediaPath(mediaPath)
                 .formFilePath(formFile.getAbsolutePath())
+                .md5Hash(FileUtils.getMd5Hash(formFile))
                 .build();
         jsonDBTemplate.insert(form);
         return form;
     }
 
+    public void updateForm(Form form) {
+        jsonDBTemplate.upsert(form);
+    }
+
     public int updateForm(ContentValues values) {
         return updateForm(values, null, null);
     }
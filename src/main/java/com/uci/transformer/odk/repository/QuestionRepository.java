@@ -1,6 +1,8 @@
 package com.uci.transformer.odk.repository;
 
 import com.uci.transformer.odk.entity.Question;
+import io.r2dbc.postgresql.codec.Json;
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -12,4 +14,16 @@ public interface QuestionRepository extends R2dbcRepository<Question, UUID> {
     Flux<Question> findQuestionByXPathAndFormIDAndFormVersion(String xPath, String formID, String formVersion);
     Mono<Question> findQuestionByXPathAndFormIDAndFormVersionOrderByCreatedOnDesc(String xPath, String formID, String formVersion);
 
-}
\ No newline at end of file
+    @Query("SELECT * FROM question WHERE form_id = :formID AND form_version IS NOT DISTINCT FROM :formVersion")
+    Flux<Question> findByFormIDAndFormVersion(String formID, String formVersion);
+
+    /**
+     * Insert a question, empty if the question of the form version & xpath already exists. Questions
+     * without a form version conflict on a partial index, as nulls never do in the unique index.
+     */
+    @Query("INSERT INTO question (form_id, form_version, x_path, question_type, meta) "
+            + "VALUES (:formID, :formVersion, :xPath, :questionType, :meta) "
+            + "ON CONFLICT DO NOTHING RETURNING *")
+    Mono<Question> insertIfAbsent(String formID, String formVersion, String xPath, String questionType, Json meta);
+
+}
@@ -1,6 +1,7 @@
 package com.uci.transformer.odk.repository;
 
 import com.uci.transformer.odk.entity.GupshupStateEntity;
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 import reactor.core.publisher.Flux;
@@ -9,4 +10,19 @@ import reactor.core.publisher.Mono;
 public interface StateRepository extends R2dbcRepository<GupshupStateEntity, Long> {
   Flux<GupshupStateEntity> findByPhoneNo(String phoneNo);
   Mono<GupshupStateEntity> findByPhoneNoAndBotFormName(String phoneNo, String botFormName);
+
+  /**
+   * Insert or update the state of a user in a form, if it is still at the expected version.
+   * Expected version 0 means no state was saved, null updates whatever the version.
+   *
+   * @return saved state, empty if the state was updated concurrently
+   */
+  @Query("INSERT INTO xmessage_state (phone_no, state, previous_path, bot_form_name, version) "
+          + "VALUES (:phoneNo, :state, :previousPath, :botFormName, 1) "
+          + "ON CONFLICT (phone_no, bot_form_name) DO UPDATE "
+          + "SET state = EXCLUDED.state, previous_path = EXCLUDED.previous_path, "
+          + "updated_at = CURRENT_TIMESTAMP, version = xmessage_state.version + 1 "
+          + "WHERE CAST(:version AS BIGINT) IS NULL OR xmessage_state.version = :version "
+          + "RETURNING *")
+  Mono<GupshupStateEntity> upsertIfVersion(String phoneNo, String botFormName, String state, String previousPath, Long version);
 }
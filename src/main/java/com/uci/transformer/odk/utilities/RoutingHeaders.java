@@ -0,0 +1,107 @@
+package com.uci.transformer.odk.utilities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Routing metadata of an XMessage sent as kafka record headers, so that a consumer can route, order or
+ * drop a record before decoding its xml. Records without the headers are routed from the decoded message.
+ */
+@Getter
+@AllArgsConstructor
+public class RoutingHeaders {
+    public static final String BOT_TYPE = "uci-bot-type";
+    public static final String FORM_ID = "uci-form-id";
+    public static final String USER_ID = "uci-user-id";
+
+    public static final String GENERIC = "generic";
+    public static final String ODK = "odk";
+
+    private final String botType;
+    private final String formID;
+    private final String userID;
+
+    /**
+     * Routing metadata of a message, from its first transformer & receiver
+     *
+     * @param message message
+     * @return routing metadata
+     */
+    public static RoutingHeaders of(XMessage message) {
+        String botType = ODK;
+        String formID = null;
+        if (message.getTransformers() != null && !message.getTransformers().isEmpty()) {
+            Transformer transformer = message.getTransformers().get(0);
+            Map<String, String> metaData = transformer != null ? transformer.getMetaData() : null;
+            if (metaData != null) {
+                if (GENERIC.equals(metaData.get("type"))) {
+                    botType = GENERIC;
+                }
+                formID = metaData.get("formID");
+            }
+        }
+        String userID = message.getTo() != null ? message.getTo().getUserID() : null;
+        return new RoutingHeaders(botType, formID, userID);
+    }
+
+    /**
+     * Read the routing metadata of a record
+     *
+     * @param headers record headers
+     * @return routing metadata, null if the record has no routing headers
+     */
+    public static RoutingHeaders read(Headers headers) {
+        if (headers == null) {
+            return null;
+        }
+        String botType = value(headers, BOT_TYPE);
+        if (botType == null) {
+            return null;
+        }
+        return new RoutingHeaders(botType, value(headers, FORM_ID), value(headers, USER_ID));
+    }
+
+    /**
+     * Add the routing metadata to record headers
+     *
+     * @param headers record headers
+     */
+    public void write(Headers headers) {
+        add(headers, BOT_TYPE, botType);
+        add(headers, FORM_ID, formID);
+        add(headers, USER_ID, userID);
+    }
+
+    public boolean isGeneric() {
+        return GENERIC.equals(botType);
+    }
+
+    /**
+     * Decode a header value as received by a kafka listener
+     *
+     * @param value header value
+     * @return header value, null if missing
+     */
+    public static String decode(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static String value(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header == null ? null : decode(header.value());
+    }
+
+    private static void add(Headers headers, String key, String value) {
+        if (value != null && !value.isEmpty()) {
+            headers.remove(key);
+            headers.add(key, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.uci.transformer.odk.utilities;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact encoding of a form instance saved as session state.
+ * <p>
+ * The instance is stored as a header with the form id & version followed by one entry per leaf element,
+ * keyed by its path (with multiplicity for repeated siblings), deflated & base64 encoded with the
+ * {@link #PREFIX} marker. Leaves without answers are kept, so the decoded instance populates a form the
+ * same way as the original xml. States without the marker are legacy xml & are returned as they are,
+ * so existing sessions move to the compact encoding the next time they are saved.
+ */
+@Slf4j
+public class SessionStateCodec {
+    public static final String PREFIX = "odkz1:";
+
+    private static final String XML_DECLARATION = "<?xml version='1.0' ?>";
+    private static final char LEAF = '>';
+    private static final char ATTRIBUTE = '@';
+    private static final String ID_ATTRIBUTE = "id";
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final XMLInputFactory factory = newInputFactory();
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    public static boolean isEncoded(String state) {
+        return state != null && state.startsWith(PREFIX);
+    }
+
+    /**
+     * Encode an instance xml, returning it as it is if it cannot be encoded
+     *
+     * @param instanceXML form instance xml
+     * @return encoded state
+     */
+    public static String encode(String instanceXML) {
+        if (instanceXML == null || instanceXML.isEmpty() || isEncoded(instanceXML)) {
+            return instanceXML;
+        }
+        try {
+            return PREFIX + Base64.getEncoder().encodeToString(deflate(toEntries(instanceXML).getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("Unable to encode session state, keeping xml: " + e.getMessage());
+            return instanceXML;
+        }
+    }
+
+    /**
+     * Decode a state to the instance xml, legacy xml states are returned as they are
+     *
+     * @param state encoded or xml state
+     * @return instance xml
+     */
+    public static String decode(String state) {
+        if (!isEncoded(state)) {
+            return state;
+        }
+        try {
+            byte[] entries = inflate(Base64.getDecoder().decode(state.substring(PREFIX.length())));
+            return toXML(new String(entries, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid session state: " + e.getMessage(), e);
+        }
+    }
+
+    private static String toEntries(String instanceXML) throws XMLStreamException {
+        StringBuilder body = new StringBuilder();
+        StringBuilder header = new StringBuilder();
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(instanceXML));
+        try {
+            Deque<Element> stack = new ArrayDeque<>();
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element parent = stack.peek();
+                        String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+                        String path = parent == null ? "/" + name : parent.path + "/" + name + parent.multiplicitySuffix(name);
+                        if (parent != null) {
+                            parent.hasChildren = true;
+                        }
+                        Element element = new Element(path);
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            String prefix = reader.getNamespacePrefix(i);
+                            body.append(ATTRIBUTE).append(path).append('\t')
+                                    .append(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix)
+                                    .append('\t').append(escape(reader.getNamespaceURI(i))).append('\n');
+                        }
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String attributeName = qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i));
+                            String attributeValue = reader.getAttributeValue(i);
+                            if (parent == null && (attributeName.equals(ID_ATTRIBUTE) || attributeName.equals(VERSION_ATTRIBUTE))) {
+                                continue;
+                            }
+                            body.append(ATTRIBUTE).append(path).append('\t').append(attributeName)
+                                    .append('\t').append(escape(attributeValue)).append('\n');
+                        }
+                        if (parent == null) {
+                            header.append(escape(reader.getAttributeValue(null, ID_ATTRIBUTE))).append('\t')
+                                    .append(escape(reader.getAttributeValue(null, VERSION_ATTRIBUTE))).append('\t')
+                                    .append(path).append('\n');
+                        }
+                        stack.push(element);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (!stack.isEmpty()) {
+                            stack.peek().appendText(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        Element closed = stack.pop();
+                        if (!closed.hasChildren && !stack.isEmpty()) {
+                            body.append(LEAF).append(closed.path).append('\t')
+                                    .append(escape(closed.text == null ? "" : closed.text.toString().trim())).append('\n');
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return header.append(body).toString();
+    }
+
+    private static String toXML(String entries) {
+        String[] lines = entries.split("\n");
+        String[] header = lines[0].split("\t", -1);
+        Node root = new Node(header[2].substring(1));
+        if (!header[0].isEmpty()) {
+            root.attributes.put(ID_ATTRIBUTE, unescape(header[0]));
+        }
+        if (!header[1].isEmpty()) {
+            root.attributes.put(VERSION_ATTRIBUTE, unescape(header[1]));
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.substring(1).split("\t", -1);
+            Node node = root.resolve(parts[0]);
+            if (line.charAt(0) == ATTRIBUTE) {
+                node.attributes.put(parts[1], unescape(parts[2]));
+            } else {
+                node.text = unescape(parts[1]);
+            }
+        }
+        StringBuilder xml = new StringBuilder(XML_DECLARATION);
+        root.write(xml);
+        return xml.toString();
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                bos.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated session state");
+                }
+                bos.write(buffer, 0, count);
+            }
+            return bos.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Element being read while encoding
+     */
+    private static class Element {
+        private final String path;
+        private Map<String, Integer> multiplicities;
+        private StringBuilder text;
+        private boolean hasChildren;
+
+        Element(String path) {
+            this.path = path;
+        }
+
+        String multiplicitySuffix(String name) {
+            if (multiplicities == null) {
+                multiplicities = new HashMap<>();
+            }
+            int mult = multiplicities.merge(name, 1, Integer::sum) - 1;
+            return mult == 0 ? "" : "[" + mult + "]";
+        }
+
+        void appendText(String value) {
+            if (text == null) {
+                text = new StringBuilder();
+            }
+            text.append(value);
+        }
+    }
+
+    /**
+     * Element being rebuilt while decoding
+     */
+    private static class Node {
+        private final String name;
+        private final Map<String, String> attributes = new LinkedHashMap<>();
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private String text;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Find or create the node at an absolute path, the first segment being this node
+         */
+        Node resolve(String path) {
+            Node node = this;
+            int start = path.indexOf('/', 1);
+            while (start > 0) {
+                int end = path.indexOf('/', start + 1);
+                String segment = end < 0 ? path.substring(start + 1) : path.substring(start + 1, end);
+                node = node.children.computeIfAbsent(segment, Node::new);
+                start = end;
+            }
+            return node;
+        }
+
+        void write(StringBuilder xml) {
+            String tag = name;
+            int bracket = tag.indexOf('[');
+            if (bracket > 0) {
+                tag = tag.substring(0, bracket);
+            }
+            xml.append('<').append(tag);
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                xml.append(' ').append(attribute.getKey()).append("=\"").append(escapeXml(attribute.getValue())).append('"');
+            }
+            if (children.isEmpty() && (text == null || text.isEmpty())) {
+                xml.append(" />");
+                return;
+            }
+            xml.append('>');
+            if (children.isEmpty()) {
+                xml.append(escapeXml(text));
+            } else {
+                for (Node child : children.values()) {
+                    child.write(xml);
+                }
+            }
+            xml.append("</").append(tag).append('>');
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.uci.transformer.odk.utilities;
+
+import lombok.extern.slf4j.Slf4j;
+import messagerosa.core.model.XMessage;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.temporal.TemporalAccessor;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Deep copy of an XMessage without serializing it.
+ * <p>
+ * Model classes of the messagerosa packages (the message, its payload, transformers, sender / receiver
+ * info etc) are copied field by field, their fields are looked up once per class. Lists, sets, maps &
+ * arrays are copied into new containers, immutable values (strings, numbers, enums, uuids, dates) are
+ * shared. Any other object, eg. a payload stream, is shared as it is, as it cannot be copied in a
+ * generic way.
+ */
+@Slf4j
+public class XMessageCopier {
+    private static final String MODEL_PACKAGE = "messagerosa.";
+
+    private static final ClassValue<Field[]> fields = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> copied = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        copied.add(field);
+                    }
+                }
+            }
+            return copied.toArray(new Field[0]);
+        }
+    };
+
+    private static final ClassValue<Constructor<?>> constructors = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Copy a message
+     *
+     * @param message message
+     * @return copy of the message, null if the message is null or could not be copied
+     */
+    public static XMessage copy(XMessage message) {
+        try {
+            return (XMessage) copyValue(message, new IdentityHashMap<>());
+        } catch (ReflectiveOperationException e) {
+            log.error("Unable to copy XMessage: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Object copyValue(Object value, IdentityHashMap<Object, Object> copies) throws ReflectiveOperationException {
+        if (value == null || isImmutable(value)) {
+            return value;
+        }
+        Object copy = copies.get(value);
+        if (copy != null) {
+            return copy;
+        }
+        if (value instanceof List) {
+            return copyCollection((List<?>) value, newContainer(value, ArrayList::new), copies);
+        } else if (value instanceof Set) {
+            return copyCollection((Set<?>) value, newContainer(value, LinkedHashSet::new), copies);
+        } else if (value instanceof Map) {
+            return copyMap((Map<?, ?>) value, copies);
+        } else if (value.getClass().isArray()) {
+            return copyArray(value, copies);
+        } else if (value.getClass().getName().startsWith(MODEL_PACKAGE)) {
+            return copyModel(value, copies);
+        }
+        return value;
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum || value instanceof UUID
+                || value instanceof TemporalAccessor || value instanceof Class;
+    }
+
+    private static Object copyModel(Object value, IdentityHashMap<Object, Object> copies) throws ReflectiveOperationException {
+        Constructor<?> constructor = constructors.get(value.getClass());
+        if (constructor == null) {
+            return value;
+        }
+        Object copy = constructor.newInstance();
+        copies.put(value, copy);
+        for (Field field : fields.get(value.getClass())) {
+            field.set(copy, copyValue(field.get(value), copies));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyCollection(Collection<?> value, Collection<?> copy, IdentityHashMap<Object, Object> copies) throws ReflectiveOperationException {
+        copies.put(value, copy);
+        for (Object element : value) {
+            ((Collection<Object>) copy).add(copyValue(element, copies));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyMap(Map<?, ?> value, IdentityHashMap<Object, Object> copies) throws ReflectiveOperationException {
+        Map<Object, Object> copy = (Map<Object, Object>) newContainer(value, () -> new LinkedHashMap<>(value.size() * 2));
+        copies.put(value, copy);
+        for (Map.Entry<?, ?> entry : value.entrySet()) {
+            copy.put(copyValue(entry.getKey(), copies), copyValue(entry.getValue(), copies));
+        }
+        return copy;
+    }
+
+    private static Object copyArray(Object value, IdentityHashMap<Object, Object> copies) throws ReflectiveOperationException {
+        int length = Array.getLength(value);
+        Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+        copies.put(value, copy);
+        if (value.getClass().getComponentType().isPrimitive()) {
+            System.arraycopy(value, 0, copy, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                Array.set(copy, i, copyValue(Array.get(value, i), copies));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Empty container of the same class as the value, so that fields declared as eg. ArrayList can be
+     * set, or the fallback for containers without a public no-arg constructor (unmodifiable views etc)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T newContainer(Object value, Supplier<T> fallback) {
+        Class<?> type = value.getClass();
+        if (type.getName().startsWith("java.util.") && Modifier.isPublic(type.getModifiers())) {
+            try {
+                return (T) type.getConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                return fallback.get();
+            }
+        }
+        return fallback.get();
+    }
+}
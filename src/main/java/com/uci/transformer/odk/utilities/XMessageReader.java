@@ -0,0 +1,105 @@
+package com.uci.transformer.odk.utilities;
+
+import lombok.extern.slf4j.Slf4j;
+import messagerosa.core.model.XMessage;
+import messagerosa.xml.XMessageParser;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads XMessages from kafka records & the xmessage table.
+ * <p>
+ * The JAXB context is created once and every thread keeps its own unmarshaller, as unmarshallers are
+ * not thread safe but are costly to create. The xml is streamed to the unmarshaller through a StAX
+ * reader, straight from the record string or from its UTF-8 bytes, without converting it with the
+ * platform charset. If the message cannot be read this way it is parsed with {@link XMessageParser}.
+ */
+@Slf4j
+public class XMessageReader {
+    private static final XMLInputFactory factory = newInputFactory();
+    private static final JAXBContext context = newContext();
+    private static final ThreadLocal<Unmarshaller> unmarshallers = ThreadLocal.withInitial(XMessageReader::newUnmarshaller);
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static JAXBContext newContext() {
+        try {
+            return JAXBContext.newInstance(XMessage.class);
+        } catch (JAXBException e) {
+            log.error("Unable to create XMessage JAXB context: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Unmarshaller newUnmarshaller() {
+        try {
+            return context == null ? null : context.createUnmarshaller();
+        } catch (JAXBException e) {
+            log.error("Unable to create XMessage unmarshaller: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read a message from its xml
+     *
+     * @param xml message xml
+     * @return message
+     * @throws JAXBException if the xml is not a valid message
+     */
+    public static XMessage parse(String xml) throws JAXBException {
+        try {
+            XMessage message = read(factory.createXMLStreamReader(new StringReader(xml)));
+            if (message != null) {
+                return message;
+            }
+        } catch (XMLStreamException | JAXBException e) {
+            log.debug("Streaming read of XMessage failed, parsing it: " + e.getMessage());
+        }
+        return XMessageParser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Read a message from its UTF-8 encoded xml
+     *
+     * @param xml message xml
+     * @return message
+     * @throws JAXBException if the xml is not a valid message
+     */
+    public static XMessage parse(byte[] xml) throws JAXBException {
+        try {
+            XMessage message = read(factory.createXMLStreamReader(new ByteArrayInputStream(xml), StandardCharsets.UTF_8.name()));
+            if (message != null) {
+                return message;
+            }
+        } catch (XMLStreamException | JAXBException e) {
+            log.debug("Streaming read of XMessage failed, parsing it: " + e.getMessage());
+        }
+        return XMessageParser.parse(new ByteArrayInputStream(xml));
+    }
+
+    private static XMessage read(XMLStreamReader reader) throws JAXBException, XMLStreamException {
+        Unmarshaller unmarshaller = unmarshallers.get();
+        if (unmarshaller == null) {
+            return null;
+        }
+        try {
+            return unmarshaller.unmarshal(reader, XMessage.class).getValue();
+        } finally {
+            reader.close();
+        }
+    }
+}
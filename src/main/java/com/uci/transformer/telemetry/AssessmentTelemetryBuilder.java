@@ -41,7 +41,7 @@ public class AssessmentTelemetryBuilder {
 			String msgid, Boolean formEnd, UUID sessionId, Boolean validResponse) {
 //		ArrayList<ButtonChoice> buttonChoices = getQuestionChoices(questionPayload.getButtonChoices());
 		ArrayList<ButtonChoice> buttonChoices = questionPayload.getButtonChoices();
-		String questionType = getQuestionType(buttonChoices);
+		String questionType = getQuestionType(question, buttonChoices);
 		
 		String xPath = question != null && question.getXPath() != null ? question.getXPath() : "";
 		
@@ -158,13 +158,17 @@ public class AssessmentTelemetryBuilder {
 	}
 	
 	/**
-	 * Get question type(mcq/string) based on choices present or not
+	 * Get question type(mcq/string) from the compiled question type, else based on choices present or not
+	 * @param question
 	 * @param questionChoices
 	 * @return String
 	 */
-	private String getQuestionType(ArrayList<ButtonChoice> questionChoices) {
+	private String getQuestionType(Question question, ArrayList<ButtonChoice> questionChoices) {
 		String questionType;
-		if(questionChoices != null && questionChoices.size() > 0) {
+		if(question != null && (question.getQuestionType() == QuestionType.SINGLE_SELECT
+				|| question.getQuestionType() == QuestionType.MULTI_SELECT)) {
+			questionType = QUESTION_TYPE_MCQ;
+		} else if(questionChoices != null && questionChoices.size() > 0) {
 			questionType = QUESTION_TYPE_MCQ;
 		} else {
 			questionType = QUESTION_TYPE_FTP;
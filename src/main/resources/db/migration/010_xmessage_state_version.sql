@@ -0,0 +1,6 @@
+DELETE FROM xmessage_state a USING xmessage_state b
+WHERE a.phone_no = b.phone_no AND a.bot_form_name = b.bot_form_name AND a.id < b.id;
+
+ALTER TABLE xmessage_state ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+
+CREATE UNIQUE INDEX IF NOT EXISTS index_state_phone_no_bot_form_name ON xmessage_state(phone_no, bot_form_name);
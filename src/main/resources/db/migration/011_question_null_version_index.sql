@@ -0,0 +1,12 @@
+WITH ranked AS (
+    SELECT id, FIRST_VALUE(id) OVER (PARTITION BY form_id, x_path ORDER BY created, id) AS kept_id
+    FROM question WHERE form_version IS NULL
+)
+UPDATE assessment SET question = ranked.kept_id
+FROM ranked WHERE assessment.question = ranked.id AND ranked.id <> ranked.kept_id;
+
+DELETE FROM question a USING question b
+WHERE a.form_version IS NULL AND b.form_version IS NULL AND a.form_id = b.form_id AND a.x_path = b.x_path
+AND (a.created, a.id) > (b.created, b.id);
+
+CREATE UNIQUE INDEX IF NOT EXISTS question_form_id_null_version_idx ON question(form_id, x_path) WHERE form_version IS NULL;
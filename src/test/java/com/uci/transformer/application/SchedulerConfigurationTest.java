@@ -0,0 +1,48 @@
+package com.uci.transformer.application;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.blockhound.BlockingOperationError;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * BlockHound is installed for the test suite, so blocking calls on compute threads fail.
+ */
+class SchedulerConfigurationTest {
+    private final SchedulerConfiguration configuration = new SchedulerConfiguration();
+    private final Scheduler computeScheduler = configuration.computeScheduler(2);
+    private final Scheduler ioScheduler = configuration.ioScheduler(2, 10);
+
+    @AfterEach
+    public void dispose() {
+        computeScheduler.dispose();
+        ioScheduler.dispose();
+    }
+
+    @Test
+    public void blockingOnComputeSchedulerFails() {
+        Throwable e = assertThrows(Throwable.class, () -> Mono.fromCallable(this::blockingCall)
+                .subscribeOn(computeScheduler)
+                .block());
+        assertTrue(e instanceof BlockingOperationError || e.getCause() instanceof BlockingOperationError, e.toString());
+    }
+
+    @Test
+    public void blockingOnIoSchedulerIsAllowed() {
+        assertEquals("done", Mono.fromCallable(this::blockingCall)
+                .subscribeOn(ioScheduler)
+                .publishOn(computeScheduler)
+                .map(value -> value)
+                .block());
+    }
+
+    private String blockingCall() throws InterruptedException {
+        Thread.sleep(10);
+        return "done";
+    }
+}
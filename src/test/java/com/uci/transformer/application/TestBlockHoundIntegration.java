@@ -0,0 +1,17 @@
+package com.uci.transformer.application;
+
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.integration.BlockHoundIntegration;
+
+/**
+ * Console logging writes to a stream, which is allowed on non-blocking threads in tests.
+ */
+public class TestBlockHoundIntegration implements BlockHoundIntegration {
+
+    @Override
+    public void applyTo(BlockHound.Builder builder) {
+        builder.allowBlockingCallsInside("ch.qos.logback.core.OutputStreamAppender", "subAppend");
+        builder.allowBlockingCallsInside("java.util.logging.StreamHandler", "publish");
+        builder.allowBlockingCallsInside("java.util.logging.StreamHandler", "flush");
+    }
+}
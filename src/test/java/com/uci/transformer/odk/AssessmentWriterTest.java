@@ -0,0 +1,70 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.Assessment;
+import com.uci.transformer.odk.entity.Question;
+import org.junit.jupiter.api.Test;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.FetchSpec;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class AssessmentWriterTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void assessmentsOfAllMessagesAreInsertedInBatches() throws Exception {
+        List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        DatabaseClient databaseClient = mock(DatabaseClient.class);
+        DatabaseClient.GenericExecuteSpec spec = mock(DatabaseClient.GenericExecuteSpec.class);
+        FetchSpec<Map<String, Object>> fetchSpec = mock(FetchSpec.class);
+        when(databaseClient.sql(anyString())).thenAnswer(invocation -> {
+            statements.add(invocation.getArgument(0));
+            return spec;
+        });
+        when(spec.bind(anyInt(), any())).thenReturn(spec);
+        when(spec.bindNull(anyInt(), any())).thenReturn(spec);
+        when(spec.fetch()).thenReturn(fetchSpec);
+        when(fetchSpec.rowsUpdated()).thenReturn(Mono.just(1));
+
+        AssessmentWriter writer = new AssessmentWriter();
+        ReflectionTestUtils.setField(writer, "databaseClient", databaseClient);
+        ReflectionTestUtils.setField(writer, "maxBatchSize", 10);
+        ReflectionTestUtils.setField(writer, "maxBatchTimeSeconds", 60);
+        ReflectionTestUtils.setField(writer, "capacity", 1000);
+        ReflectionTestUtils.setField(writer, "shutdownTimeoutMs", 10000L);
+        writer.start();
+
+        Question question = Question.builder().id(UUID.randomUUID()).build();
+        for (int i = 0; i < 25; i++) {
+            writer.write(Assessment.builder().question(question).answer("answer " + i).userID(UUID.randomUUID()).build());
+        }
+        /* Last partial batch is inserted on shutdown */
+        writer.close();
+
+        assertEquals(3, statements.size());
+        assertEquals(10, rows(statements.get(0)));
+        assertEquals(10, rows(statements.get(1)));
+        assertEquals(5, rows(statements.get(2)));
+        assertTrue(statements.get(0).startsWith("INSERT INTO assessment (id, question, answer"));
+        assertTrue(statements.get(2).endsWith("($37, $38, $39, $40, $41, $42, $43, $44, $45)"));
+        assertEquals(0, writer.getPending());
+        /* Bot & device ids & meta are null */
+        verify(spec, times(25 * 6)).bind(anyInt(), any());
+        verify(spec, times(25 * 3)).bindNull(anyInt(), any());
+    }
+
+    private int rows(String statement) {
+        return statement.split("\\), \\(").length;
+    }
+}
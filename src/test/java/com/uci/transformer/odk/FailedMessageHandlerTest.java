@@ -0,0 +1,148 @@
+package com.uci.transformer.odk;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class FailedMessageHandlerTest {
+    private static final String TOPIC = "odk-transformer";
+    private static final String RETRY_TOPIC = "odk-transformer-retry";
+    private static final String DEAD_LETTER_TOPIC = "odk-transformer-dlt";
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retriesWithBackoffThenDeadLetters() {
+        OutboundPublisher publisher = mock(OutboundPublisher.class);
+        ArgumentCaptor<ProducerRecord<String, String>> sent = ArgumentCaptor.forClass(ProducerRecord.class);
+        when(publisher.send(sent.capture())).thenReturn(Mono.empty());
+        FailedMessageHandler handler = newHandler(publisher);
+
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 2, 42L, "9876543210", "<xMessage/>");
+        RuntimeException error = new RuntimeException("form is broken");
+
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            long before = System.currentTimeMillis();
+            handler.retry(record, error).block();
+
+            ProducerRecord<String, String> retried = sent.getValue();
+            assertEquals(RETRY_TOPIC, retried.topic());
+            assertEquals("9876543210", retried.key());
+            assertEquals("<xMessage/>", retried.value());
+            assertEquals(String.valueOf(attempt), header(retried, FailedMessageHandler.ATTEMPT));
+            assertEquals(TOPIC, header(retried, FailedMessageHandler.ORIGINAL_TOPIC));
+            assertEquals("42", header(retried, FailedMessageHandler.ORIGINAL_OFFSET));
+            assertTrue(header(retried, FailedMessageHandler.ERROR).contains("form is broken"));
+
+            record = received(retried);
+            assertTrue(handler.isRetry(record));
+            assertTrue(handler.getNotBefore(record) >= before + (1000L << (attempt - 1)));
+        }
+
+        handler.retry(record, error).block();
+        ProducerRecord<String, String> deadLetter = sent.getValue();
+        assertEquals(DEAD_LETTER_TOPIC, deadLetter.topic());
+        assertEquals("<xMessage/>", deadLetter.value());
+        assertEquals(TOPIC, header(deadLetter, FailedMessageHandler.ORIGINAL_TOPIC));
+        assertEquals("2", header(deadLetter, FailedMessageHandler.ORIGINAL_PARTITION));
+        assertTrue(header(deadLetter, FailedMessageHandler.ERROR_STACKTRACE).contains("form is broken"));
+        assertNull(deadLetter.headers().lastHeader(FailedMessageHandler.NOT_BEFORE));
+        verify(publisher, times(3)).send(any(ProducerRecord.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void stateVersionIsKeptOnRetries() {
+        OutboundPublisher publisher = mock(OutboundPublisher.class);
+        ArgumentCaptor<ProducerRecord<String, String>> sent = ArgumentCaptor.forClass(ProducerRecord.class);
+        when(publisher.send(sent.capture())).thenReturn(Mono.empty());
+        FailedMessageHandler handler = newHandler(publisher);
+
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 2, 42L, "9876543210", "<xMessage/>");
+        assertNull(handler.getStateVersion(record));
+
+        handler.retry(record, new RuntimeException("database down"), 7L).block();
+        record = received(sent.getValue());
+        assertEquals(Long.valueOf(7), handler.getStateVersion(record));
+
+        /* Failed again before its state was read */
+        handler.retry(record, new RuntimeException("database down")).block();
+        assertEquals(Long.valueOf(7), handler.getStateVersion(received(sent.getValue())));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void postponedRecordsAreNotCountedAsAttempts() {
+        OutboundPublisher publisher = mock(OutboundPublisher.class);
+        ArgumentCaptor<ProducerRecord<String, String>> sent = ArgumentCaptor.forClass(ProducerRecord.class);
+        when(publisher.send(sent.capture())).thenReturn(Mono.empty());
+        FailedMessageHandler handler = newHandler(publisher);
+
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(TOPIC, 2, 42L, "9876543210", "<xMessage/>");
+        handler.retry(record, new RuntimeException("form is broken")).block();
+        record = received(sent.getValue());
+
+        /* Circuit open for longer than the backoff, many times over */
+        long openUntil = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < 5; i++) {
+            handler.postpone(record, openUntil, new FormCircuitBreaker.CircuitOpenException("form_a", openUntil)).block();
+            ProducerRecord<String, String> postponed = sent.getValue();
+            assertEquals(RETRY_TOPIC, postponed.topic());
+            assertEquals("1", header(postponed, FailedMessageHandler.ATTEMPT));
+            assertEquals(TOPIC, header(postponed, FailedMessageHandler.ORIGINAL_TOPIC));
+            record = received(postponed);
+            assertEquals(openUntil, handler.getNotBefore(record));
+        }
+
+        /* Circuit closed since */
+        long before = System.currentTimeMillis();
+        handler.postpone(record, 0, new FormCircuitBreaker.CircuitOpenException("form_a", 0)).block();
+        assertTrue(handler.getNotBefore(received(sent.getValue())) >= before + 1000);
+
+        handler.retry(record, new RuntimeException("form is broken")).block();
+        assertEquals("2", header(sent.getValue(), FailedMessageHandler.ATTEMPT));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendFailuresAreNotPropagated() {
+        OutboundPublisher publisher = mock(OutboundPublisher.class);
+        when(publisher.send(any(ProducerRecord.class))).thenReturn(Mono.error(new RuntimeException("broker unavailable")));
+        FailedMessageHandler handler = newHandler(publisher);
+
+        handler.deadLetter(new ConsumerRecord<>(TOPIC, 0, 1L, "key", "<xMessage/>"), new RuntimeException("failed")).block();
+    }
+
+    private FailedMessageHandler newHandler(OutboundPublisher publisher) {
+        FailedMessageHandler handler = new FailedMessageHandler();
+        ReflectionTestUtils.setField(handler, "outboundPublisher", publisher);
+        ReflectionTestUtils.setField(handler, "retryTopic", RETRY_TOPIC);
+        ReflectionTestUtils.setField(handler, "deadLetterTopic", DEAD_LETTER_TOPIC);
+        ReflectionTestUtils.setField(handler, "maxAttempts", 2);
+        ReflectionTestUtils.setField(handler, "backoffMs", 1000L);
+        ReflectionTestUtils.setField(handler, "maxBackoffMs", 60000L);
+        return handler;
+    }
+
+    private ConsumerRecord<String, String> received(ProducerRecord<String, String> sent) {
+        ConsumerRecord<String, String> record = new ConsumerRecord<>(sent.topic(), 0, 7L, sent.key(), sent.value());
+        for (Header header : sent.headers()) {
+            record.headers().add(header);
+        }
+        return record;
+    }
+
+    private String header(ProducerRecord<String, String> record, String key) {
+        Header header = record.headers().lastHeader(key);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package com.uci.transformer.odk;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FormCircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong(1000);
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        FormCircuitBreaker breaker = newBreaker();
+
+        breaker.failure("form_a");
+        breaker.failure("form_a");
+        breaker.success("form_a");
+        breaker.failure("form_a");
+        breaker.failure("form_a");
+        assertTrue(breaker.allow("form_a"));
+
+        breaker.failure("form_a");
+        assertFalse(breaker.allow("form_a"));
+        assertTrue(breaker.allow("form_b"));
+        assertTrue(breaker.allow(null));
+        assertEquals(1, breaker.getOpenCircuits());
+        assertEquals(11000, breaker.getOpenUntil("form_a"));
+        assertEquals(0, breaker.getOpenUntil("form_b"));
+    }
+
+    @Test
+    public void letsOneTrialThroughOnceOpenTimeHasPassed() {
+        FormCircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.failure("form_a");
+        }
+        assertFalse(breaker.allow("form_a"));
+
+        now.addAndGet(10000);
+        assertTrue(breaker.allow("form_a"));
+        assertFalse(breaker.allow("form_a"));
+
+        /* Trial fails, open again */
+        breaker.failure("form_a");
+        assertFalse(breaker.allow("form_a"));
+
+        now.addAndGet(10000);
+        assertTrue(breaker.allow("form_a"));
+        breaker.success("form_a");
+        assertTrue(breaker.allow("form_a"));
+        assertTrue(breaker.allow("form_a"));
+        assertEquals(0, breaker.getOpenCircuits());
+    }
+
+    @Test
+    public void releasedTrialLetsTheNextMessageThrough() {
+        FormCircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.failure("form_a");
+        }
+        now.addAndGet(10000);
+        assertTrue(breaker.allow("form_a"));
+        assertFalse(breaker.allow("form_a"));
+
+        /* Trial cancelled or failed in a service, the circuit stays open for the next trial */
+        breaker.release("form_a");
+        assertTrue(breaker.allow("form_a"));
+        assertFalse(breaker.allow("form_a"));
+        assertEquals(11000, breaker.getOpenUntil("form_a"));
+
+        breaker.release("form_b");
+        assertTrue(breaker.allow("form_b"));
+    }
+
+    private FormCircuitBreaker newBreaker() {
+        FormCircuitBreaker breaker = new FormCircuitBreaker();
+        ReflectionTestUtils.setField(breaker, "failureThreshold", 3);
+        ReflectionTestUtils.setField(breaker, "openMs", 10000L);
+        ReflectionTestUtils.setField(breaker, "clock", (LongSupplier) now::get);
+        return breaker;
+    }
+}
@@ -0,0 +1,45 @@
+package com.uci.transformer.odk;
+
+import org.javarosa.core.model.FormDef;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FormDefCacheTest {
+    private static final String FORM_PATH = "src/main/resources/forms/Industry_feedback.xml";
+    private static final String TITLE = "Establishment Survey - Current Hiring Requirements";
+
+    @TempDir
+    Path formsDir;
+
+    @Test
+    public void unregisteredFormIsLoadedAgainOnlyOnceModified() throws Exception {
+        FormDefCache cache = FormDefCache.getInstance();
+        File formXml = formsDir.resolve("unregistered.xml").toFile();
+        String xml = new String(Files.readAllBytes(new File(FORM_PATH).toPath()), StandardCharsets.UTF_8);
+        Files.write(formXml.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+        long misses = cache.stats().missCount();
+        FormDef formDef = cache.getFormDef(formXml);
+        assertEquals(TITLE, formDef.getTitle());
+        assertEquals(misses + 1, cache.stats().missCount());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(TITLE, cache.getFormDef(formXml).getTitle());
+        }
+        assertEquals(misses + 1, cache.stats().missCount());
+
+        /* Replaced in place, without invalidating the cache */
+        Files.write(formXml.toPath(), xml.replace(TITLE, "Updated survey").getBytes(StandardCharsets.UTF_8));
+        formXml.setLastModified(formXml.lastModified() + 2000);
+
+        assertEquals("Updated survey", cache.getFormDef(formXml).getTitle());
+        assertEquals(misses + 2, cache.stats().missCount());
+    }
+}
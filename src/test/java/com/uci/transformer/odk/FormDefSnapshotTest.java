@@ -0,0 +1,69 @@
+package com.uci.transformer.odk;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class FormDefSnapshotTest {
+    private static final String FORM_PATH = "src/main/resources/forms/Industry_feedback.xml";
+    private static final int ITERATIONS = 20;
+
+    @BeforeAll
+    public static void registerModules() {
+        new XFormsModule().registerModule();
+    }
+
+    @Test
+    public void snapshotLoadsSameForm() throws Exception {
+        FormDef parsed = parse();
+        FormDefCache.FormTemplate template = FormDefCache.FormTemplate.of(parsed);
+
+        FormDef loaded = template.newFormDef();
+        assertNotNull(loaded);
+        assertEquals(parsed.getTitle(), loaded.getTitle());
+        assertEquals(parsed.getChildren().size(), loaded.getChildren().size());
+        assertEquals(parsed.getMainInstance().getRoot().getName(), loaded.getMainInstance().getRoot().getName());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void snapshotLoadVsXmlParse() throws Exception {
+        FormDefCache.FormTemplate template = FormDefCache.FormTemplate.of(parse());
+
+        /* Warm up both paths before measuring */
+        for (int i = 0; i < 5; i++) {
+            parse();
+            template.newFormDef();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse();
+        }
+        long xmlParseNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            template.newFormDef();
+        }
+        long snapshotNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(String.format("Industry_feedback.xml: xml parse %.2f ms, snapshot load %.2f ms (%d bytes)",
+                xmlParseNanos / 1e6, snapshotNanos / 1e6, template.getWeight()));
+    }
+
+    private FormDef parse() throws Exception {
+        try (InputStream is = new FileInputStream(FORM_PATH)) {
+            return XFormUtils.getFormFromInputStream(is);
+        }
+    }
+}
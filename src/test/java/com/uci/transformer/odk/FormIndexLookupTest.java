@@ -0,0 +1,155 @@
+package com.uci.transformer.odk;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormIndexLookupTest {
+    private static final String FORM_PATH = "src/main/resources/forms/Industry_feedback.xml";
+    private static final String REPEAT_FORM = "<?xml version=\"1.0\"?>"
+            + "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\" xmlns:jr=\"http://openrosa.org/javarosa\">"
+            + "<h:head><h:title>Repeat form</h:title><model>"
+            + "<instance><data id=\"repeat_form\"><members jr:template=\"\"><name/></members><more/><extra/></data></instance>"
+            + "<bind nodeset=\"/data/members/name\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/more\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/extra\" type=\"string\" relevant=\"/data/more = 'yes'\"/>"
+            + "</model></h:head><h:body>"
+            + "<group ref=\"/data/members\"><label>Members</label><repeat nodeset=\"/data/members\">"
+            + "<input ref=\"/data/members/name\"><label>Name</label></input></repeat></group>"
+            + "<input ref=\"/data/more\"><label>More</label></input>"
+            + "<input ref=\"/data/extra\"><label>Extra</label></input>"
+            + "</h:body></h:html>";
+
+    @Test
+    public void lookupMatchesSteppingThroughForm() throws Exception {
+        new XFormsModule().registerModule();
+        FormDef formDef;
+        try (InputStream is = new FileInputStream(FORM_PATH)) {
+            formDef = XFormUtils.getFormFromInputStream(is);
+        }
+        formDef.initialize(true, new InstanceInitializationFactory());
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+
+        FormIndexLookup lookup = FormIndexLookup.build(fec.getModel());
+        assertTrue(lookup.size() > 0);
+        assertTrue(fec.getModel().getFormIndex().isBeginningOfFormIndex());
+
+        int event = fec.stepToNextEvent();
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            FormIndex current = fec.getModel().getFormIndex();
+            String xpath = FormIndexLookup.toXPath(event, current);
+            FormIndex found = lookup.get(xpath);
+            assertNotNull(found, xpath);
+            assertEquals(0, found.compareTo(current), xpath);
+            event = fec.stepToNextEvent();
+        }
+    }
+
+    @Test
+    public void repeatsAreSteppedToInEachInstance() throws Exception {
+        new XFormsModule().registerModule();
+        FormDefCache.FormTemplate template = FormDefCache.FormTemplate.of(
+                XFormUtils.getFormFromInputStream(new ByteArrayInputStream(REPEAT_FORM.getBytes(StandardCharsets.UTF_8))));
+        FormIndexLookup lookup = template.getIndexLookup();
+
+        /* Users with a different number of members, only the second one sees the extra question */
+        FormEntryController oneMember = fillForm(template, 1, null);
+        Map<String, FormIndex> oneMemberIndexes = stepThrough(oneMember);
+        FormEntryController threeMembers = fillForm(template, 3, "yes");
+        Map<String, FormIndex> threeMembersIndexes = stepThrough(threeMembers);
+
+        assertCoherent(lookup, oneMember, oneMemberIndexes);
+        assertCoherent(lookup, threeMembers, threeMembersIndexes);
+
+        String extra = null;
+        int repeated = 0;
+        for (Map.Entry<String, FormIndex> entry : threeMembersIndexes.entrySet()) {
+            String xpath = entry.getKey();
+            if (xpath.contains("/data/extra")) {
+                extra = xpath;
+            }
+            if (xpath.startsWith("promptNewRepeat") || isInRepeat(entry.getValue())) {
+                assertNull(lookup.get(xpath), xpath);
+                repeated++;
+            }
+        }
+        assertTrue(repeated >= 6);
+        assertNotNull(extra);
+        assertNotNull(lookup.find(extra, threeMembers.getModel()));
+        /* Not relevant to the first user, stepping through the form would not find it */
+        assertNotNull(lookup.get(extra));
+        assertFalse(oneMemberIndexes.containsKey(extra));
+        assertNull(lookup.find(extra, oneMember.getModel()));
+    }
+
+    private boolean isInRepeat(FormIndex index) {
+        for (FormIndex level = index; level != null; level = level.getNextLevel()) {
+            if (level.getInstanceIndex() != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every xpath stepped to is found at the same index, or not at all
+     */
+    private void assertCoherent(FormIndexLookup lookup, FormEntryController fec, Map<String, FormIndex> stepped) {
+        for (Map.Entry<String, FormIndex> entry : stepped.entrySet()) {
+            FormIndex found = lookup.find(entry.getKey(), fec.getModel());
+            if (found != null) {
+                assertEquals(0, found.compareTo(entry.getValue()), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * A new instance of the form with a number of repeat instances added & the more question answered
+     */
+    private FormEntryController fillForm(FormDefCache.FormTemplate template, int members, String more) throws Exception {
+        FormDef formDef = template.newFormDef();
+        formDef.initialize(true, new InstanceInitializationFactory());
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+        int added = 0;
+        int event = fec.stepToNextEvent();
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            if (event == FormEntryController.EVENT_PROMPT_NEW_REPEAT && added < members) {
+                fec.newRepeat();
+                added++;
+            } else if (event == FormEntryController.EVENT_QUESTION && more != null
+                    && fec.getModel().getFormIndex().getReference().toString().contains("/data/more")) {
+                fec.answerQuestion(fec.getModel().getFormIndex(), new StringData(more), true);
+            }
+            event = fec.stepToNextEvent();
+        }
+        fec.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        return fec;
+    }
+
+    private Map<String, FormIndex> stepThrough(FormEntryController fec) {
+        Map<String, FormIndex> indexes = new LinkedHashMap<>();
+        int event = fec.stepToNextEvent();
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            FormIndex current = fec.getModel().getFormIndex();
+            indexes.putIfAbsent(FormIndexLookup.toXPath(event, current), current);
+            event = fec.stepToNextEvent();
+        }
+        fec.jumpToIndex(FormIndex.createBeginningOfFormIndex());
+        return indexes;
+    }
+}
@@ -0,0 +1,190 @@
+package com.uci.transformer.odk;
+
+import messagerosa.core.model.ButtonChoice;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The catalog must render questions as the menu manager did before it, see the baseline* methods
+ * copied from it.
+ */
+class FormQuestionCatalogTest {
+    private static final String FORM_PATH = "src/main/resources/forms/Industry_feedback.xml";
+    private static final String CATALOG_FORM = "<?xml version=\"1.0\"?>"
+            + "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+            + "<h:head><h:title>Catalog form</h:title><model>"
+            + "<instance><data id=\"catalog_form\"><unlabelled/><helped/><choice/></data></instance>"
+            + "<bind nodeset=\"/data/unlabelled\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/helped\" type=\"string\"/>"
+            + "<bind nodeset=\"/data/choice\" type=\"select1\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/unlabelled\"/>"
+            + "<input ref=\"/data/helped\"><label>Name</label><hint>Full name</hint></input>"
+            + "<select1 ref=\"/data/choice\"><label>Pick one</label>"
+            + "<item><label>1 Yes</label><value>yes</value></item>"
+            + "<item><label>No</label><value>no</value></item></select1>"
+            + "</h:body></h:html>";
+
+    @BeforeAll
+    public static void registerModules() {
+        new XFormsModule().registerModule();
+    }
+
+    @Test
+    public void catalogMatchesMenuManagerRendering() throws Exception {
+        FormDef formDef;
+        try (InputStream is = new FileInputStream(FORM_PATH)) {
+            formDef = XFormUtils.getFormFromInputStream(is);
+        }
+        assertTrue(assertSameAsBaseline(formDef).size() > 5);
+    }
+
+    @Test
+    public void questionsWithoutTextAndNumberedChoices() throws Exception {
+        FormDef formDef = XFormUtils.getFormFromInputStream(new ByteArrayInputStream(CATALOG_FORM.getBytes(StandardCharsets.UTF_8)));
+        Map<String, FormQuestionCatalog.QuestionEntry> entries = assertSameAsBaseline(formDef);
+        assertEquals(3, entries.size());
+
+        FormQuestionCatalog.QuestionEntry unlabelled = entries.get("question./data/unlabelled");
+        assertNotNull(unlabelled);
+        assertEquals("", unlabelled.getQuestionText());
+
+        FormQuestionCatalog.QuestionEntry helped = entries.get("question./data/helped");
+        assertEquals("Name \n_Full name_ \n\n", helped.getQuestionText());
+
+        ArrayList<ButtonChoice> choices = entries.get("question./data/choice").newButtonChoices();
+        assertEquals("1", choices.get(0).getKey());
+        assertEquals("1 Yes", choices.get(0).getText());
+        assertEquals("no", choices.get(1).getKey());
+    }
+
+    /**
+     * Step through the form, checking the catalog entry of every question against the baseline rendering
+     *
+     * @return catalog entries by xpath
+     */
+    private Map<String, FormQuestionCatalog.QuestionEntry> assertSameAsBaseline(FormDef formDef) {
+        formDef.initialize(true, new InstanceInitializationFactory());
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+        FormQuestionCatalog catalog = new FormQuestionCatalog();
+        Map<String, FormQuestionCatalog.QuestionEntry> entries = new HashMap<>();
+
+        int event = fec.stepToNextEvent();
+        while (event != FormEntryController.EVENT_END_OF_FORM) {
+            if (event == FormEntryController.EVENT_QUESTION) {
+                String xpath = FormIndexLookup.toXPath(event, fec.getModel().getFormIndex());
+                FormQuestionCatalog.QuestionEntry entry = catalog.get(fec.getModel(), xpath);
+
+                assertNotNull(entry, xpath);
+                if (entry.getQuestionText() != null) {
+                    assertEquals(baselineRenderQuestion(fec), entry.getQuestionText(), xpath);
+                }
+                if (entry.getChoices() != null) {
+                    List<ButtonChoice> expected = baselineGetChoices(fec);
+                    List<ButtonChoice> actual = entry.newButtonChoices();
+                    assertEquals(expected.size(), actual.size(), xpath);
+                    for (int i = 0; i < expected.size(); i++) {
+                        assertEquals(expected.get(i).getKey(), actual.get(i).getKey(), xpath);
+                        assertEquals(expected.get(i).getText(), actual.get(i).getText(), xpath);
+                    }
+                }
+                entries.put(xpath, entry);
+            }
+            event = fec.stepToNextEvent();
+        }
+        return entries;
+    }
+
+    private String baselineRenderQuestion(FormEntryController formController) {
+        try {
+            if (baselineCleanText(baselineGetHelpText(formController)).equals("")) {
+                return "" + baselineCleanText(formController.getModel().getQuestionPrompt().getQuestionText()) + "" + " \n\n";
+            } else {
+                return "" + baselineCleanText(formController.getModel().getQuestionPrompt().getQuestionText()) + "" + " \n" +
+                        "_" + baselineCleanText(baselineGetHelpText(formController)) + "_" + " \n\n";
+            }
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private String baselineCleanText(String s) {
+        if (s.equals("")) return "";
+        return s;
+    }
+
+    private String baselineGetHelpText(FormEntryController formController) {
+        String helpText = formController.getModel().getQuestionPrompt().getHelpText();
+        if (helpText == null) return "";
+        return helpText;
+    }
+
+    private List<ButtonChoice> baselineGetChoices(FormEntryController formController) {
+        ArrayList<ButtonChoice> buttonChoices = new ArrayList<>();
+        FormEntryPrompt prompt = formController.getModel().getQuestionPrompt();
+        if (prompt.getControlType() == Constants.CONTROL_SELECT_ONE) {
+            List<SelectChoice> items = prompt.getSelectChoices();
+            if (items != null) {
+                for (SelectChoice item : items) {
+                    buttonChoices.add(ButtonChoice.builder().key(item.getValue()).text(baselineGetLocaleChoiceText(formController, item)).build());
+                }
+            }
+        }
+        for (ButtonChoice choice : buttonChoices) {
+            try {
+                String[] a = choice.getText().split(" ");
+                if (a[0] != null && !a[0].isEmpty()) {
+                    Integer.parseInt(a[0]);
+                    choice.setKey(a[0]);
+                }
+            } catch (NumberFormatException ex) {
+                String[] b = choice.getText().split(".");
+                try {
+                    if (b[0] != null && !b[0].isEmpty()) {
+                        Integer.parseInt(b[0]);
+                        choice.setKey(b[0]);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException exc) {
+                    // do nothing
+                }
+            } catch (Exception ex) {
+                // do nothing
+            }
+        }
+        return buttonChoices;
+    }
+
+    private String baselineGetLocaleChoiceText(FormEntryController formController, SelectChoice item) {
+        String locale = "";
+        if (formController.getModel().getLanguages() != null
+                && formController.getModel().getLanguage() != null
+                && !formController.getModel().getLanguage().isEmpty()) {
+            locale = formController.getModel().getForm().getLocalizer().getLocale();
+        }
+        String label = item.getLabelInnerText();
+        if (!locale.isEmpty() && item.getTextID() != null && !item.getTextID().isEmpty()) {
+            label = formController.getModel().getForm().getLocalizer().getLocaleData(locale).get(item.getTextID());
+        }
+        return label;
+    }
+}
@@ -0,0 +1,29 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.model.Form;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FormWarmupTest {
+    private static final String FORM_PATH = new File("src/main/resources/forms/Industry_feedback.xml").getAbsolutePath();
+    private static final String FORM_ID = "establishment_survery_v1";
+
+    @Test
+    public void formIsWalkedWithoutUserServices() {
+        FormWarmup.registerModules();
+        FormWarmup.registerModules();
+
+        Form form = Form.builder().jrFormId(FORM_ID).formFilePath(FORM_PATH).build();
+        assertTrue(FormWarmup.getInstance().warmUp(form, 2));
+    }
+
+    @Test
+    public void missingFormFileFails() {
+        Form form = Form.builder().jrFormId("missing").formFilePath("/tmp/forms2/missing.xml").build();
+        assertFalse(FormWarmup.getInstance().warmUp(form, 1));
+    }
+}
@@ -0,0 +1,106 @@
+package com.uci.transformer.odk;
+
+import messagerosa.core.model.MessageId;
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.XMessage;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class InboundDeduplicatorTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void duplicatesAreDropped() {
+        /* Redis shared by two instances */
+        Set<String> keys = new HashSet<>();
+        ValueOperations<String, String> operations = mock(ValueOperations.class);
+        when(operations.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+                .thenAnswer(invocation -> keys.add(invocation.getArgument(0)));
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.opsForValue()).thenReturn(operations);
+
+        InboundDeduplicator first = newDeduplicator(redisTemplate);
+        InboundDeduplicator second = newDeduplicator(redisTemplate);
+
+        assertTrue(first.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        assertFalse(first.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        /* Redelivered to another instance after a rebalance */
+        assertFalse(second.isFirstDelivery(buildMessage("9876543210", "message-1")));
+
+        assertTrue(first.isFirstDelivery(buildMessage("9876543210", "message-2")));
+        assertTrue(second.isFirstDelivery(buildMessage("9876543211", "message-1")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void releasedMessagesAreProcessedWhenRedelivered() {
+        Set<String> keys = new HashSet<>();
+        ValueOperations<String, String> operations = mock(ValueOperations.class);
+        when(operations.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+                .thenAnswer(invocation -> keys.add(invocation.getArgument(0)));
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.opsForValue()).thenReturn(operations);
+        when(redisTemplate.delete(anyString())).thenAnswer(invocation -> keys.remove(invocation.<String>getArgument(0)));
+
+        InboundDeduplicator first = newDeduplicator(redisTemplate);
+        InboundDeduplicator second = newDeduplicator(redisTemplate);
+
+        assertTrue(first.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        assertTrue(first.isFirstDelivery(buildMessage("9876543210", "message-2")));
+        /* Processing of the first failed */
+        first.release(buildMessage("9876543210", "message-1"));
+
+        assertTrue(first.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        first.release(buildMessage("9876543210", "message-1"));
+        assertTrue(second.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        assertFalse(first.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        assertFalse(second.isFirstDelivery(buildMessage("9876543210", "message-2")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void messagesAreLetThroughWithoutIdOrRedis() {
+        ValueOperations<String, String> operations = mock(ValueOperations.class);
+        when(operations.setIfAbsent(anyString(), anyString(), any(Duration.class)))
+                .thenThrow(new RedisConnectionFailureException("redis down"));
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.opsForValue()).thenReturn(operations);
+
+        InboundDeduplicator deduplicator = newDeduplicator(redisTemplate);
+
+        assertTrue(deduplicator.isFirstDelivery(buildMessage("9876543210", null)));
+        assertTrue(deduplicator.isFirstDelivery(buildMessage("9876543210", null)));
+        assertTrue(deduplicator.isFirstDelivery(buildMessage("9876543210", "message-1")));
+        /* Still caught by the local cache */
+        assertFalse(deduplicator.isFirstDelivery(buildMessage("9876543210", "message-1")));
+    }
+
+    private InboundDeduplicator newDeduplicator(StringRedisTemplate redisTemplate) {
+        InboundDeduplicator deduplicator = new InboundDeduplicator();
+        ReflectionTestUtils.setField(deduplicator, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(deduplicator, "enabled", true);
+        ReflectionTestUtils.setField(deduplicator, "ttlSeconds", 60L);
+        ReflectionTestUtils.setField(deduplicator, "localMaxSize", 1000L);
+        deduplicator.init();
+        return deduplicator;
+    }
+
+    private XMessage buildMessage(String userID, String channelMessageId) {
+        return XMessage.builder()
+                .to(SenderReceiverInfo.builder().userID(userID).build())
+                .messageId(MessageId.builder().channelMessageId(channelMessageId).build())
+                .build();
+    }
+}
@@ -0,0 +1,89 @@
+package com.uci.transformer.odk;
+
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.parse.XFormParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InstanceRestorerTest {
+    private static final int ITERATIONS = 50;
+
+    @Test
+    public void staxRestoreMatchesRestoreDataModel() throws Exception {
+        for (int fields : new int[]{10, 100, 1000}) {
+            String instanceXML = buildInstance(fields);
+
+            TreeElement expected = XFormParser.restoreDataModel(instanceXML.getBytes(), null).getRoot();
+            TreeElement actual = InstanceRestorer.read(instanceXML);
+            assertSameTree(expected, actual);
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void staxRestoreVsRestoreDataModel() throws Exception {
+        for (int fields : new int[]{10, 100, 1000}) {
+            String instanceXML = buildInstance(fields);
+
+            /* Warm up both paths before measuring */
+            for (int i = 0; i < 10; i++) {
+                XFormParser.restoreDataModel(instanceXML.getBytes(), null);
+                InstanceRestorer.read(instanceXML);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                XFormParser.restoreDataModel(instanceXML.getBytes(), null);
+            }
+            long restoreDataModelNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                InstanceRestorer.read(instanceXML);
+            }
+            long staxNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format("%d fields (%d chars): restoreDataModel %.3f ms, stax %.3f ms",
+                    fields, instanceXML.length(), restoreDataModelNanos / 1e6, staxNanos / 1e6));
+        }
+    }
+
+    /**
+     * Instance with hidden fields, a group of answers & a repeat, as saved by MenuManager
+     */
+    private String buildInstance(int fields) {
+        StringBuilder sb = new StringBuilder("<?xml version='1.0' ?><data id=\"benchmark_form\" version=\"1\" "
+                + "xmlns:jr=\"http://openrosa.org/javarosa\" xmlns:orx=\"http://openrosa.org/xforms\">");
+        for (int i = 0; i < fields / 2; i++) {
+            sb.append("<hidden_").append(i).append(">value ").append(i).append("</hidden_").append(i).append(">");
+        }
+        sb.append("<group_answers>");
+        for (int i = 0; i < fields - fields / 2; i++) {
+            sb.append("<q").append(i).append(">").append(i % 5).append("</q").append(i).append(">");
+        }
+        sb.append("<empty_answer />");
+        sb.append("</group_answers>");
+        for (int i = 0; i < 3; i++) {
+            sb.append("<member><name>member ").append(i).append("</name><age>").append(20 + i).append("</age></member>");
+        }
+        sb.append("<meta><instanceID>uuid:a0450024-16c1-4820-ae2a-8feeae833228</instanceID></meta></data>");
+        return sb.toString();
+    }
+
+    private void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getMult(), actual.getMult(), expected.getName());
+        assertEquals(expected.getAttributeCount(), actual.getAttributeCount(), expected.getName());
+        assertEquals(valueOf(expected), valueOf(actual), expected.getName());
+        assertEquals(expected.getNumChildren(), actual.getNumChildren(), expected.getName());
+        for (int i = 0; i < expected.getNumChildren(); i++) {
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+        }
+    }
+
+    private String valueOf(TreeElement element) {
+        return element.getValue() == null ? null : element.getValue().uncast().getString();
+    }
+}
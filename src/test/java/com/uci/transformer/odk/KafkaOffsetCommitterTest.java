@@ -0,0 +1,122 @@
+package com.uci.transformer.odk;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.kafka.receiver.ReceiverOffset;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KafkaOffsetCommitterTest {
+    private static final TopicPartition PARTITION_0 = new TopicPartition("odk-transformer", 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition("odk-transformer", 1);
+
+    @Test
+    public void offsetsAreAcknowledgedInPartitionOrder() {
+        List<Long> acknowledged = new ArrayList<>();
+        List<Long> committed = new ArrayList<>();
+        KafkaOffsetCommitter committer = new KafkaOffsetCommitter(100, Duration.ofHours(1));
+        TestOffset[] offsets = new TestOffset[4];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = new TestOffset(PARTITION_0, i, acknowledged, committed);
+            committer.received(offsets[i]);
+        }
+
+        committer.completed(offsets[2]);
+        committer.completed(offsets[1]);
+        assertTrue(acknowledged.isEmpty());
+
+        committer.completed(offsets[0]);
+        assertEquals(Arrays.asList(2L), acknowledged);
+
+        committer.completed(offsets[3]);
+        assertEquals(Arrays.asList(2L, 3L), acknowledged);
+        assertEquals(0, committer.getPending());
+    }
+
+    @Test
+    public void partitionsAreIndependentAndCommittedInBatches() {
+        List<Long> acknowledged = new ArrayList<>();
+        List<Long> committed = new ArrayList<>();
+        KafkaOffsetCommitter committer = new KafkaOffsetCommitter(2, Duration.ofHours(1));
+        TestOffset slow = new TestOffset(PARTITION_0, 10, acknowledged, committed);
+        TestOffset fast = new TestOffset(PARTITION_1, 20, acknowledged, committed);
+        TestOffset next = new TestOffset(PARTITION_1, 21, acknowledged, committed);
+        committer.received(slow);
+        committer.received(fast);
+        committer.received(next);
+
+        committer.completed(fast);
+        assertEquals(Arrays.asList(20L), acknowledged);
+        assertTrue(committed.isEmpty());
+
+        committer.completed(next);
+        assertEquals(Arrays.asList(21L), committed);
+        assertEquals(1, committer.getPending());
+    }
+
+    @Test
+    public void recordsOfARevokedAssignmentAreIgnored() {
+        List<Long> acknowledged = new ArrayList<>();
+        List<Long> committed = new ArrayList<>();
+        KafkaOffsetCommitter committer = new KafkaOffsetCommitter(100, Duration.ofHours(1));
+        TestOffset previous = new TestOffset(PARTITION_0, 5, acknowledged, committed);
+        committer.received(previous);
+        committer.revoke(Arrays.asList(PARTITION_0));
+
+        /* Assigned again, the uncommitted record is redelivered while the previous one is in flight */
+        TestOffset redelivered = new TestOffset(PARTITION_0, 5, acknowledged, committed);
+        TestOffset next = new TestOffset(PARTITION_0, 6, acknowledged, committed);
+        committer.received(redelivered);
+        committer.received(next);
+
+        committer.completed(previous);
+        committer.completed(next);
+        assertTrue(acknowledged.isEmpty());
+        assertEquals(2, committer.getPending());
+
+        committer.completed(redelivered);
+        assertEquals(Arrays.asList(6L), acknowledged);
+        assertEquals(0, committer.getPending());
+    }
+
+    private static class TestOffset implements ReceiverOffset {
+        private final TopicPartition topicPartition;
+        private final long offset;
+        private final List<Long> acknowledged;
+        private final List<Long> committed;
+
+        TestOffset(TopicPartition topicPartition, long offset, List<Long> acknowledged, List<Long> committed) {
+            this.topicPartition = topicPartition;
+            this.offset = offset;
+            this.acknowledged = acknowledged;
+            this.committed = committed;
+        }
+
+        @Override
+        public TopicPartition topicPartition() {
+            return topicPartition;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public void acknowledge() {
+            acknowledged.add(offset);
+        }
+
+        @Override
+        public Mono<Void> commit() {
+            return Mono.fromRunnable(() -> committed.add(offset));
+        }
+    }
+}
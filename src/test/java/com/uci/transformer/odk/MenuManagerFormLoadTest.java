@@ -0,0 +1,32 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.Question;
+import messagerosa.core.model.XMessagePayload;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class MenuManagerFormLoadTest {
+    private static final String FORM_PATH = new File("src/main/resources/forms/Industry_feedback.xml").getAbsolutePath();
+    private static final String FORM_ID = "establishment_survery_v1";
+
+    @Test
+    public void formIsLoadedOncePerMessage() {
+        MenuManager menuManager = new MenuManager(null, null, null, FORM_PATH, FORM_ID,
+                null, "1234567890", "bot", null, null);
+
+        ServiceResponse response = menuManager.start();
+        assertNotNull(response);
+
+        Question question = menuManager.getQuestionFromXPath(response.getCurrentIndex());
+        XMessagePayload payload = menuManager.getQuestionPayloadFromXPath(response.getCurrentIndex());
+
+        assertNotNull(question);
+        assertNotNull(payload);
+        assertEquals(response.formVersion, question.getFormVersion());
+        assertEquals(1, menuManager.getFormLoadCount());
+    }
+}
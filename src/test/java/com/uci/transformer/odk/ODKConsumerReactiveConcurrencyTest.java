@@ -0,0 +1,314 @@
+package com.uci.transformer.odk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.uci.adapter.cdn.FileCdnFactory;
+import com.uci.dao.models.XMessageDAO;
+import com.uci.dao.repository.XMessageRepository;
+import com.uci.transformer.application.SchedulerConfiguration;
+import com.uci.transformer.odk.entity.Assessment;
+import com.uci.transformer.odk.entity.GupshupMessageEntity;
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import com.uci.transformer.odk.entity.Question;
+import com.uci.transformer.odk.model.Form;
+import com.uci.transformer.odk.persistance.JsonDB;
+import com.uci.transformer.odk.repository.MessageRepository;
+import com.uci.transformer.odk.repository.QuestionRepository;
+import com.uci.transformer.odk.repository.StateRepository;
+import com.uci.transformer.odk.utilities.FileUtils;
+import com.uci.utils.BotService;
+import com.uci.utils.cache.service.RedisCacheService;
+import com.uci.utils.kafka.SimpleProducer;
+import com.uci.utils.service.UserService;
+import io.jsondb.JsonDBTemplate;
+import messagerosa.core.model.MessageId;
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import messagerosa.core.model.XMessagePayload;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Many users answer questions of different forms at the same time, each message must only see its own
+ * session: the assessment, telemetry event & saved state of a message are those of its user.
+ */
+class ODKConsumerReactiveConcurrencyTest {
+    private static final String FORM_PATH = "src/main/resources/forms/Industry_feedback.xml";
+    private static final String TELEMETRY_TOPIC = "telemetry";
+    private static final int CONVERSATIONS = 200;
+    private static final int THREADS = 16;
+
+    private final SchedulerConfiguration schedulers = new SchedulerConfiguration();
+    /* Blocking calls fail on compute threads, BlockHound is installed for the test suite */
+    private final Scheduler computeScheduler = schedulers.computeScheduler(THREADS);
+    private final Scheduler ioScheduler = schedulers.ioScheduler(THREADS, CONVERSATIONS);
+    private final List<Form> forms = new ArrayList<>();
+
+    @TempDir
+    Path formsDir;
+
+    @AfterEach
+    public void cleanUp() {
+        JsonDBTemplate db = JsonDB.getInstance().getDB();
+        for (Form form : forms) {
+            db.remove(form, Form.class);
+        }
+        computeScheduler.dispose();
+        ioScheduler.dispose();
+    }
+
+    @Test
+    public void concurrentMessagesOnlySeeTheirOwnSession() throws Exception {
+        /* The state each user is in: the first question of a form */
+        Map<String, ServiceResponse> firstSteps = new HashMap<>();
+        Map<String, String> titles = new HashMap<>();
+        for (String name : new String[]{"form_a", "form_b", "form_c"}) {
+            String formID = name + "_" + UUID.randomUUID();
+            Path formPath = formsDir.resolve(formID + ".xml");
+            Files.copy(new File(FORM_PATH).toPath(), formPath);
+            registerForm(formID, formPath.toFile());
+
+            MenuManager menuManager = new MenuManager(null, null, null, formPath.toAbsolutePath().toString(), formID,
+                    null, null, null, null, null);
+            ServiceResponse response = menuManager.start();
+            firstSteps.put(formID, response);
+            titles.put(formID, menuManager.getQuestionPayloadFromXPath(response.getCurrentIndex()).getText());
+        }
+        List<String> formIDs = new ArrayList<>(firstSteps.keySet());
+
+        List<Conversation> conversations = new ArrayList<>();
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            String formID = formIDs.get(i % formIDs.size());
+            conversations.add(new Conversation(i, formID, firstSteps.get(formID)));
+        }
+
+        List<Assessment> assessments = Collections.synchronizedList(new ArrayList<>());
+        List<String> telemetryEvents = Collections.synchronizedList(new ArrayList<>());
+        StateRepository stateRepo = mock(StateRepository.class);
+        ODKConsumerReactive consumer = newConsumer(conversations, stateRepo, assessments, telemetryEvents);
+
+        List<XMessage> nextMessages = Flux.fromIterable(conversations)
+                .flatMap(conversation -> Mono.defer(() -> consumer.transform(conversation.newMessage()))
+                        .subscribeOn(ioScheduler), THREADS)
+                .collectList()
+                .block(Duration.ofMinutes(2));
+
+        /* Each message is answered, to its own user */
+        assertEquals(CONVERSATIONS, nextMessages.size());
+        Set<String> users = new HashSet<>();
+        for (XMessage nextMessage : nextMessages) {
+            users.add(nextMessage.getTo().getUserID());
+        }
+        assertEquals(CONVERSATIONS, users.size());
+
+        /* Assessments are written before the message completes */
+        Map<UUID, Conversation> byDevice = new HashMap<>();
+        for (Conversation conversation : conversations) {
+            byDevice.put(conversation.deviceID, conversation);
+        }
+        assertEquals(CONVERSATIONS, assessments.size());
+        Set<UUID> devices = new HashSet<>();
+        for (Assessment assessment : assessments) {
+            Conversation conversation = byDevice.get(assessment.getUserID());
+            assertNotNull(conversation, assessment.toString());
+            devices.add(assessment.getUserID());
+            assertEquals(conversation.answer, assessment.getAnswer());
+            assertEquals(conversation.botID, assessment.getBotID());
+            assertEquals(conversation.formID, assessment.getQuestion().getFormID());
+            assertEquals(conversation.xpath, assessment.getQuestion().getXPath());
+        }
+        assertEquals(CONVERSATIONS, devices.size());
+
+        /* So are the telemetry events */
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, Conversation> bySession = new HashMap<>();
+        for (Conversation conversation : conversations) {
+            bySession.put(conversation.sessionID.toString(), conversation);
+        }
+        assertEquals(CONVERSATIONS, telemetryEvents.size());
+        Set<String> sessions = new HashSet<>();
+        for (String event : telemetryEvents) {
+            JsonNode node = mapper.readTree(event);
+            Conversation conversation = bySession.get(node.findValue("sid").asText());
+            assertNotNull(conversation, event);
+            sessions.add(conversation.sessionID.toString());
+            assertEquals(conversation.deviceID.toString(), node.findValue("did").asText(), event);
+            assertEquals(titles.get(conversation.formID), node.findValue("title").asText(), event);
+        }
+        assertEquals(CONVERSATIONS, sessions.size());
+
+        /* The state of each user is saved once, over the version it was read at */
+        for (Conversation conversation : conversations) {
+            verify(stateRepo).upsertIfVersion(eq(conversation.phone), eq(conversation.formID), anyString(), anyString(), eq(1L));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ODKConsumerReactive newConsumer(List<Conversation> conversations, StateRepository stateRepo,
+                                            List<Assessment> assessments, List<String> telemetryEvents) throws Exception {
+        ODKConsumerReactive consumer = new ODKConsumerReactive(Flux.empty());
+
+        /* Sessions */
+        Map<String, Conversation> byPhone = new HashMap<>();
+        for (Conversation conversation : conversations) {
+            byPhone.put(conversation.phone, conversation);
+        }
+        SessionCache sessionCache = mock(SessionCache.class);
+        when(sessionCache.get(anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            Conversation conversation = byPhone.get(invocation.<String>getArgument(0));
+            return Mono.just(new SessionCache.Session(conversation.savedState(), "English (en)"));
+        });
+        when(sessionCache.putState(anyString(), anyString(), any())).thenReturn(Mono.empty());
+        when(sessionCache.putLanguage(anyString(), anyString(), anyString())).thenReturn(Mono.empty());
+
+        when(stateRepo.upsertIfVersion(anyString(), anyString(), anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            GupshupStateEntity state = byPhone.get(invocation.<String>getArgument(0)).savedState();
+            state.setPreviousPath(invocation.getArgument(3));
+            state.setVersion(invocation.<Long>getArgument(4) + 1);
+            return Mono.just(state);
+        });
+        MessageRepository msgRepo = mock(MessageRepository.class);
+        when(msgRepo.save(any(GupshupMessageEntity.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        /* Questions are known */
+        QuestionRegistry questionRegistry = mock(QuestionRegistry.class);
+        when(questionRegistry.find(anyString(), anyString(), any())).thenAnswer(invocation -> {
+            String xpath = invocation.getArgument(0);
+            String formID = invocation.getArgument(1);
+            return Mono.just(Optional.of(Question.builder()
+                    .id(UUID.nameUUIDFromBytes((formID + xpath).getBytes()))
+                    .formID(formID)
+                    .XPath(xpath)
+                    .questionType(Question.QuestionType.STRING)
+                    .build()));
+        });
+
+        AssessmentWriter assessmentWriter = mock(AssessmentWriter.class);
+        doAnswer(invocation -> assessments.add(invocation.getArgument(0))).when(assessmentWriter).write(any(Assessment.class));
+
+        /* Telemetry */
+        SimpleProducer kafkaProducer = mock(SimpleProducer.class);
+        doAnswer(invocation -> {
+            if (TELEMETRY_TOPIC.equals(invocation.getArgument(0))) {
+                telemetryEvents.add(invocation.getArgument(1));
+            }
+            return null;
+        }).when(kafkaProducer).send(anyString(), anyString());
+        XMessageDAO lastSent = mock(XMessageDAO.class);
+        when(lastSent.getTimestamp()).thenReturn(LocalDateTime.now().minusSeconds(30));
+        XMessageRepository xMsgRepo = mock(XMessageRepository.class);
+        when(xMsgRepo.findFirstByAppAndUserIdAndFromIdAndMessageStateOrderByTimestampDesc(anyString(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> Flux.just(lastSent));
+
+        ReflectionTestUtils.setField(consumer, "sessionCache", sessionCache);
+        ReflectionTestUtils.setField(consumer, "sessionStateWriter", mock(SessionStateWriter.class));
+        ReflectionTestUtils.setField(consumer, "stateRepo", stateRepo);
+        ReflectionTestUtils.setField(consumer, "msgRepo", msgRepo);
+        ReflectionTestUtils.setField(consumer, "questionRegistry", questionRegistry);
+        ReflectionTestUtils.setField(consumer, "questionRepo", mock(QuestionRepository.class));
+        ReflectionTestUtils.setField(consumer, "assessmentWriter", assessmentWriter);
+        ReflectionTestUtils.setField(consumer, "userService", mock(UserService.class));
+        ReflectionTestUtils.setField(consumer, "botService", mock(BotService.class));
+        ReflectionTestUtils.setField(consumer, "redisCacheService", mock(RedisCacheService.class));
+        ReflectionTestUtils.setField(consumer, "fileCdnFactory", mock(FileCdnFactory.class));
+        ReflectionTestUtils.setField(consumer, "kafkaProducer", kafkaProducer);
+        ReflectionTestUtils.setField(consumer, "xMsgRepo", xMsgRepo);
+        ReflectionTestUtils.setField(consumer, "telemetryTopic", TELEMETRY_TOPIC);
+        ReflectionTestUtils.setField(consumer, "exhaustTelemetryEnabled", "true");
+        ReflectionTestUtils.setField(consumer, "posthogEventEnabled", "false");
+        ReflectionTestUtils.setField(consumer, "producerID", "transformer");
+        ReflectionTestUtils.setField(consumer, "assesGoToStartChar", "*");
+        ReflectionTestUtils.setField(consumer, "computeScheduler", computeScheduler);
+        ReflectionTestUtils.setField(consumer, "ioScheduler", ioScheduler);
+        return consumer;
+    }
+
+    private void registerForm(String formID, File formFile) {
+        Form form = Form.builder()
+                .id(UUID.randomUUID().toString())
+                .jrFormId(formID)
+                .formFilePath(formFile.getAbsolutePath())
+                .md5Hash(FileUtils.getMd5Hash(formFile))
+                .build();
+        JsonDB.getInstance().getDB().insert(form);
+        forms.add(form);
+    }
+
+    private static class Conversation {
+        final String formID;
+        final String xpath;
+        final String instanceXML;
+        final String phone;
+        final String answer;
+        final UUID deviceID = UUID.randomUUID();
+        final UUID sessionID = UUID.randomUUID();
+        final UUID botID = UUID.randomUUID();
+
+        Conversation(int i, String formID, ServiceResponse firstStep) {
+            this.formID = formID;
+            this.xpath = firstStep.getCurrentIndex();
+            this.instanceXML = firstStep.getCurrentResponseState();
+            this.phone = String.format("98%08d", i);
+            this.answer = "answer " + i;
+        }
+
+        GupshupStateEntity savedState() {
+            GupshupStateEntity state = new GupshupStateEntity();
+            state.setId(1L);
+            state.setPhoneNo(phone);
+            state.setBotFormName(formID);
+            state.setPreviousPath(xpath);
+            state.setXmlPrevious(instanceXML);
+            state.setVersion(1L);
+            return state;
+        }
+
+        XMessage newMessage() {
+            Map<String, String> metaData = new HashMap<>();
+            metaData.put("formID", formID);
+            metaData.put("botId", botID.toString());
+            metaData.put("botOwnerID", "owner");
+            metaData.put("botOwnerOrgID", "");
+            metaData.put("startingMessage", "Hi");
+            Transformer transformer = new Transformer();
+            transformer.setMetaData(metaData);
+            ArrayList<Transformer> transformers = new ArrayList<>();
+            transformers.add(transformer);
+
+            XMessagePayload payload = new XMessagePayload();
+            payload.setText(answer);
+
+            XMessage message = XMessage.builder()
+                    .app("bot")
+                    .channel("WhatsApp")
+                    .provider("gupshup")
+                    .messageState(XMessage.MessageState.REPLIED)
+                    .sessionId(sessionID)
+                    .to(SenderReceiverInfo.builder().userID(phone).deviceID(deviceID.toString()).build())
+                    .from(SenderReceiverInfo.builder().userID("admin").build())
+                    .messageId(MessageId.builder().channelMessageId("message-" + phone).build())
+                    .timestamp(System.currentTimeMillis())
+                    .build();
+            message.setPayload(payload);
+            message.setTransformers(transformers);
+            return message;
+        }
+    }
+}
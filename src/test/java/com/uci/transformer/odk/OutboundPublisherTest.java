@@ -0,0 +1,102 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.utilities.RoutingHeaders;
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import messagerosa.core.model.XMessagePayload;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.kafka.sender.KafkaSender;
+import reactor.kafka.sender.SenderRecord;
+import reactor.kafka.sender.SenderResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class OutboundPublisherTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendsMessageKeyedByUserWithRoutingHeaders() throws Exception {
+        KafkaSender<String, String> sender = mock(KafkaSender.class);
+        SenderResult<String> result = mock(SenderResult.class);
+        ArgumentCaptor<Mono<SenderRecord<String, String, String>>> records = ArgumentCaptor.forClass(Mono.class);
+        when(sender.send(records.capture())).thenReturn(Flux.just(result));
+        XMessage message = buildMessage();
+
+        newPublisher(sender, 0).send("outbound", message, "CP-05").block();
+
+        ProducerRecord<String, String> record = records.getValue().block();
+        assertEquals("outbound", record.topic());
+        assertEquals("9876543210", record.key());
+        assertEquals(message.toXML(), record.value());
+        RoutingHeaders routing = RoutingHeaders.read(record.headers());
+        assertEquals(RoutingHeaders.ODK, routing.getBotType());
+        assertEquals("form_a", routing.getFormID());
+        assertEquals("9876543210", routing.getUserID());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void retriesFailedSends() {
+        KafkaSender<String, String> sender = mock(KafkaSender.class);
+        SenderResult<String> failed = mock(SenderResult.class);
+        when(failed.exception()).thenReturn(new RuntimeException("broker unavailable"));
+        SenderResult<String> sent = mock(SenderResult.class);
+        AtomicInteger attempts = new AtomicInteger();
+        when(sender.send(any(Mono.class))).thenAnswer(invocation ->
+                Flux.defer(() -> Flux.just(attempts.incrementAndGet() < 3 ? failed : sent)));
+
+        newPublisher(sender, 3).send("outbound", buildMessage(), "CP-05").block();
+        assertEquals(3, attempts.get());
+
+        /* Still failing once the retries are exhausted */
+        attempts.set(-10);
+        assertThrows(RuntimeException.class, () -> newPublisher(sender, 3).send("outbound", buildMessage(), "CP-05").block());
+    }
+
+    private static OutboundPublisher newPublisher(KafkaSender<String, String> sender, int retries) {
+        OutboundPublisher publisher = new OutboundPublisher();
+        ReflectionTestUtils.setField(publisher, "reactiveKafkaSender", sender);
+        ReflectionTestUtils.setField(publisher, "retries", retries);
+        ReflectionTestUtils.setField(publisher, "retryBackoffMs", 1L);
+        return publisher;
+    }
+
+    private static XMessage buildMessage() {
+        Map<String, String> metaData = new HashMap<>();
+        metaData.put("formID", "form_a");
+        Transformer transformer = new Transformer();
+        transformer.setMetaData(metaData);
+        ArrayList<Transformer> transformers = new ArrayList<>();
+        transformers.add(transformer);
+
+        XMessagePayload payload = new XMessagePayload();
+        payload.setText("What is your name?");
+
+        XMessage message = XMessage.builder()
+                .app("bot")
+                .channel("WhatsApp")
+                .provider("gupshup")
+                .messageState(XMessage.MessageState.REPLIED)
+                .to(SenderReceiverInfo.builder().userID("9876543210").build())
+                .from(SenderReceiverInfo.builder().userID("admin").build())
+                .timestamp(System.currentTimeMillis())
+                .build();
+        message.setPayload(payload);
+        message.setTransformers(transformers);
+        return message;
+    }
+}
@@ -0,0 +1,101 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.Question;
+import com.uci.transformer.odk.repository.QuestionRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class QuestionRegistryTest {
+
+    @Test
+    public void questionsAreLoadedOncePerFormVersion() {
+        Question name = buildQuestion(UUID.randomUUID(), "/data/name");
+        Question age = buildQuestion(UUID.randomUUID(), "/data/age");
+        QuestionRepository questionRepo = mock(QuestionRepository.class);
+        when(questionRepo.findByFormIDAndFormVersion("form-1", "1")).thenReturn(Flux.just(name, age));
+
+        QuestionRegistry registry = newRegistry(questionRepo);
+
+        assertEquals(name.getId(), registry.find("/data/name", "form-1", "1").block().get().getId());
+        assertEquals(age.getId(), registry.find("/data/age", "form-1", "1").block().get().getId());
+        assertFalse(registry.find("/data/city", "form-1", "1").block().isPresent());
+
+        verify(questionRepo, times(1)).findByFormIDAndFormVersion("form-1", "1");
+    }
+
+    @Test
+    public void failedLoadIsRetried() {
+        Question name = buildQuestion(UUID.randomUUID(), "/data/name");
+        QuestionRepository questionRepo = mock(QuestionRepository.class);
+        when(questionRepo.findByFormIDAndFormVersion("form-1", "1"))
+                .thenReturn(Flux.error(new IllegalStateException("database down")))
+                .thenReturn(Flux.just(name));
+
+        QuestionRegistry registry = newRegistry(questionRepo);
+
+        assertThrows(IllegalStateException.class, () -> registry.find("/data/name", "form-1", "1").block());
+        assertEquals(name.getId(), registry.find("/data/name", "form-1", "1").block().get().getId());
+    }
+
+    @Test
+    public void registeredQuestionsAreInsertedOnce() {
+        Question inserted = buildQuestion(UUID.randomUUID(), "/data/name");
+        QuestionRepository questionRepo = mock(QuestionRepository.class);
+        when(questionRepo.findByFormIDAndFormVersion("form-1", "1")).thenReturn(Flux.empty());
+        when(questionRepo.insertIfAbsent(eq("form-1"), eq("1"), eq("/data/name"), eq("STRING"), isNull()))
+                .thenReturn(Mono.just(inserted));
+
+        QuestionRegistry registry = newRegistry(questionRepo);
+
+        assertFalse(registry.find("/data/name", "form-1", "1").block().isPresent());
+        assertEquals(inserted.getId(), registry.register(buildQuestion(null, "/data/name")).block().getId());
+        assertEquals(inserted.getId(), registry.register(buildQuestion(null, "/data/name")).block().getId());
+        assertEquals(inserted.getId(), registry.find("/data/name", "form-1", "1").block().get().getId());
+
+        verify(questionRepo, times(1)).insertIfAbsent(anyString(), anyString(), anyString(), anyString(), any());
+    }
+
+    @Test
+    public void questionInsertedElsewhereIsRead() {
+        Question existing = buildQuestion(UUID.randomUUID(), "/data/name");
+        QuestionRepository questionRepo = mock(QuestionRepository.class);
+        /* Conflict on the unique index */
+        when(questionRepo.insertIfAbsent(anyString(), anyString(), anyString(), anyString(), any())).thenReturn(Mono.empty());
+        when(questionRepo.findQuestionByXPathAndFormIDAndFormVersionOrderByCreatedOnDesc("/data/name", "form-1", "1"))
+                .thenReturn(Mono.just(existing));
+
+        QuestionRegistry registry = newRegistry(questionRepo);
+
+        assertEquals(existing.getId(), registry.register(buildQuestion(null, "/data/name")).block().getId());
+        assertEquals(Optional.of(existing), registry.find("/data/name", "form-1", "1").block());
+        verify(questionRepo, never()).findByFormIDAndFormVersion(anyString(), anyString());
+    }
+
+    private QuestionRegistry newRegistry(QuestionRepository questionRepo) {
+        QuestionRegistry registry = new QuestionRegistry();
+        ReflectionTestUtils.setField(registry, "questionRepo", questionRepo);
+        ReflectionTestUtils.setField(registry, "maxSize", 1000L);
+        ReflectionTestUtils.setField(registry, "maxFormVersions", 100L);
+        registry.init();
+        return registry;
+    }
+
+    private Question buildQuestion(UUID id, String xPath) {
+        return Question.builder()
+                .id(id)
+                .formID("form-1")
+                .formVersion("1")
+                .XPath(xPath)
+                .questionType(Question.QuestionType.STRING)
+                .build();
+    }
+}
@@ -0,0 +1,94 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SessionCacheTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void stateAndLanguageAreReadInOneCommand() {
+        /* Redis */
+        Map<String, String> values = new ConcurrentHashMap<>();
+        RedisReactiveCommands<String, String> commands = mock(RedisReactiveCommands.class);
+        when(commands.setex(anyString(), anyLong(), anyString())).thenAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(2));
+            return Mono.just("OK");
+        });
+        when(commands.mget(anyString(), anyString())).thenAnswer(invocation -> {
+            String stateKey = invocation.getArgument(0);
+            String languageKey = invocation.getArgument(1);
+            return Flux.just(KeyValue.fromNullable(stateKey, values.get(stateKey)),
+                    KeyValue.fromNullable(languageKey, values.get(languageKey)));
+        });
+
+        SessionCache cache = newCache(commands);
+
+        SessionCache.Session empty = cache.get("9876543210", "bot", "form-1").block();
+        assertNull(empty.getState());
+        assertNull(empty.getLanguage());
+
+        GupshupStateEntity state = new GupshupStateEntity();
+        state.setId(1L);
+        state.setPhoneNo("9876543210");
+        state.setBotFormName("form-1");
+        state.setPreviousPath("question./data/name");
+        state.setXmlPrevious("<data/>");
+        state.setVersion(3L);
+        cache.putState("9876543210", "form-1", state).block();
+        cache.putLanguage("9876543210", "bot", "Hindi (hi)").block();
+
+        SessionCache.Session session = cache.get("9876543210", "bot", "form-1").block();
+        assertEquals(state, session.getState());
+        assertEquals("Hindi (hi)", session.getLanguage());
+        /* Language is per bot, state per form */
+        assertNull(cache.get("9876543210", "other-bot", "form-1").block().getLanguage());
+        assertNull(cache.get("9876543210", "bot", "form-2").block().getState());
+
+        verify(commands, times(5)).mget(anyString(), anyString());
+        verify(commands, never()).get(anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void redisErrorsAreCacheMisses() {
+        RedisReactiveCommands<String, String> commands = mock(RedisReactiveCommands.class);
+        when(commands.mget(anyString(), anyString())).thenReturn(Flux.error(new RedisConnectionException("redis down")));
+        when(commands.setex(anyString(), anyLong(), anyString())).thenReturn(Mono.error(new RedisConnectionException("redis down")));
+
+        SessionCache cache = newCache(commands);
+
+        SessionCache.Session session = cache.get("9876543210", "bot", "form-1").block();
+        assertNull(session.getState());
+        assertNull(session.getLanguage());
+        assertDoesNotThrow(() -> cache.putLanguage("9876543210", "bot", "Hindi (hi)").block());
+    }
+
+    @SuppressWarnings("unchecked")
+    private SessionCache newCache(RedisReactiveCommands<String, String> commands) {
+        StatefulRedisConnection<String, String> connection = mock(StatefulRedisConnection.class);
+        when(connection.reactive()).thenReturn(commands);
+
+        SessionCache cache = new SessionCache();
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(cache, "timeoutMs", 1000L);
+        ((AtomicReference<Mono<StatefulRedisConnection<String, String>>>) ReflectionTestUtils.getField(cache, "connection"))
+                .set(Mono.just(connection));
+        return cache;
+    }
+}
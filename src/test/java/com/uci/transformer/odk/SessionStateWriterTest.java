@@ -0,0 +1,125 @@
+package com.uci.transformer.odk;
+
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import org.junit.jupiter.api.Test;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.FetchSpec;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SessionStateWriterTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void latestStatesAreFlushedInBatches() {
+        List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        List<Object> values = Collections.synchronizedList(new ArrayList<>());
+        DatabaseClient databaseClient = mockDatabaseClient(statements, values, new AtomicBoolean());
+
+        SessionStateWriter writer = newWriter(databaseClient);
+
+        /* A user answering many questions before the flush */
+        for (long version = 1; version <= 30; version++) {
+            writer.write(buildState("9876543210", "form-1", "question." + version, version));
+        }
+        writer.write(buildState("9876543211", "form-1", "question.1", 1L));
+        writer.write(buildState("9876543212", "form-1", "question.1", 1L));
+        assertEquals(3, writer.getPending());
+        assertEquals("question.30", writer.getPending("9876543210", "form-1").getPreviousPath());
+
+        writer.flushAll().block();
+
+        assertEquals(2, statements.size());
+        assertEquals(2, rows(statements.get(0)));
+        assertEquals(1, rows(statements.get(1)));
+        assertTrue(statements.get(0).startsWith("INSERT INTO xmessage_state (phone_no, state, previous_path, bot_form_name, version)"));
+        assertTrue(statements.get(0).endsWith("WHERE xmessage_state.version < EXCLUDED.version"));
+        assertTrue(values.contains("question.30"));
+        assertFalse(values.contains("question.29"));
+        assertEquals(0, writer.getPending());
+        assertNull(writer.getPending("9876543210", "form-1"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void stateIsFlushedAtEndOfFormAndKeptOnFailure() {
+        List<String> statements = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean failing = new AtomicBoolean(true);
+        DatabaseClient databaseClient = mockDatabaseClient(statements, new ArrayList<>(), failing);
+
+        SessionStateWriter writer = newWriter(databaseClient);
+        writer.write(buildState("9876543210", "form-1", "question.1", 1L));
+        writer.write(buildState("9876543211", "form-1", "question.1", 1L));
+
+        writer.flush("9876543210", "form-1").block();
+        /* Kept to be flushed again */
+        assertEquals(2, writer.getPending());
+
+        failing.set(false);
+        writer.flush("9876543210", "form-1").block();
+        assertEquals(1, writer.getPending());
+        assertNull(writer.getPending("9876543210", "form-1"));
+        assertEquals(2, statements.size());
+        assertEquals(1, rows(statements.get(1)));
+
+        writer.close();
+        assertEquals(0, writer.getPending());
+    }
+
+    @SuppressWarnings("unchecked")
+    private DatabaseClient mockDatabaseClient(List<String> statements, List<Object> values, AtomicBoolean failing) {
+        DatabaseClient databaseClient = mock(DatabaseClient.class);
+        DatabaseClient.GenericExecuteSpec spec = mock(DatabaseClient.GenericExecuteSpec.class);
+        FetchSpec<Map<String, Object>> fetchSpec = mock(FetchSpec.class);
+        when(databaseClient.sql(anyString())).thenAnswer(invocation -> {
+            statements.add(invocation.getArgument(0));
+            return spec;
+        });
+        when(spec.bind(anyInt(), any())).thenAnswer(invocation -> {
+            values.add(invocation.getArgument(1));
+            return spec;
+        });
+        when(spec.bindNull(anyInt(), any())).thenReturn(spec);
+        when(spec.fetch()).thenReturn(fetchSpec);
+        when(fetchSpec.rowsUpdated()).thenAnswer(invocation -> failing.get()
+                ? Mono.error(new IllegalStateException("database down"))
+                : Mono.just(1));
+        return databaseClient;
+    }
+
+    private SessionStateWriter newWriter(DatabaseClient databaseClient) {
+        SessionStateWriter writer = new SessionStateWriter();
+        ReflectionTestUtils.setField(writer, "databaseClient", databaseClient);
+        ReflectionTestUtils.setField(writer, "enabled", true);
+        /* Flushed by the test */
+        ReflectionTestUtils.setField(writer, "flushIntervalMs", 3600000L);
+        ReflectionTestUtils.setField(writer, "batchSize", 2);
+        ReflectionTestUtils.setField(writer, "shutdownTimeoutMs", 10000L);
+        writer.start();
+        return writer;
+    }
+
+    private GupshupStateEntity buildState(String phoneNo, String formID, String previousPath, Long version) {
+        GupshupStateEntity state = new GupshupStateEntity();
+        state.setPhoneNo(phoneNo);
+        state.setBotFormName(formID);
+        state.setPreviousPath(previousPath);
+        state.setXmlPrevious("<data/>");
+        state.setVersion(version);
+        return state;
+    }
+
+    private int rows(String statement) {
+        return statement.split("\\(\\$").length - 1;
+    }
+}
@@ -0,0 +1,148 @@
+package com.uci.transformer.odk.repository;
+
+import com.uci.transformer.odk.entity.GupshupStateEntity;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
+import org.springframework.data.r2dbc.repository.support.R2dbcRepositoryFactory;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The state upsert & the migration that makes it possible, against postgres as both rely on its SQL.
+ * The migrations run as in the changelog, with states saved twice for a user inserted before the
+ * state version migration.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class StateRepositoryTest {
+    private static final String CHANGELOG = "src/main/resources/db/changelog-master.xml";
+    private static final String MIGRATIONS = "src/main/resources/";
+    private static final String STATE_VERSION_MIGRATION = "db/migration/010_xmessage_state_version.sql";
+    private static final String FORM = "form_a";
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:12-alpine");
+
+    private static StateRepository stateRepo;
+
+    @BeforeAll
+    public static void migrate() throws Exception {
+        try (Connection connection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+             Statement statement = connection.createStatement()) {
+            for (String migration : getMigrations()) {
+                if (migration.equals(STATE_VERSION_MIGRATION)) {
+                    /* Saved twice for the same user & form, before the unique index */
+                    statement.execute("INSERT INTO xmessage_state (phone_no, state, previous_path, bot_form_name) VALUES "
+                            + "('9000000001', 'first', '/data/name', '" + FORM + "'), "
+                            + "('9000000002', 'other user', '/data/name', '" + FORM + "'), "
+                            + "('9000000001', 'latest', '/data/age', '" + FORM + "'), "
+                            + "('9000000001', 'other form', '/data/name', 'form_b')");
+                }
+                statement.execute(new String(Files.readAllBytes(Paths.get(MIGRATIONS, migration)), StandardCharsets.UTF_8));
+            }
+        }
+
+        ConnectionFactory connectionFactory = ConnectionFactories.get(String.format("r2dbc:postgresql://%s:%s@%s:%d/%s",
+                POSTGRES.getUsername(), POSTGRES.getPassword(), POSTGRES.getHost(),
+                POSTGRES.getMappedPort(PostgreSQLContainer.POSTGRESQL_PORT), POSTGRES.getDatabaseName()));
+        stateRepo = new R2dbcRepositoryFactory(new R2dbcEntityTemplate(connectionFactory)).getRepository(StateRepository.class);
+    }
+
+    @Test
+    public void migrationKeepsTheLatestStateOfEachUser() throws Exception {
+        GupshupStateEntity latest = stateRepo.findByPhoneNoAndBotFormName("9000000001", FORM).block();
+        assertEquals("latest", latest.getXmlPrevious());
+        assertEquals("/data/age", latest.getPreviousPath());
+        assertEquals(0L, latest.getVersion());
+        assertEquals("other user", stateRepo.findByPhoneNoAndBotFormName("9000000002", FORM).block().getXmlPrevious());
+        assertEquals("other form", stateRepo.findByPhoneNoAndBotFormName("9000000001", "form_b").block().getXmlPrevious());
+
+        try (Connection connection = DriverManager.getConnection(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+             Statement statement = connection.createStatement()) {
+            ResultSet count = statement.executeQuery("SELECT COUNT(*) FROM xmessage_state WHERE phone_no = '9000000001' AND bot_form_name = '" + FORM + "'");
+            count.next();
+            assertEquals(1, count.getInt(1));
+            assertThrows(SQLException.class, () -> statement.execute("INSERT INTO xmessage_state (phone_no, state, bot_form_name) "
+                    + "VALUES ('9000000001', 'duplicate', '" + FORM + "')"));
+        }
+    }
+
+    @Test
+    public void firstStateIsInsertedAtVersionOne() {
+        GupshupStateEntity saved = stateRepo.upsertIfVersion("9000000011", FORM, "state 1", "/data/name", 0L).block();
+
+        assertNotNull(saved.getId());
+        assertEquals(1L, saved.getVersion());
+        assertEquals("state 1", saved.getXmlPrevious());
+        assertEquals("/data/name", saved.getPreviousPath());
+    }
+
+    @Test
+    public void stateIsUpdatedAtTheExpectedVersion() {
+        GupshupStateEntity inserted = stateRepo.upsertIfVersion("9000000012", FORM, "state 1", "/data/name", 0L).block();
+
+        GupshupStateEntity updated = stateRepo.upsertIfVersion("9000000012", FORM, "state 2", "/data/age", 1L).block();
+
+        assertEquals(inserted.getId(), updated.getId());
+        assertEquals(2L, updated.getVersion());
+        assertEquals("state 2", updated.getXmlPrevious());
+        assertEquals("/data/age", updated.getPreviousPath());
+    }
+
+    @Test
+    public void stateUpdatedConcurrentlyIsNotOverwritten() {
+        stateRepo.upsertIfVersion("9000000013", FORM, "state 1", "/data/name", 0L).block();
+        stateRepo.upsertIfVersion("9000000013", FORM, "state 2", "/data/age", 1L).block();
+
+        /* Processed with the state read at version 1 */
+        assertNull(stateRepo.upsertIfVersion("9000000013", FORM, "stale", "/data/city", 1L).block());
+
+        GupshupStateEntity saved = stateRepo.findByPhoneNoAndBotFormName("9000000013", FORM).block();
+        assertEquals(2L, saved.getVersion());
+        assertEquals("state 2", saved.getXmlPrevious());
+    }
+
+    @Test
+    public void stateIsUpdatedWhateverTheVersionWithoutOne() {
+        stateRepo.upsertIfVersion("9000000014", FORM, "state 1", "/data/name", 0L).block();
+        stateRepo.upsertIfVersion("9000000014", FORM, "state 2", "/data/age", 1L).block();
+
+        GupshupStateEntity updated = stateRepo.upsertIfVersion("9000000014", FORM, "state 3", "/data/city", null).block();
+
+        assertEquals(3L, updated.getVersion());
+        assertEquals("state 3", updated.getXmlPrevious());
+        assertEquals(1, stateRepo.findByPhoneNo("9000000014").collectList().block().size());
+    }
+
+    /**
+     * @return migration files in the order of the changelog
+     */
+    private static List<String> getMigrations() throws Exception {
+        String changelog = new String(Files.readAllBytes(Paths.get(CHANGELOG)), StandardCharsets.UTF_8);
+        Matcher include = Pattern.compile("<include file=\"([^\"]+)\"/>").matcher(changelog);
+        List<String> migrations = new ArrayList<>();
+        while (include.find()) {
+            migrations.add(include.group(1));
+        }
+        assertTrue(migrations.contains(STATE_VERSION_MIGRATION));
+        return migrations;
+    }
+}
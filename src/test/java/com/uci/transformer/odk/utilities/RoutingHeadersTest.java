@@ -0,0 +1,67 @@
+package com.uci.transformer.odk.utilities;
+
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingHeadersTest {
+
+    @Test
+    public void writtenHeadersAreRead() {
+        RecordHeaders headers = new RecordHeaders();
+        RoutingHeaders.of(buildMessage("generic", "form_a", "9876543210")).write(headers);
+
+        RoutingHeaders routing = RoutingHeaders.read(headers);
+        assertNotNull(routing);
+        assertTrue(routing.isGeneric());
+        assertEquals("form_a", routing.getFormID());
+        assertEquals("9876543210", routing.getUserID());
+    }
+
+    @Test
+    public void odkBotWithoutForm() {
+        RecordHeaders headers = new RecordHeaders();
+        RoutingHeaders.of(buildMessage(null, null, "9876543210")).write(headers);
+
+        RoutingHeaders routing = RoutingHeaders.read(headers);
+        assertNotNull(routing);
+        assertFalse(routing.isGeneric());
+        assertEquals(RoutingHeaders.ODK, routing.getBotType());
+        assertNull(routing.getFormID());
+        assertNull(headers.lastHeader(RoutingHeaders.FORM_ID));
+    }
+
+    @Test
+    public void recordsWithoutHeadersAreNotRouted() {
+        assertNull(RoutingHeaders.read(null));
+        assertNull(RoutingHeaders.read(new RecordHeaders()));
+    }
+
+    private XMessage buildMessage(String type, String formID, String userID) {
+        Map<String, String> metaData = new HashMap<>();
+        if (type != null) {
+            metaData.put("type", type);
+        }
+        if (formID != null) {
+            metaData.put("formID", formID);
+        }
+        Transformer transformer = new Transformer();
+        transformer.setMetaData(metaData);
+        ArrayList<Transformer> transformers = new ArrayList<>();
+        transformers.add(transformer);
+
+        XMessage message = XMessage.builder()
+                .to(SenderReceiverInfo.builder().userID(userID).build())
+                .build();
+        message.setTransformers(transformers);
+        return message;
+    }
+}
@@ -0,0 +1,50 @@
+package com.uci.transformer.odk.utilities;
+
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.xform.parse.XFormParser;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStateCodecTest {
+    private static final String INSTANCE = "<?xml version='1.0' ?><data id=\"samagra_workflows_form_updated_1\" version=\"3\" xmlns:ev=\"http://www.w3.org/2001/xml-events\" xmlns:orx=\"http://openrosa.org/xforms\" xmlns:odk=\"http://www.opendatakit.org/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\" xmlns:jr=\"http://openrosa.org/javarosa\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"><application_process><member_name /><form_intro /><team_name>Team &amp; \"Co\" &lt;1&gt;</team_name><manager_name /><manager_contact /><engagement_owner_name /><engagement_owner_number /><leave_balance /><preferences>2</preferences></application_process><leave_app><type_of_leave>1</type_of_leave><reason>Personal\ttravel</reason><start_date_leave>12-09-2020</start_date_leave><end_date_leave>14-09-2020</end_date_leave><number_of_working_days>2</number_of_working_days><leave_applied_message /></leave_app><member><name>A</name></member><member><name>B</name></member><meta><instanceID>uuid:a0450024-16c1-4820-ae2a-8feeae833228</instanceID></meta></data>";
+
+    @Test
+    public void encodedStateDecodesToSameInstance() {
+        String state = SessionStateCodec.encode(INSTANCE);
+        assertTrue(SessionStateCodec.isEncoded(state));
+
+        String decoded = SessionStateCodec.decode(state);
+        assertSameTree(XFormParser.restoreDataModel(INSTANCE.getBytes(), null).getRoot(),
+                XFormParser.restoreDataModel(decoded.getBytes(), null).getRoot());
+        assertTrue(decoded.contains("id=\"samagra_workflows_form_updated_1\""));
+        assertTrue(decoded.contains("version=\"3\""));
+        assertTrue(state.length() < INSTANCE.length());
+    }
+
+    @Test
+    public void legacyXmlStateIsReadAsItIs() {
+        assertEquals(INSTANCE, SessionStateCodec.decode(INSTANCE));
+        assertNull(SessionStateCodec.decode(null));
+    }
+
+    @Test
+    public void encodingIsIdempotent() {
+        String state = SessionStateCodec.encode(INSTANCE);
+        assertEquals(state, SessionStateCodec.encode(state));
+    }
+
+    private void assertSameTree(TreeElement expected, TreeElement actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getMult(), actual.getMult(), expected.getName());
+        assertEquals(valueOf(expected), valueOf(actual), expected.getName());
+        assertEquals(expected.getNumChildren(), actual.getNumChildren(), expected.getName());
+        for (int i = 0; i < expected.getNumChildren(); i++) {
+            assertSameTree(expected.getChildAt(i), actual.getChildAt(i));
+        }
+    }
+
+    private String valueOf(TreeElement element) {
+        return element.getValue() == null ? null : element.getValue().uncast().getString();
+    }
+}
@@ -0,0 +1,106 @@
+package com.uci.transformer.odk.utilities;
+
+import messagerosa.core.model.MessageId;
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import messagerosa.core.model.XMessagePayload;
+import messagerosa.xml.XMessageParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+class XMessageCopierTest {
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void copyMatchesXmlRoundTrip() throws Exception {
+        XMessage message = buildMessage();
+
+        XMessage parsed = XMessageParser.parse(new ByteArrayInputStream(message.toXML().getBytes()));
+        XMessage copied = XMessageCopier.copy(message);
+        assertEquals(parsed.toXML(), copied.toXML());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void copyVsXmlRoundTrip() throws Exception {
+        XMessage message = buildMessage();
+
+        /* Warm up both paths before measuring */
+        for (int i = 0; i < 200; i++) {
+            XMessageParser.parse(new ByteArrayInputStream(message.toXML().getBytes()));
+            XMessageCopier.copy(message);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            XMessageParser.parse(new ByteArrayInputStream(message.toXML().getBytes()));
+        }
+        long roundTripNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            XMessageCopier.copy(message);
+        }
+        long copyNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(String.format("XMessage (%d chars): xml round trip %.1f us, copy %.1f us",
+                message.toXML().length(), roundTripNanos / 1e3, copyNanos / 1e3));
+    }
+
+    @Test
+    public void copyIsIndependentOfMessage() throws Exception {
+        XMessage message = buildMessage();
+        XMessage copied = XMessageCopier.copy(message);
+
+        assertNotSame(message.getPayload(), copied.getPayload());
+        assertNotSame(message.getTo(), copied.getTo());
+        assertNotSame(message.getTransformers(), copied.getTransformers());
+        assertNotSame(message.getTransformers().get(0).getMetaData(), copied.getTransformers().get(0).getMetaData());
+
+        copied.getPayload().setText("changed");
+        copied.getTo().setUserID("changed");
+        copied.getTransformers().get(0).getMetaData().put("formID", "changed");
+
+        assertEquals("What is your name?", message.getPayload().getText());
+        assertEquals("9876543210", message.getTo().getUserID());
+        assertEquals("form_a", message.getTransformers().get(0).getMetaData().get("formID"));
+    }
+
+    private XMessage buildMessage() {
+        Map<String, String> metaData = new HashMap<>();
+        metaData.put("formID", "form_a");
+        metaData.put("botId", UUID.randomUUID().toString());
+        metaData.put("botOwnerID", "owner");
+        Transformer transformer = new Transformer();
+        transformer.setMetaData(metaData);
+        ArrayList<Transformer> transformers = new ArrayList<>();
+        transformers.add(transformer);
+
+        XMessagePayload payload = new XMessagePayload();
+        payload.setText("What is your name?");
+
+        XMessage message = XMessage.builder()
+                .app("bot")
+                .channel("WhatsApp")
+                .provider("gupshup")
+                .sessionId(UUID.randomUUID())
+                .to(SenderReceiverInfo.builder().userID("9876543210").deviceID(UUID.randomUUID().toString()).build())
+                .from(SenderReceiverInfo.builder().userID("admin").build())
+                .messageId(MessageId.builder().channelMessageId("message-1").build())
+                .timestamp(System.currentTimeMillis())
+                .build();
+        message.setPayload(payload);
+        message.setTransformers(transformers);
+        return message;
+    }
+}
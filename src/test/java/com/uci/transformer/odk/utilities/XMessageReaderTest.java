@@ -0,0 +1,126 @@
+package com.uci.transformer.odk.utilities;
+
+import messagerosa.core.model.MediaCategory;
+import messagerosa.core.model.MessageId;
+import messagerosa.core.model.MessageMedia;
+import messagerosa.core.model.SenderReceiverInfo;
+import messagerosa.core.model.Transformer;
+import messagerosa.core.model.XMessage;
+import messagerosa.core.model.XMessagePayload;
+import messagerosa.xml.XMessageParser;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class XMessageReaderTest {
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void readerMatchesParser() throws Exception {
+        assertSameAsParser(buildMessage("Hi", false).toXML());
+        assertSameAsParser(buildMessage(longText(20000), true).toXML());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void readerVsParser() throws Exception {
+        benchmark("text message", buildMessage("Hi", false).toXML());
+        benchmark("media message", buildMessage(longText(20000), true).toXML());
+    }
+
+    @Test
+    public void readsUtf8Text() throws Exception {
+        String xml = buildMessage("नमस्ते, आपका नाम क्या है?", false).toXML();
+
+        assertEquals("नमस्ते, आपका नाम क्या है?", XMessageReader.parse(xml).getPayload().getText());
+        assertEquals("नमस्ते, आपका नाम क्या है?", XMessageReader.parse(xml.getBytes(StandardCharsets.UTF_8)).getPayload().getText());
+    }
+
+    private void assertSameAsParser(String xml) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        String expected = XMessageParser.parse(new ByteArrayInputStream(bytes)).toXML();
+        assertEquals(expected, XMessageReader.parse(xml).toXML());
+        assertEquals(expected, XMessageReader.parse(bytes).toXML());
+    }
+
+    private void benchmark(String name, String xml) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+
+        /* Warm up all paths before measuring */
+        for (int i = 0; i < 200; i++) {
+            XMessageParser.parse(new ByteArrayInputStream(xml.getBytes()));
+            XMessageReader.parse(xml);
+            XMessageReader.parse(bytes);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            XMessageParser.parse(new ByteArrayInputStream(xml.getBytes()));
+        }
+        long parserNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            XMessageReader.parse(xml);
+        }
+        long stringNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            XMessageReader.parse(bytes);
+        }
+        long bytesNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(String.format("%s (%d chars): XMessageParser %.1f us, reader from string %.1f us, reader from bytes %.1f us",
+                name, xml.length(), parserNanos / 1e3, stringNanos / 1e3, bytesNanos / 1e3));
+    }
+
+    private String longText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        return sb.toString();
+    }
+
+    private XMessage buildMessage(String text, boolean media) {
+        Map<String, String> metaData = new HashMap<>();
+        metaData.put("formID", "form_a");
+        metaData.put("botId", UUID.randomUUID().toString());
+        metaData.put("startingMessage", "Hi");
+        Transformer transformer = new Transformer();
+        transformer.setMetaData(metaData);
+        ArrayList<Transformer> transformers = new ArrayList<>();
+        transformers.add(transformer);
+
+        XMessagePayload payload = new XMessagePayload();
+        payload.setText(text);
+        if (media) {
+            MessageMedia messageMedia = new MessageMedia();
+            messageMedia.setCategory(MediaCategory.VIDEO);
+            messageMedia.setUrl("https://cdn.example.org/media/" + UUID.randomUUID() + ".mp4");
+            messageMedia.setText(text);
+            payload.setMedia(messageMedia);
+        }
+
+        XMessage message = XMessage.builder()
+                .app("bot")
+                .channel("WhatsApp")
+                .provider("gupshup")
+                .sessionId(UUID.randomUUID())
+                .to(SenderReceiverInfo.builder().userID("9876543210").deviceID(UUID.randomUUID().toString()).build())
+                .messageId(MessageId.builder().channelMessageId("message-1").build())
+                .build();
+        message.setPayload(payload);
+        message.setTransformers(transformers);
+        return message;
+    }
+}